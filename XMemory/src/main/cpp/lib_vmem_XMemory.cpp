@@ -67,22 +67,27 @@ JNIEXPORT jint JNICALL Java_lib_vmem_XMemory_initialize
 }
 
 JNIEXPORT jlong JNICALL Java_lib_vmem_XMemory_nativeReserveByteBufferMemory
-  (JNIEnv *env, jobject obj, jint size)
+  (JNIEnv *env, jclass klass, jint size)
 {
     TOID(struct byte_buffer) buf;
-    POBJ_ZNEW(pool, &buf, struct byte_buffer);
+    if (POBJ_ZNEW(pool, &buf, struct byte_buffer) != 0)
+        return 0;
     if (size == 0)
         D_RW(buf)->bytes = TOID_NULL(char);
-    else
-        POBJ_ZALLOC(pool, &(D_RO(buf)->bytes), char, size);
+    else if (POBJ_ZALLOC(pool, &(D_RO(buf)->bytes), char, size) != 0) {
+        POBJ_FREE(&buf);
+        return 0;
+    }
     D_RW(buf)->capacity = size;
     return buf.oid.off;
 }
 
 JNIEXPORT jobject JNICALL Java_lib_vmem_XMemory_nativeCreateByteBuffer
-  (JNIEnv *env, jobject obj, jlong offset, jint size)
+  (JNIEnv *env, jclass klass, jlong offset, jint size)
 {
-    PMEMoid buf_oid = {uuid_lo, offset};
+    if (offset == 0)
+        return NULL;
+    PMEMoid buf_oid = {uuid_lo, (uint64_t)offset};
     TOID(struct byte_buffer) buf;
     TOID_ASSIGN(buf, buf_oid);
 
@@ -99,3 +104,16 @@ JNIEXPORT void JNICALL Java_lib_vmem_XMemory_nativeFree
     POBJ_FREE(&(D_RO(buf)->bytes));
     POBJ_FREE(&buf);
 }
+
+JNIEXPORT jobject JNICALL Java_lib_vmem_XMemory_nativeWrap
+  (JNIEnv *env, jclass klass, jlong address, jint size)
+{
+    memset((void*)address, 0, size);
+    return (env)->NewDirectByteBuffer((void*)address, size);
+}
+
+JNIEXPORT jlong JNICALL Java_lib_vmem_XMemory_nativeBufferAddress
+  (JNIEnv *env, jclass klass, jobject bb)
+{
+    return (jlong)(env)->GetDirectBufferAddress(bb);
+}
@@ -13,7 +13,7 @@ extern "C" {
  * Signature: (I)J
  */
 JNIEXPORT jlong JNICALL Java_lib_vmem_XMemory_nativeReserveByteBufferMemory
-  (JNIEnv *, jobject, jint);
+  (JNIEnv *, jclass, jint);
 
 /*
  * Class:     lib_vmem_XMemory
@@ -21,7 +21,23 @@ JNIEXPORT jlong JNICALL Java_lib_vmem_XMemory_nativeReserveByteBufferMemory
  * Signature: (JI)Ljava/nio/ByteBuffer;
  */
 JNIEXPORT jobject JNICALL Java_lib_vmem_XMemory_nativeCreateByteBuffer
-  (JNIEnv *, jobject, jlong, jint);
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     lib_vmem_XMemory
+ * Method:    nativeWrap
+ * Signature: (JI)Ljava/nio/ByteBuffer;
+ */
+JNIEXPORT jobject JNICALL Java_lib_vmem_XMemory_nativeWrap
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     lib_vmem_XMemory
+ * Method:    nativeBufferAddress
+ * Signature: (Ljava/nio/ByteBuffer;)J
+ */
+JNIEXPORT jlong JNICALL Java_lib_vmem_XMemory_nativeBufferAddress
+  (JNIEnv *, jclass, jobject);
 
 /*
  * Class:     lib_vmem_XMemory
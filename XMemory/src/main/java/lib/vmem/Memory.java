@@ -42,4 +42,11 @@ public interface Memory {
      */
     public ByteBuffer allocateByteBuffer(int size);
 
+    /**
+     * Return a byte buffer's memory ahead of garbage collection; the buffer must not be used afterwards.
+     *
+     * @param buf a buffer allocated by this memory
+     */
+    public default void release(ByteBuffer buf) {}
+
 }
@@ -25,17 +25,53 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.ReferenceQueue;
-import java.lang.ref.Reference;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Buffers of up to {@link #MAX_POOLED_SIZE} bytes are carved from per-size-class slabs and go back
+ * to their size class when released; a size class returns slabs that fall wholly free to the vmem
+ * region once its free lists grow.  Larger buffers are reserved individually.  Either kind is
+ * returned by {@link #release(ByteBuffer)} or, if the application drops it instead, by the cleaner
+ * thread once the buffer is collected.  When the vmem region is exhausted, allocation waits for
+ * buffers to be returned rather than failing outright.
+ */
 public class XMemory implements Memory {
 
     static final Cleaner cleaner;
 
+    static final int MIN_CLASS_SHIFT = 6;
+    static final int MAX_CLASS_SHIFT = 16;
+    static final int MAX_POOLED_SIZE = 1 << MAX_CLASS_SHIFT;
+    static final int SLAB_SIZE = 1 << 20;
+    static final long ALLOCATION_TIMEOUT_MS = 1000;
+
+    private static final SizeClass[] sizeClasses = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    private static final AtomicLong releases = new AtomicLong();
+    private static final Object releaseMonitor = new Object();
+    private static volatile int waiters;
+
+    private static class BufferReference extends PhantomReference<ByteBuffer> {
+        final long address;
+        final long offset;      // reservation offset of an unpooled buffer
+        final int sizeClass;    // index into sizeClasses, or -1 if unpooled
+
+        BufferReference(ByteBuffer bb, ReferenceQueue<ByteBuffer> queue, long address, long offset, int sizeClass) {
+            super(bb, queue);
+            this.address = address;
+            this.offset = offset;
+            this.sizeClass = sizeClass;
+        }
+    }
+
     private static class Cleaner {
-        private static final ConcurrentHashMap<Reference, Long> ref_to_addr_map = new ConcurrentHashMap<Reference, Long>();
-        private static final ReferenceQueue bbq = new ReferenceQueue();
+        private static final ConcurrentHashMap<Long, BufferReference> addr_to_ref_map = new ConcurrentHashMap<>();
+        private static final ReferenceQueue<ByteBuffer> bbq = new ReferenceQueue<>();
 
         private Cleaner() {
             Thread t = new Thread(new CleanerThread());
@@ -47,8 +83,9 @@ public class XMemory implements Memory {
             public void run() {
                 while (true) {
                     try {
-                        PhantomReference ref = (PhantomReference)(bbq.remove());
-                        nativeFree((long)(ref_to_addr_map.remove(ref)));
+                        BufferReference ref = (BufferReference)(bbq.remove());
+                        // a buffer released explicitly has already been removed from the map
+                        if (addr_to_ref_map.remove(ref.address, ref)) reclaim(ref);
                     } catch (Exception e) {
                         e.printStackTrace();
                         System.exit(-1);
@@ -61,9 +98,146 @@ public class XMemory implements Memory {
             return new Cleaner();
         }
 
-        public void register(Object obj, long addr) {
-            PhantomReference ref = new PhantomReference(obj, bbq);
-            ref_to_addr_map.put(ref, addr);
+        public void register(ByteBuffer bb, long address, long offset, int sizeClass) {
+            addr_to_ref_map.put(address, new BufferReference(bb, bbq, address, offset, sizeClass));
+        }
+
+        public BufferReference unregister(long address) {
+            BufferReference ref = addr_to_ref_map.remove(address);
+            if (ref != null) ref.clear();
+            return ref;
+        }
+    }
+
+    // Free blocks of one size.  Threads push and pop on the stripe picked by their id and only
+    // look at other stripes when their own is empty, so they rarely contend on a common size.
+    // When a stripe grows past trimThreshold, or the vmem region is exhausted, the class is trimmed:
+    // slabs whose blocks are all free go back to the region, except for one kept as a spare.
+    private static class SizeClass {
+        private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+        final int size;
+        final int blocksPerSlab;
+        private final Stripe[] stripes;
+        private final TreeMap<Long, Slab> slabs;    // by base address; guarded by this
+        private volatile int trimThreshold;
+
+        private static class Stripe {
+            long[] addresses = new long[64];
+            int count;
+        }
+
+        private static class Slab {
+            final long offset;
+            int free;
+
+            Slab(long offset) {
+                this.offset = offset;
+            }
+        }
+
+        SizeClass(int size) {
+            this.size = size;
+            this.blocksPerSlab = SLAB_SIZE / size;
+            this.stripes = new Stripe[STRIPES];
+            for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+            this.slabs = new TreeMap<>();
+            this.trimThreshold = 2 * blocksPerSlab;
+        }
+
+        private static int home() {
+            return (int)Thread.currentThread().getId() & (STRIPES - 1);
+        }
+
+        long take() {
+            int home = home();
+            for (int i = 0; i < STRIPES; i++) {
+                Stripe stripe = stripes[(home + i) & (STRIPES - 1)];
+                synchronized (stripe) {
+                    if (stripe.count > 0) return stripe.addresses[--stripe.count];
+                }
+            }
+            return 0;
+        }
+
+        void put(long address) {
+            Stripe stripe = stripes[home()];
+            boolean trim;
+            synchronized (stripe) {
+                if (stripe.count == stripe.addresses.length) stripe.addresses = Arrays.copyOf(stripe.addresses, stripe.count * 2);
+                stripe.addresses[stripe.count++] = address;
+                trim = stripe.count > trimThreshold;
+            }
+            if (trim) trim(stripe);
+        }
+
+        synchronized boolean grow() {
+            long offset = nativeReserveByteBufferMemory(SLAB_SIZE);
+            ByteBuffer slab = offset == 0 ? null : nativeCreateByteBuffer(offset, SLAB_SIZE);
+            if (slab == null) return false;
+            long base = nativeBufferAddress(slab);
+            slabs.put(base, new Slab(offset));
+            Stripe stripe = stripes[home()];
+            synchronized (stripe) {
+                if (stripe.count + blocksPerSlab > stripe.addresses.length) stripe.addresses = Arrays.copyOf(stripe.addresses, stripe.count + blocksPerSlab);
+                for (int i = blocksPerSlab - 1; i >= 0; i--) stripe.addresses[stripe.count++] = base + (long)i * size;
+            }
+            return true;
+        }
+
+        // drains the stripes, frees the wholly free slabs but one and deals the remaining blocks back out;
+        // blocks released meanwhile stay on their stripes, so their slabs are not counted as free
+        // returns the number of slabs freed; trigger, if not null, is the stripe that grew past trimThreshold
+        synchronized int trim(Stripe trigger) {
+            if (trigger != null) {
+                synchronized (trigger) {
+                    if (trigger.count <= trimThreshold) return 0;
+                }
+            }
+            long[] free = new long[0];
+            int count = 0;
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    if (count + stripe.count > free.length) free = Arrays.copyOf(free, Math.max(2 * free.length, count + stripe.count));
+                    System.arraycopy(stripe.addresses, 0, free, count, stripe.count);
+                    count += stripe.count;
+                    stripe.count = 0;
+                }
+            }
+            for (Slab slab : slabs.values()) slab.free = 0;
+            for (int i = 0; i < count; i++) slabs.floorEntry(free[i]).getValue().free++;
+            boolean spare = false;
+            int freed = 0;
+            for (Slab slab : slabs.values()) {
+                if (slab.free < blocksPerSlab) continue;
+                if (!spare) spare = true;
+                else {
+                    slab.free = -1;
+                    freed++;
+                }
+            }
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (slabs.floorEntry(free[i]).getValue().free >= 0) free[kept++] = free[i];
+            }
+            for (Iterator<Slab> it = slabs.values().iterator(); it.hasNext();) {
+                Slab slab = it.next();
+                if (slab.free < 0) {
+                    nativeFree(slab.offset);
+                    it.remove();
+                }
+            }
+            for (int i = 0; i < kept; i++) {
+                Stripe stripe = stripes[i & (STRIPES - 1)];
+                synchronized (stripe) {
+                    if (stripe.count == stripe.addresses.length) stripe.addresses = Arrays.copyOf(stripe.addresses, stripe.count * 2);
+                    stripe.addresses[stripe.count++] = free[i];
+                }
+            }
+            // trimming again only after the free lists grow by half keeps its cost to a few steps per put
+            int perStripe = kept / STRIPES;
+            trimThreshold = perStripe + Math.max(2 * blocksPerSlab, perStripe / 2);
+            return freed;
         }
     }
 
@@ -73,6 +247,7 @@ public class XMemory implements Memory {
     public XMemory() {}
 
     static {
+        for (int i = 0; i < sizeClasses.length; i++) sizeClasses[i] = new SizeClass(1 << (MIN_CLASS_SHIFT + i));
         cleaner = Cleaner.create();
         try {
             loadNativeLibraryFromJar("XMemory");
@@ -126,35 +301,106 @@ public class XMemory implements Memory {
      * @see com.intel.memory.Memory#allocateByteBuffer(int)
      */
     public ByteBuffer allocateByteBuffer(int size) {
-        long offset = nativeReserveByteBufferMemory(size);
-        ByteBuffer bb = nativeCreateByteBuffer(offset, size);
-        if (bb == null) {  // allocation failed; free memory and try again
-            freeMemory();
-            bb = nativeCreateByteBuffer(offset, size);
+        if (size == 0) return ByteBuffer.allocateDirect(0);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ALLOCATION_TIMEOUT_MS);
+        boolean collected = false;
+        while (true) {
+            long seen = releases.get();
+            ByteBuffer bb = (size <= MAX_POOLED_SIZE) ? allocatePooled(size) : allocateUnpooled(size);
+            if (bb != null) return bb;
+            if (trimAll()) continue;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return null;
+            // buffers the application dropped without releasing only come back through the cleaner
+            if (!collected && remaining < TimeUnit.MILLISECONDS.toNanos(ALLOCATION_TIMEOUT_MS) / 2) {
+                System.gc();
+                collected = true;
+            }
+            if (!awaitRelease(seen, remaining)) return null;
         }
-        if (bb != null) {  // check again if enough memory available after freeing
-            cleaner.register(bb, offset);  // register this DirectByteBuffer so it could be cleaned later automatically
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #allocateByteBuffer(int)} to the pool.  The buffer, and
+     * any duplicate or slice of it, must not be used afterwards.
+     *
+     * @param bb the buffer to release
+     * @throws IllegalArgumentException if the buffer was not allocated here or was already released
+     */
+    public void release(ByteBuffer bb) {
+        if (bb.capacity() == 0) return;
+        BufferReference ref = bb.isDirect() ? cleaner.unregister(nativeBufferAddress(bb)) : null;
+        if (ref == null) throw new IllegalArgumentException("Buffer not allocated by XMemory or already released");
+        reclaim(ref);
+    }
+
+    private ByteBuffer allocatePooled(int size) {
+        int index = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1)) - MIN_CLASS_SHIFT;
+        SizeClass sizeClass = sizeClasses[index];
+        long address;
+        while ((address = sizeClass.take()) == 0) {
+            if (!sizeClass.grow()) return null;
         }
+        ByteBuffer bb = nativeWrap(address, size);
+        cleaner.register(bb, address, 0, index);
         return bb;
     }
 
-    private void freeMemory() {
-        System.gc();
-        try {
-            // thread to sleep for 100 milliseconds for GC to kick in
-            Thread.sleep(100);
-        } catch (Exception e) {
-            System.out.println(e);
+    private ByteBuffer allocateUnpooled(int size) {
+        long offset = nativeReserveByteBufferMemory(size);
+        ByteBuffer bb = offset == 0 ? null : nativeCreateByteBuffer(offset, size);
+        if (bb != null) {
+            cleaner.register(bb, nativeBufferAddress(bb), offset, -1);  // register this DirectByteBuffer so it could be cleaned later automatically
+        }
+        return bb;
+    }
+
+    private static void reclaim(BufferReference ref) {
+        if (ref.sizeClass < 0) nativeFree(ref.offset);
+        else sizeClasses[ref.sizeClass].put(ref.address);
+        releases.incrementAndGet();
+        if (waiters > 0) {
+            synchronized (releaseMonitor) {
+                releaseMonitor.notifyAll();
+            }
+        }
+    }
+
+    // returns true if any size class gave a slab back to the vmem region
+    private static boolean trimAll() {
+        int freed = 0;
+        for (SizeClass sizeClass : sizeClasses) freed += sizeClass.trim(null);
+        return freed > 0;
+    }
+
+    // waits until some buffer is returned after the allocation attempt that read seen, or the time runs out;
+    // returns false if interrupted
+    private static boolean awaitRelease(long seen, long nanos) {
+        synchronized (releaseMonitor) {
+            waiters++;
+            try {
+                long deadline = System.nanoTime() + nanos;
+                while (releases.get() == seen && nanos > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(releaseMonitor, nanos);
+                    nanos = deadline - System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiters--;
+            }
         }
+        return true;
     }
 
     /**
      * Reserves the memory for the ByteBuffer.
      *
      * @param size size of the buffer created
-     * @return the offset of the reserved memory
+     * @return the offset of the reserved memory, or 0 if the pool is exhausted
      */
-    private native long nativeReserveByteBufferMemory(int size);
+    private static native long nativeReserveByteBufferMemory(int size);
 
     /**
      * Creates a ByteBuffer based on the memory at the given offset.
@@ -163,7 +409,24 @@ public class XMemory implements Memory {
      * @param size size of the ByteBuffer
      * @return the ByteBuffer
      */
-    private native ByteBuffer nativeCreateByteBuffer(long offset, int size);
+    private static native ByteBuffer nativeCreateByteBuffer(long offset, int size);
+
+    /**
+     * Creates a zeroed ByteBuffer over pool memory at the given address.
+     *
+     * @param address start of the memory
+     * @param size size of the ByteBuffer
+     * @return the ByteBuffer
+     */
+    private static native ByteBuffer nativeWrap(long address, int size);
+
+    /**
+     * Returns the address of a direct ByteBuffer's memory.
+     *
+     * @param bb the ByteBuffer
+     * @return the address of its first byte
+     */
+    private static native long nativeBufferAddress(ByteBuffer bb);
 
     /**
      * Initialize the memory pool.
@@ -59,6 +59,8 @@ public class XMemoryTest {
         testBufferFlip();
         testBufferComparison();
         testEmptyBuffer();
+        testRelease();
+        testSlabTrim();
     }
 
     public static void testBufferPosition() {
@@ -404,4 +406,45 @@ public class XMemoryTest {
         }
         assert(caught);
     }
+
+    public static void testRelease() {
+        System.out.println("=======================================Testing buffer release=======================================");
+
+        ByteBuffer buf = mem.allocateByteBuffer(100);
+        buf.put("helloworld".getBytes());
+        mem.release(buf);
+
+        boolean caught = false;
+        try {
+            mem.release(buf);
+        } catch (IllegalArgumentException e) {
+            caught = true;
+        }
+        assert(caught);
+
+        ByteBuffer buf2 = mem.allocateByteBuffer(100);
+        assert(buf2.capacity() == 100);
+        while (buf2.hasRemaining()) assert(buf2.get() == 0);
+        mem.release(buf2);
+
+        ByteBuffer big = mem.allocateByteBuffer(XMemory.MAX_POOLED_SIZE + 1);
+        assert(big.capacity() == XMemory.MAX_POOLED_SIZE + 1);
+        mem.release(big);
+    }
+
+    public static void testSlabTrim() {
+        System.out.println("=======================================Testing slab trimming=======================================");
+
+        // fill the region with pooled buffers of one size; a size class that kept its slabs after
+        // they were released would leave nothing for the unpooled buffer below
+        ArrayList<ByteBuffer> bufs = new ArrayList<>();
+        ByteBuffer buf;
+        while ((buf = mem.allocateByteBuffer(XMemory.MAX_POOLED_SIZE)) != null) bufs.add(buf);
+        assert(bufs.size() > 0);
+        for (ByteBuffer b : bufs) mem.release(b);
+
+        ByteBuffer big = mem.allocateByteBuffer(4 * XMemory.SLAB_SIZE);
+        assert(big != null);
+        mem.release(big);
+    }
 }
@@ -23,12 +23,17 @@ package examples.database;
 
 import lib.util.persistent.*;
 import lib.util.persistent.types.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 public final class ColumnFamily extends PersistentObject {
     private static final ObjectField<PersistentSkipListMap> TABLE = new ObjectField<>(PersistentSkipListMap.class);
     private static final IntField COLCOUNT = new IntField();
     private static final ObjectField<PersistentArray> COLNAMES = new ObjectField<>(PersistentArray.class);
-    public static final ObjectType<ColumnFamily> TYPE = ObjectType.withFields(ColumnFamily.class, TABLE, COLCOUNT, COLNAMES);
+    private static final ObjectField<PersistentArray> INDEXES = new ObjectField<>(PersistentArray.class);
+    public static final ObjectType<ColumnFamily> TYPE = ObjectType.withFields(ColumnFamily.class, TABLE, COLCOUNT, COLNAMES, INDEXES);
 
     public ColumnFamily(String[] colNames) {
         super(TYPE);
@@ -40,6 +45,7 @@ public final class ColumnFamily extends PersistentObject {
                 pColNames.set(i, new PersistentString(colNames[i]));
             }
             setObjectField(COLNAMES, pColNames);
+            setObjectField(INDEXES, new PersistentArray<AnyPersistent>(colNames.length));
         });
     }
 
@@ -59,8 +65,61 @@ public final class ColumnFamily extends PersistentObject {
         return (PersistentArray<PersistentString>)getObjectField(COLNAMES);
     }
 
+    public int colIndex(String colName) {
+        PersistentArray<PersistentString> names = colNames();
+        for (int i = 0; i < names.length(); i++) {
+            if (names.get(i).toString().equals(colName)) return i;
+        }
+        return -1;
+    }
+
+    // index maps a column value to the keys of the rows holding it
+    @SuppressWarnings("unchecked")
+    public PersistentSkipListMap<PersistentString, PersistentSkipListMap<Key, Key>> index(int col) {
+        return (PersistentSkipListMap<PersistentString, PersistentSkipListMap<Key, Key>>)indexes().get(col);
+    }
+
+    public boolean isIndexed(int col) {
+        return index(col) != null;
+    }
+
+    // builds an index over the existing rows; later writes keep it current
+    public void createIndex(int col) {
+        if (col <= 0 || col >= colCount()) throw new IllegalArgumentException("cannot index column " + col);
+        Transaction.run(() -> {
+            if (isIndexed(col)) return;
+            PersistentSkipListMap<PersistentString, PersistentSkipListMap<Key, Key>> index = new PersistentSkipListMap<>();
+            indexes().set(col, index);
+            for (Map.Entry<Key, Value> e : table().entrySet()) {
+                addToIndex(index, e.getKey(), cellValue(e.getValue(), col));
+            }
+        }, this);
+    }
+
+    public void dropIndex(int col) {
+        indexes().set(col, null);
+    }
+
+    // keys of the rows whose column value equals val, found through the column index
+    public Iterable<Key> lookup(int col, String val) {
+        PersistentSkipListMap<Key, Key> keys = index(col).get(new PersistentString(val));
+        return keys == null ? Collections.<Key>emptyList() : keys.keySet();
+    }
+
+    // keys of the rows whose column value lies in [from, to], in column value order
+    public Iterable<Key> lookup(int col, String from, String to) {
+        List<Key> result = new ArrayList<>();
+        for (PersistentSkipListMap<Key, Key> keys : index(col).subMap(new PersistentString(from), true, new PersistentString(to), true).values()) {
+            result.addAll(keys.keySet());
+        }
+        return result;
+    }
+
     public void put(Key k, Value v) {
-        table().put(k, v);
+        Transaction.run(() -> {
+            Value old = table().put(k, v);
+            updateIndexes(k, old, v);
+        });
     }
 
     public Value get(Key k) {
@@ -72,10 +131,85 @@ public final class ColumnFamily extends PersistentObject {
     }
 
     public Value remove(Key k) {
-        return table().remove(k);
+        return Transaction.run(() -> {
+            Value old = table().remove(k);
+            updateIndexes(k, old, null);
+            return old;
+        });
     }
 
     public Value putIfAbsent(Key k, Value v) {
-        return table().putIfAbsent(k, v);
+        return Transaction.run(() -> {
+            Value old = table().putIfAbsent(k, v);
+            if (old == null) updateIndexes(k, null, v);
+            return old;
+        });
+    }
+
+    // replaces the cell of column col in the row with key k; returns false if there is no such row
+    public boolean update(Key k, int col, Cell c) {
+        return Transaction.run(() -> {
+            Value v = table().get(k);
+            if (v == null) return false;
+            PersistentSkipListMap<PersistentString, PersistentSkipListMap<Key, Key>> index = index(col);
+            if (index != null) {
+                removeFromIndex(index, k, cellValue(v, col));
+                addToIndex(index, k, c.val());
+            }
+            v.set(col - 1, c);
+            return true;
+        }, this);
+    }
+
+    // Rows are written without the family lock, which is only taken here when there are indexes to maintain.
+    // The check comes after the row has changed, so an index created concurrently either sees the change in
+    // its initial scan or is found here and updated once createIndex releases the lock.
+    private void updateIndexes(Key k, Value old, Value v) {
+        if (!hasIndexes()) return;
+        Transaction.run(() -> {
+            PersistentArray<AnyPersistent> indexes = indexes();
+            for (int col = 1; col < indexes.length(); col++) {
+                PersistentSkipListMap<PersistentString, PersistentSkipListMap<Key, Key>> index = index(col);
+                if (index == null) continue;
+                if (old != null) removeFromIndex(index, k, cellValue(old, col));
+                if (v != null) addToIndex(index, k, cellValue(v, col));
+            }
+        }, this);
+    }
+
+    boolean hasIndexes() {
+        PersistentArray<AnyPersistent> indexes = indexes();
+        for (int col = 1; col < indexes.length(); col++) {
+            if (indexes.get(col) != null) return true;
+        }
+        return false;
+    }
+
+    private static void addToIndex(PersistentSkipListMap<PersistentString, PersistentSkipListMap<Key, Key>> index, Key k, PersistentString val) {
+        if (val == null) return;
+        PersistentSkipListMap<Key, Key> keys = index.get(val);
+        if (keys == null) {
+            keys = new PersistentSkipListMap<>();
+            index.put(val, keys);
+        }
+        keys.put(k, k);
+    }
+
+    private static void removeFromIndex(PersistentSkipListMap<PersistentString, PersistentSkipListMap<Key, Key>> index, Key k, PersistentString val) {
+        if (val == null) return;
+        PersistentSkipListMap<Key, Key> keys = index.get(val);
+        if (keys == null) return;
+        keys.remove(k);
+        if (keys.isEmpty()) index.remove(val);
+    }
+
+    private static PersistentString cellValue(Value v, int col) {
+        Cell c = v.get(col - 1);
+        return c == null ? null : c.val();
+    }
+
+    @SuppressWarnings("unchecked")
+    private PersistentArray<AnyPersistent> indexes() {
+        return (PersistentArray<AnyPersistent>)getObjectField(INDEXES);
     }
 }
@@ -0,0 +1,131 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package examples.database;
+
+import lib.util.persistent.*;
+import lib.util.persistent.types.*;
+
+// a fixed-capacity slice of a ColumnarTable: one primitive array per column and a min/max zone map
+public final class ColumnSegment extends PersistentObject {
+    private static final IntField ROWS = new IntField();
+    private static final ObjectField<PersistentArray> COLUMNS = new ObjectField<>(PersistentArray.class);
+    private static final ObjectField<PersistentLongArray> MINS = new ObjectField<>(PersistentLongArray.class);
+    private static final ObjectField<PersistentLongArray> MAXS = new ObjectField<>(PersistentLongArray.class);
+    public static final ObjectType<ColumnSegment> TYPE = ObjectType.withFields(ColumnSegment.class, ROWS, COLUMNS, MINS, MAXS);
+
+    public ColumnSegment(int[] kinds, int capacity) {
+        super(TYPE);
+        Transaction.run(() -> {
+            PersistentArray<AnyPersistent> columns = new PersistentArray<>(kinds.length);
+            for (int i = 0; i < kinds.length; i++) {
+                // dictionary codes fit in an int
+                columns.set(i, kinds[i] == ColumnarTable.LONG ? new PersistentLongArray(capacity) : new PersistentIntArray(capacity));
+            }
+            setObjectField(COLUMNS, columns);
+            PersistentLongArray mins = new PersistentLongArray(kinds.length);
+            mins.fill(Long.MAX_VALUE);
+            setObjectField(MINS, mins);
+            PersistentLongArray maxs = new PersistentLongArray(kinds.length);
+            maxs.fill(Long.MIN_VALUE);
+            setObjectField(MAXS, maxs);
+        });
+    }
+
+    public ColumnSegment(ObjectPointer<ColumnSegment> p) { super(p); }
+
+    public int rows() {
+        return getIntField(ROWS);
+    }
+
+    public long min(int column) {
+        return mins().get(column);
+    }
+
+    public long max(int column) {
+        return maxs().get(column);
+    }
+
+    // true if some row in the segment may hold a value in [min, max]
+    public boolean mayContain(int column, long min, long max) {
+        return rows() > 0 && min(column) <= max && max(column) >= min;
+    }
+
+    public long get(int column, int row) {
+        AnyPersistent array = columns().get(column);
+        return array instanceof PersistentLongArray ? ((PersistentLongArray)array).get(row) : ((PersistentIntArray)array).get(row);
+    }
+
+    // copies the first count values of the column into dst
+    public void read(int column, long[] dst, int[] codes, int count) {
+        AnyPersistent array = columns().get(column);
+        if (array instanceof PersistentLongArray) {
+            ((PersistentLongArray)array).get(0, dst, 0, count);
+        }
+        else {
+            ((PersistentIntArray)array).get(0, codes, 0, count);
+            for (int i = 0; i < count; i++) dst[i] = codes[i];
+        }
+    }
+
+    // appends rows [off, off + count) of the encoded batch after the current last row
+    void append(long[][] batch, int off, int count) {
+        Transaction.run(() -> {
+            int rows = rows();
+            PersistentArray<AnyPersistent> columns = columns();
+            PersistentLongArray mins = mins();
+            PersistentLongArray maxs = maxs();
+            for (int c = 0; c < batch.length; c++) {
+                long[] values = batch[c];
+                long min = mins.get(c), max = maxs.get(c);
+                for (int i = off; i < off + count; i++) {
+                    min = Math.min(min, values[i]);
+                    max = Math.max(max, values[i]);
+                }
+                AnyPersistent array = columns.get(c);
+                if (array instanceof PersistentLongArray) {
+                    ((PersistentLongArray)array).put(rows, values, off, count);
+                }
+                else {
+                    int[] codes = new int[count];
+                    for (int i = 0; i < count; i++) codes[i] = (int)values[off + i];
+                    ((PersistentIntArray)array).put(rows, codes, 0, count);
+                }
+                mins.set(c, min);
+                maxs.set(c, max);
+            }
+            setIntField(ROWS, rows + count);
+        }, this);
+    }
+
+    @SuppressWarnings("unchecked")
+    private PersistentArray<AnyPersistent> columns() {
+        return getObjectField(COLUMNS);
+    }
+
+    private PersistentLongArray mins() {
+        return getObjectField(MINS);
+    }
+
+    private PersistentLongArray maxs() {
+        return getObjectField(MAXS);
+    }
+}
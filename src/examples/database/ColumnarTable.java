@@ -0,0 +1,266 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package examples.database;
+
+import lib.util.persistent.*;
+import lib.util.persistent.types.*;
+import java.util.BitSet;
+
+// append-only table stored column by column; string columns are dictionary-encoded
+public final class ColumnarTable extends PersistentObject {
+    public static final int LONG = 0;
+    public static final int STRING = 1;
+    static final int SEGMENT_ROWS = 1 << 16;
+    private static final int APPEND_ROWS = 1 << 13;   // rows per append transaction, keeps each undo log small
+
+    private static final ObjectField<PersistentArray> NAMES = new ObjectField<>(PersistentArray.class);
+    private static final ObjectField<PersistentIntArray> KINDS = new ObjectField<>(PersistentIntArray.class);
+    private static final LongField ROWCOUNT = new LongField();
+    private static final ObjectField<PersistentArrayList> SEGMENTS = new ObjectField<>(PersistentArrayList.class);
+    private static final ObjectField<PersistentArray> CODES = new ObjectField<>(PersistentArray.class);
+    private static final ObjectField<PersistentArray> STRINGS = new ObjectField<>(PersistentArray.class);
+    public static final ObjectType<ColumnarTable> TYPE = ObjectType.withFields(ColumnarTable.class, NAMES, KINDS, ROWCOUNT, SEGMENTS, CODES, STRINGS);
+
+    public interface ColumnScanner {
+        // values[0, count) hold the column values of rows [firstRow, firstRow + count)
+        void accept(long firstRow, long[] values, int count);
+    }
+
+    public ColumnarTable(String[] names, int[] kinds) {
+        super(TYPE);
+        if (names.length != kinds.length) throw new IllegalArgumentException("column names and kinds differ in length");
+        Transaction.run(() -> {
+            PersistentArray<PersistentString> pNames = new PersistentArray<>(names.length);
+            PersistentArray<PersistentSIHashMap<PersistentString, PersistentInteger>> codes = new PersistentArray<>(names.length);
+            PersistentArray<PersistentArrayList<PersistentString>> strings = new PersistentArray<>(names.length);
+            for (int i = 0; i < names.length; i++) {
+                pNames.set(i, new PersistentString(names[i]));
+                if (kinds[i] == STRING) {
+                    codes.set(i, new PersistentSIHashMap<>());
+                    strings.set(i, new PersistentArrayList<>());
+                }
+                else if (kinds[i] != LONG) throw new IllegalArgumentException("unknown column kind " + kinds[i]);
+            }
+            setObjectField(NAMES, pNames);
+            setObjectField(KINDS, new PersistentIntArray(kinds));
+            setObjectField(SEGMENTS, new PersistentArrayList<ColumnSegment>());
+            setObjectField(CODES, codes);
+            setObjectField(STRINGS, strings);
+        });
+    }
+
+    public ColumnarTable(ObjectPointer<ColumnarTable> p) { super(p); }
+
+    public long rowCount() {
+        return getLongField(ROWCOUNT);
+    }
+
+    public int columnCount() {
+        return kinds().length();
+    }
+
+    @SuppressWarnings("unchecked")
+    public PersistentArray<PersistentString> names() {
+        return (PersistentArray<PersistentString>)getObjectField(NAMES);
+    }
+
+    public int kind(int column) {
+        return kinds().get(column);
+    }
+
+    // returns the index of the named column, or -1 if there is none
+    public int column(String name) {
+        PersistentArray<PersistentString> names = names();
+        for (int i = 0; i < names.length(); i++) {
+            if (names.get(i).toString().equals(name)) return i;
+        }
+        return -1;
+    }
+
+    // appends count rows; columns[i] is a long[] for LONG columns and a String[] for STRING columns
+    public void append(int count, Object... columns) {
+        int[] kinds = kinds().toArray();
+        if (columns.length != kinds.length) throw new IllegalArgumentException("expected " + kinds.length + " columns, got " + columns.length);
+        for (int c = 0; c < kinds.length; c++) {
+            int length = kinds[c] == LONG ? ((long[])columns[c]).length : ((String[])columns[c]).length;
+            if (length < count) throw new IllegalArgumentException("column " + c + " has fewer than " + count + " values");
+        }
+        int[] done = new int[1];
+        while (done[0] < count) {
+            Transaction.run(() -> {
+                long rows = rowCount();
+                int room = SEGMENT_ROWS - (int)(rows % SEGMENT_ROWS);
+                int n = Math.min(Math.min(count - done[0], APPEND_ROWS), room);
+                long[][] batch = new long[kinds.length][n];
+                for (int c = 0; c < kinds.length; c++) {
+                    if (kinds[c] == LONG) System.arraycopy((long[])columns[c], done[0], batch[c], 0, n);
+                    else encode(c, (String[])columns[c], done[0], batch[c], n);
+                }
+                ColumnSegment segment = room == SEGMENT_ROWS ? addSegment(kinds) : lastSegment();
+                segment.append(batch, 0, n);
+                setLongField(ROWCOUNT, rows + n);
+                done[0] += n;
+            }, this);
+        }
+    }
+
+    public long getLong(int column, long row) {
+        checkRow(row);
+        return segment(row).get(column, (int)(row % SEGMENT_ROWS));
+    }
+
+    public String getString(int column, long row) {
+        if (kind(column) != STRING) throw new IllegalArgumentException("column " + column + " is not a string column");
+        return strings(column).get((int)getLong(column, row)).toString();
+    }
+
+    // returns the dictionary code of s in a STRING column, or -1 if no row holds s
+    public int code(int column, String s) {
+        PersistentInteger code = codes(column).get(s, PersistentString.class);
+        return code == null ? -1 : code.intValue();
+    }
+
+    // hands the column to scanner one segment at a time
+    public void scan(int column, ColumnScanner scanner) {
+        scan(column, Long.MIN_VALUE, Long.MAX_VALUE, scanner);
+    }
+
+    // as scan(column, scanner) but skips segments whose zone map excludes [min, max]
+    public void scan(int column, long min, long max, ColumnScanner scanner) {
+        long rows = rowCount();
+        PersistentArrayList<ColumnSegment> segments = segments();
+        long[] values = new long[SEGMENT_ROWS];
+        int[] codes = kind(column) == STRING ? new int[SEGMENT_ROWS] : null;
+        for (int s = 0; (long)s * SEGMENT_ROWS < rows; s++) {
+            ColumnSegment segment = segments.get(s);
+            if (!segment.mayContain(column, min, max)) continue;
+            long firstRow = (long)s * SEGMENT_ROWS;
+            int count = (int)Math.min(segment.rows(), rows - firstRow);
+            segment.read(column, values, codes, count);
+            scanner.accept(firstRow, values, count);
+        }
+    }
+
+    // returns the rows whose column value lies in [min, max]
+    public BitSet filter(int column, long min, long max) {
+        BitSet result = new BitSet();
+        scan(column, min, max, (firstRow, values, count) -> {
+            int base = (int)firstRow;
+            for (int i = 0; i < count; i++) {
+                long v = values[i];
+                if (v >= min && v <= max) result.set(base + i);
+            }
+        });
+        return result;
+    }
+
+    public BitSet filterEquals(int column, String s) {
+        int code = code(column, s);
+        return code == -1 ? new BitSet() : filter(column, code, code);
+    }
+
+    public long sum(int column) {
+        long[] sum = new long[1];
+        scan(column, (firstRow, values, count) -> {
+            long acc = 0;
+            for (int i = 0; i < count; i++) acc += values[i];
+            sum[0] += acc;
+        });
+        return sum[0];
+    }
+
+    // sums the column over the selected rows, reading only segments that hold a selected row
+    public long sum(int column, BitSet rows) {
+        long[] sum = new long[1];
+        long total = rowCount();
+        PersistentArrayList<ColumnSegment> segments = segments();
+        long[] values = new long[SEGMENT_ROWS];
+        int[] codes = kind(column) == STRING ? new int[SEGMENT_ROWS] : null;
+        for (int s = 0; (long)s * SEGMENT_ROWS < total; s++) {
+            int firstRow = s * SEGMENT_ROWS;
+            int next = rows.nextSetBit(firstRow);
+            if (next == -1) break;
+            if (next >= firstRow + SEGMENT_ROWS) continue;
+            ColumnSegment segment = segments.get(s);
+            int count = (int)Math.min(segment.rows(), total - firstRow);
+            segment.read(column, values, codes, count);
+            long acc = 0;
+            for (int i = next; i >= 0 && i < firstRow + count; i = rows.nextSetBit(i + 1)) acc += values[i - firstRow];
+            sum[0] += acc;
+        }
+        return sum[0];
+    }
+
+    private void encode(int column, String[] src, int off, long[] dst, int count) {
+        PersistentSIHashMap<PersistentString, PersistentInteger> codes = codes(column);
+        PersistentArrayList<PersistentString> strings = strings(column);
+        for (int i = 0; i < count; i++) {
+            String s = src[off + i];
+            PersistentInteger code = codes.get(s, PersistentString.class);
+            if (code == null) {
+                PersistentString ps = new PersistentString(s);
+                code = new PersistentInteger(strings.size());
+                strings.add(ps);
+                codes.put(ps, code);
+            }
+            dst[i] = code.intValue();
+        }
+    }
+
+    private ColumnSegment addSegment(int[] kinds) {
+        ColumnSegment segment = new ColumnSegment(kinds, SEGMENT_ROWS);
+        segments().add(segment);
+        return segment;
+    }
+
+    private ColumnSegment lastSegment() {
+        PersistentArrayList<ColumnSegment> segments = segments();
+        return segments.get(segments.size() - 1);
+    }
+
+    private ColumnSegment segment(long row) {
+        return segments().get((int)(row / SEGMENT_ROWS));
+    }
+
+    private void checkRow(long row) {
+        if (row < 0 || row >= rowCount()) throw new IndexOutOfBoundsException("row " + row + " out of range [0, " + rowCount() + ")");
+    }
+
+    private PersistentIntArray kinds() {
+        return getObjectField(KINDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private PersistentArrayList<ColumnSegment> segments() {
+        return (PersistentArrayList<ColumnSegment>)getObjectField(SEGMENTS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private PersistentSIHashMap<PersistentString, PersistentInteger> codes(int column) {
+        return ((PersistentArray<PersistentSIHashMap<PersistentString, PersistentInteger>>)getObjectField(CODES)).get(column);
+    }
+
+    @SuppressWarnings("unchecked")
+    private PersistentArrayList<PersistentString> strings(int column) {
+        return ((PersistentArray<PersistentArrayList<PersistentString>>)getObjectField(STRINGS)).get(column);
+    }
+}
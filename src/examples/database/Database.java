@@ -32,6 +32,7 @@ import lib.util.persistent.spi.*;
 public class Database {
 
     static PersistentSkipListMap<PersistentString, ColumnFamily> keyspace;
+    static final int BATCH_ROWS = 64;
 
     public static void main(String[] args) {
         PersistentMemoryProvider.getDefaultProvider().getHeap().open();
@@ -51,26 +52,7 @@ public class Database {
         }
 
         if (args.length >= 2) {
-            Thread[] threads = new Thread[numThreads];
-            for (int i = 0; i < numThreads; i++) {
-                final int ii = i;
-                threads[i] = new Thread( () -> {
-                    try (Stream<String> stream = Files.lines(Paths.get(args[1]))) {
-                        stream.forEach(examples.database.Database::handleCommand);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                });
-                threads[i].start();
-            }
-            for (int i = 0; i < numThreads; i++) {
-                try {
-                    threads[i].join();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    System.exit(-1);
-                }
-            }
+            runScript(args[1], numThreads);
             return;
         }
 
@@ -82,13 +64,150 @@ public class Database {
 
         boolean exit = false;
         while (!exit) {
-            String cmdline = c.readLine("Command (CREATE TABLE, SELECT, UPDATE, INSERT INTO, DELETE FROM, LIST, DROP TABLE, BULK INSERT, EXIT): ");
+            String cmdline = c.readLine("Command (CREATE TABLE, CREATE INDEX, SELECT, UPDATE, INSERT INTO, DELETE FROM, LIST, DROP TABLE, BULK INSERT, EXIT): ");
             exit = handleCommand(cmdline);
         }
     }
 
+    // replays a script; each run of consecutive INSERTs is partitioned by key hash across numThreads
+    // workers, any other command waits for the inserts before it and runs on its own
+    static void runScript(String fileName, int numThreads) {
+        List<String[]> inserts = new ArrayList<>();
+        long commands = 0, rows = 0;
+        long start = System.nanoTime();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cmdArgs = tokenize(line);
+                if (cmdArgs.length == 0) continue;
+                commands++;
+                if (isInsert(cmdArgs)) {
+                    inserts.add(cmdArgs);
+                    continue;
+                }
+                rows += insertAll(inserts, numThreads);
+                inserts.clear();
+                if (handleCommand(cmdArgs)) break;
+            }
+            rows += insertAll(inserts, numThreads);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d commands (%d rows inserted) in %.3f s with %d threads: %.0f commands/s, %.0f rows/s%n",
+            commands, rows, seconds, numThreads, commands / seconds, rows / seconds);
+    }
+
+    // well-formed INSERTs with a key; anything else goes through handleCommand and its usage messages
+    static boolean isInsert(String[] cmdArgs) {
+        return cmdArgs.length >= 4 &&
+               (cmdArgs[0].equals("INSERT") || cmdArgs[0].equals("insert")) &&
+               (cmdArgs[1].equals("INTO") || cmdArgs[1].equals("into"));
+    }
+
+    // inserts rows BATCH_ROWS to a transaction; rows with the same key go to the same worker, in script order
+    static long insertAll(List<String[]> inserts, int numThreads) {
+        if (inserts.isEmpty()) return 0;
+        List<List<String[]>> partitions = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) partitions.add(new ArrayList<>());
+        for (String[] cmdArgs : inserts) {
+            partitions.get((cmdArgs[3].hashCode() & 0x7fffffff) % numThreads).add(cmdArgs);
+        }
+        long[] inserted = new long[numThreads];
+        Throwable[] failures = new Throwable[numThreads];
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int ii = i;
+            threads[i] = new Thread( () -> {
+                List<String[]> partition = partitions.get(ii);
+                Map<String, ColumnFamily> tables = new HashMap<>();
+                try {
+                    for (int from = 0; from < partition.size(); from += BATCH_ROWS) {
+                        List<String[]> batch = partition.subList(from, Math.min(from + BATCH_ROWS, partition.size()));
+                        inserted[ii] += insertBatch(batch, tables);
+                    }
+                } catch (Throwable t) {
+                    failures[ii] = t;
+                }
+            });
+            threads[i].start();
+        }
+        long total = 0;
+        for (int i = 0; i < numThreads; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            total += inserted[i];
+            if (failures[i] != null) {
+                // the failed batch was rolled back; the worker's later rows were not inserted
+                System.out.println("Insert worker " + i + " failed after " + inserted[i] + " of " + partitions.get(i).size() + " rows:");
+                failures[i].printStackTrace(System.out);
+            }
+        }
+        return total;
+    }
+
+    // Rows of unindexed tables are put in one transaction per batch; ColumnFamily.put takes no lock for them,
+    // so workers loading the same table do not wait for each other.  A row of an indexed table is put in a
+    // transaction of its own after the batch, since maintaining the indexes locks the whole table until commit.
+    static int insertBatch(List<String[]> batch, Map<String, ColumnFamily> tables) {
+        List<ColumnFamily> cfs = new ArrayList<>(batch.size());
+        List<Key> keys = new ArrayList<>(batch.size());
+        List<Value> values = new ArrayList<>(batch.size());
+        int batched = Transaction.run(() -> {
+            cfs.clear();
+            keys.clear();
+            values.clear();
+            int count = 0;
+            for (String[] cmdArgs : batch) {
+                ColumnFamily cf = tables.get(cmdArgs[2]);
+                if (cf == null && (cf = insertTarget(cmdArgs)) != null) tables.put(cmdArgs[2], cf);
+                if (cf == null || !checkInsert(cf, cmdArgs)) continue;
+                Key k = new Key(cmdArgs[3]);
+                Value v = newValue(cf, cmdArgs);
+                if (cf.hasIndexes()) {
+                    cfs.add(cf);
+                    keys.add(k);
+                    values.add(v);
+                }
+                else {
+                    cf.put(k, v);
+                    count++;
+                }
+            }
+            return count;
+        });
+        for (int i = 0; i < cfs.size(); i++) {
+            cfs.get(i).put(keys.get(i), values.get(i));
+        }
+        return batched + cfs.size();
+    }
+
+    // splits a command line on spaces, dropping empty tokens
+    static String[] tokenize(String cmdline) {
+        List<String> tokens = new ArrayList<>();
+        int len = cmdline.length();
+        int i = 0;
+        while (i < len) {
+            while (i < len && cmdline.charAt(i) == ' ') i++;
+            int start = i;
+            while (i < len && cmdline.charAt(i) != ' ') i++;
+            if (i > start) tokens.add(cmdline.substring(start, i));
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
     static boolean handleCommand(String cmdline) {
-        String[] cmdArgs = cmdline.split(" ");
+        String[] cmdArgs = tokenize(cmdline);
+        if (cmdArgs.length == 0) return false;
+        return handleCommand(cmdArgs);
+    }
+
+    static boolean handleCommand(String[] cmdArgs) {
         switch(cmdArgs[0]) {
             case "CREATE":
             case "create":
@@ -126,12 +245,16 @@ public class Database {
             case "exit":
                 return true;
             default:
-                System.out.println("Command should start with one of CREATE TABLE, SELECT, UPDATE, INSERT INTO, DELETE FROM, LIST, DROP TABLE, BULK INSERT, or EXIT!");
+                System.out.println("Command should start with one of CREATE TABLE, CREATE INDEX, SELECT, UPDATE, INSERT INTO, DELETE FROM, LIST, DROP TABLE, BULK INSERT, or EXIT!");
         }
         return false;
     }
 
     static void handleCreate(String[] args) {
+        if (args.length >= 2 && (args[1].equals("INDEX") || args[1].equals("index"))) {
+            handleCreateIndex(args);
+            return;
+        }
         if (args.length < 4) {
             System.out.println("usage: CREATE TABLE <table name> <key column name> [value column name1] ... [value column name n]");
             return;
@@ -150,58 +273,132 @@ public class Database {
         });
     }
 
+    static void handleCreateIndex(String[] args) {
+        if (args.length != 5 || !(args[2].equals("ON") || args[2].equals("on"))) {
+            System.out.println("usage: CREATE INDEX ON <table name> <value column name>");
+            return;
+        }
+        ColumnFamily cf = keyspace.get(new PersistentString(args[3]));
+        if (cf == null) {
+            System.out.println("Column family " + args[3] + " does not exist.");
+            return;
+        }
+        int col = cf.colIndex(args[4]);
+        if (col <= 0) {
+            System.out.println("Column " + args[4] + " is not a value column of table " + args[3] + ".");
+            return;
+        }
+        cf.createIndex(col);
+    }
+
     static void handleInsert(String[] args) {
+        ColumnFamily cf = insertTarget(args);
+        if (cf == null || !checkInsert(cf, args)) return;
+        // ignore 0th ("INSERT") and 1st ("INTO")
+
+        if (args.length == 3) return;   // do nothing
+        Transaction.run(() -> {
+            cf.put(new Key(args[3]), newValue(cf, args));
+        });
+    }
+
+    // returns the table an INSERT names, or null after reporting why there is none
+    static ColumnFamily insertTarget(String[] args) {
         if (args.length < 3) {
             System.out.println("usage: INSERT INTO <table name> [key value] [column value 1] ... [column value n]");
-            return;
+            return null;
         }
         if (!(args[1].equals("INTO")) &&
             !(args[1].equals("into"))) {
             System.out.println("usage: INSERT INTO <table name> [key value] [column value 1] ... [column value n]");
-            return;
+            return null;
         }
         ColumnFamily cf = keyspace.get(new PersistentString(args[2]));
         if (cf == null) {
             System.out.println("Column family " + args[2] + " does not exist.");
-            return;
         }
+        return cf;
+    }
+
+    static boolean checkInsert(ColumnFamily cf, String[] args) {
         if (args.length > (3 + cf.colCount())) {
             System.out.println("Too many columns in INSERT");
-            return;
+            return false;
         }
-        // ignore 0th ("INSERT") and 1st ("INTO")
+        return true;
+    }
 
-        if (args.length == 3) return;   // do nothing
-        Transaction.run(() -> {
-            Key key = new Key(args[3]);
-            Value value = new Value(cf.colCount()-1);
-            long ts = System.currentTimeMillis();
-            // example: INSERT INTO <tableName> <key> <vals>
-            // i starts at the 4th element, where vals start
-            // i-3 because colNames() include key column name, so start counting at 1
-            for (int i = 4; i < args.length; i++) {
-                Cell c = new Cell(cf.colNames().get(i-3), args[i], ts);
-                value.set(i-4, c);
-            }
-            cf.put(key, value);
-        });
+    static Value newValue(ColumnFamily cf, String[] args) {
+        Value value = new Value(cf.colCount()-1);
+        long ts = System.currentTimeMillis();
+        // example: INSERT INTO <tableName> <key> <vals>
+        // i starts at the 4th element, where vals start
+        // i-3 because colNames() include key column name, so start counting at 1
+        for (int i = 4; i < args.length; i++) {
+            Cell c = new Cell(cf.colNames().get(i-3), args[i], ts);
+            value.set(i-4, c);
+        }
+        return value;
     }
 
     static void handleSelect(String[] args) {
-        if (args.length != 4) {
-            System.out.println("usage: SELECT * FROM <table name>");
+        if (args.length != 4 && args.length != 8 && args.length != 10) {
+            System.out.println("usage: SELECT * FROM <table name> [WHERE <column name> = <value> | WHERE <column name> BETWEEN <value> AND <value>]");
             return;
         }
 
-        String tableName = args[args.length-1];
-        String[] cols = Arrays.copyOfRange(args, 1, args.length-2);
+        String tableName = args[3];
+        String[] cols = Arrays.copyOfRange(args, 1, 2);
         ColumnFamily cf = keyspace.get(new PersistentString(tableName));
         if (cf == null) {
             System.out.println("Column family " + tableName + " does not exist.");
             return;
         }
+        if (args.length == 4) {
+            printTable(cf, cols);
+            return;
+        }
 
-        printTable(cf, cols);
+        boolean range = args.length == 10;
+        if (!(args[4].equals("WHERE") || args[4].equals("where")) ||
+            (!range && !args[6].equals("=")) ||
+            (range && (!(args[6].equals("BETWEEN") || args[6].equals("between")) || !(args[8].equals("AND") || args[8].equals("and"))))) {
+            System.out.println("usage: SELECT * FROM <table name> [WHERE <column name> = <value> | WHERE <column name> BETWEEN <value> AND <value>]");
+            return;
+        }
+        int col = cf.colIndex(args[5]);
+        if (col < 0) {
+            System.out.println("Column " + args[5] + " does not exist in table " + tableName + ".");
+            return;
+        }
+        String from = args[7];
+        String to = range ? args[9] : args[7];
+        printHeader(cf, cols);
+        if (col == 0) {
+            // primary key: probe the table itself
+            Key lo = new Key(from);
+            Key hi = new Key(to);
+            if (lo.compareTo(hi) > 0) return;
+            for (Map.Entry<Key, Value> e : cf.table().subMap(lo, true, hi, true).entrySet()) {
+                System.out.println(e.getKey() + ", " + e.getValue());
+            }
+        } else if (cf.isIndexed(col)) {
+            if (from.compareTo(to) > 0) return;
+            for (Key k : range ? cf.lookup(col, from, to) : cf.lookup(col, from)) {
+                Value v = cf.get(k);
+                if (v != null) System.out.println(k + ", " + v);
+            }
+        } else {
+            // no index: scan every row
+            for (Map.Entry<Key, Value> e : cf.table().entrySet()) {
+                Cell c = e.getValue().get(col - 1);
+                if (c == null) continue;
+                String val = c.val().toString();
+                if (val.compareTo(from) >= 0 && val.compareTo(to) <= 0) {
+                    System.out.println(e.getKey() + ", " + e.getValue());
+                }
+            }
+        }
     }
 
     static void printTable(ColumnFamily cf, String[] cols) {
@@ -267,10 +464,9 @@ public class Database {
             PersistentString fieldName = new PersistentString(args[3]);
             String fieldValue = args[4];
             Cell newCell = new Cell(fieldName, fieldValue, ts);
-            Value val = cf.get(key);
             for (int i = 1; i < cf.colNames().length(); i++) {
                 if (cf.colNames().get(i).equals(fieldName)) {
-                    val.set(i-1, newCell);
+                    cf.update(key, i, newCell);
                     return;
                 }
             }
@@ -165,3 +165,47 @@ JNIEXPORT jlong JNICALL Java_lib_xpersistent_XHeap_nativeDebugPool
 
     return mr_count;
 }
+
+JNIEXPORT jlong JNICALL Java_lib_xpersistent_XHeap_nativeUsableSize
+  (JNIEnv *env, jobject obj, jlong region_offset)
+{
+    PMEMoid oid = {get_uuid_lo(), (uint64_t)region_offset};
+    return (jlong)pmemobj_alloc_usable_size(oid);
+}
+
+JNIEXPORT void JNICALL Java_lib_xpersistent_XHeap_nativeUsage
+  (JNIEnv *env, jobject obj, jlongArray usage)
+{
+    PMEMoid oid;
+    jlong counts[2] = {0, 0};
+
+    POBJ_FOREACH(pool, oid) {
+        counts[0]++;
+        counts[1] += pmemobj_alloc_usable_size(oid);
+    }
+    env->SetLongArrayRegion(usage, 0, 2, counts);
+}
+
+JNIEXPORT jlongArray JNICALL Java_lib_xpersistent_XHeap_nativeRegions
+  (JNIEnv *env, jobject obj, jboolean objects)
+{
+    uint64_t type_num = objects == JNI_TRUE ? OBJECT_TYPE_OFFSET : CHAR_TYPE_OFFSET;
+    PMEMoid oid;
+    jsize count = 0;
+
+    POBJ_FOREACH(pool, oid) {
+        if (pmemobj_type_num(oid) == type_num) count++;
+    }
+    jlongArray ans = env->NewLongArray(2 * count);
+    if (ans == NULL) return NULL;
+    jlong* regions = env->GetLongArrayElements(ans, NULL);
+    jsize i = 0;
+    POBJ_FOREACH(pool, oid) {
+        if (pmemobj_type_num(oid) == type_num && i < 2 * count) {
+            regions[i++] = oid.off;
+            regions[i++] = pmemobj_alloc_usable_size(oid);
+        }
+    }
+    env->ReleaseLongArrayElements(ans, regions, 0);
+    return ans;
+}
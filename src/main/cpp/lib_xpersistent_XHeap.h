@@ -57,6 +57,15 @@ JNIEXPORT void JNICALL Java_lib_xpersistent_XHeap_nativeFromByteArrayMemcpy
 JNIEXPORT jlong JNICALL Java_lib_xpersistent_XHeap_nativeDebugPool
   (JNIEnv *, jobject, jboolean);
 
+JNIEXPORT jlong JNICALL Java_lib_xpersistent_XHeap_nativeUsableSize
+  (JNIEnv *, jobject, jlong);
+
+JNIEXPORT void JNICALL Java_lib_xpersistent_XHeap_nativeUsage
+  (JNIEnv *, jobject, jlongArray);
+
+JNIEXPORT jlongArray JNICALL Java_lib_xpersistent_XHeap_nativeRegions
+  (JNIEnv *, jobject, jboolean);
+
 JNIEXPORT void JNICALL Java_lib_xpersistent_XHeap_nativeCopyBytesToAddress
   (JNIEnv *, jobject, jbyteArray, jint, jlong, jint);
 
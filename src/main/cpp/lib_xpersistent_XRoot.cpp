@@ -56,11 +56,11 @@ JNIEXPORT void JNICALL Java_lib_xpersistent_XRoot_nativeCleanHeap
 
     TOID(object) region;
     POBJ_FOREACH_TYPE(pool, region) {
-        uint64_t classInfoAddr = *((uint64_t*)((uint64_t)pmemobj_direct(region.oid)));
-        if (classInfoAddr == 0U) {
+        uint32_t classId = *((uint32_t*)((uint64_t)pmemobj_direct(region.oid)));
+        if (classId == 0U) {
             POBJ_FREE(&region);  // construction was interrupted between allocation and initialization
         } else {
-            int ref_count = *((int*)((uint64_t)pmemobj_direct(region.oid) + 8U));
+            int ref_count = *((int*)((uint64_t)pmemobj_direct(region.oid) + 4U));
             if (ref_count == 0) {
                 env->CallLongMethod(root, methodID, region.oid.off);
             }
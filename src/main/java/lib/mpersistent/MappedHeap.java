@@ -0,0 +1,591 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.mpersistent;
+
+import lib.util.persistent.AnyPersistent;
+import lib.util.persistent.PersistentHeap;
+import lib.util.persistent.MemoryRegion;
+import lib.util.persistent.PersistenceException;
+import lib.util.persistent.Root;
+import lib.util.persistent.Transaction;
+import lib.util.persistent.ObjectDirectory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// A heap kept in an ordinary file mapped with FileChannel.map; durability comes from
+// MappedByteBuffer.force() and atomicity from the per-transaction undo logs in MappedTransaction.
+// Data is read and written through one mapping per SEGMENT_SIZE of the file, but forced through
+// the header mapping and WINDOW_SIZE windows mapped on first use, so an msync covers only the
+// pages near the range being forced rather than a whole segment.  Windows start at LOG_START and
+// are LOG_SLOT_SIZE long, so each log slot is exactly one window.
+//
+// File layout:
+//   [0, LOG_START)             header: magic, size, root region address
+//   [LOG_START, HEAP_START)    LOG_SLOTS undo log slots of LOG_SLOT_SIZE bytes
+//   [HEAP_START, size)         blocks, each a 16-byte header (block size, flags) followed by the region;
+//                              a zero block size marks the end of the blocks handed out so far
+//
+// A free block is split when a smaller block is taken from it, and a freed block absorbs the large free
+// blocks after it in its segment; neighbouring free blocks of any size are merged when the heap is opened.
+// No block crosses a segment boundary, so a region is at most SEGMENT_SIZE less its header.
+public class MappedHeap implements PersistentHeap {
+    private static final long MAGIC = 0x31505041_4d4a4350L;   // "PCJMAPP1"
+    private static final long MAGIC_OFFSET = 0;
+    private static final long SIZE_OFFSET = 8;
+    private static final long ROOT_OFFSET = 16;
+
+    static final int SEGMENT_SHIFT = 30;
+    static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+    static final long LOG_START = 1L << 20;
+    static final int LOG_SLOTS = 32;
+    static final int WINDOW_SHIFT = 22;
+    static final int LOG_SLOT_SIZE = 1 << WINDOW_SHIFT;
+    static final long HEAP_START = LOG_START + (long)LOG_SLOTS * LOG_SLOT_SIZE;
+
+    static final int BLOCK_HEADER_SIZE = 16;
+    private static final long BLOCK_SIZE_OFFSET = 0;
+    static final long BLOCK_FLAGS_OFFSET = 8;
+    static final long FREE = 0;
+    static final long ALLOCATED = 1;
+    static final long OBJECT = 2;
+    static final long LOG = 4;
+    private static final long MIN_SPLIT = 2 * BLOCK_HEADER_SIZE;
+    private static final int SMALL_BLOCK_LIMIT = 4096;
+
+    private FileChannel channel;
+    private MappedByteBuffer[] segments;
+    private MappedByteBuffer header;
+    private AtomicReferenceArray<MappedByteBuffer> windows;
+    private long size;
+    private volatile long top;
+    private final Object topLock = new Object();
+    private final ConcurrentLinkedQueue<Long>[] smallFree;
+    private final TreeMap<Long, ArrayDeque<Long>> largeFree;
+    private final ArrayBlockingQueue<Integer> freeLogSlots;
+    private final AtomicLong logSeq;
+    private final ThreadLocal<MappedTransaction> current;
+    private final LongAdder allocatedBytes;
+    private final LongAdder allocationCount;
+    private Root root;
+    private volatile boolean open;
+
+    @SuppressWarnings("unchecked")
+    public MappedHeap() {
+        this.smallFree = new ConcurrentLinkedQueue[SMALL_BLOCK_LIMIT / 16 + 1];
+        for (int i = 0; i < smallFree.length; i++) smallFree[i] = new ConcurrentLinkedQueue<>();
+        this.largeFree = new TreeMap<>();
+        this.freeLogSlots = new ArrayBlockingQueue<>(LOG_SLOTS);
+        this.logSeq = new AtomicLong();
+        this.current = new ThreadLocal<>();
+        this.allocatedBytes = new LongAdder();
+        this.allocationCount = new LongAdder();
+    }
+
+    public synchronized void open() {
+        if (open) return;
+
+        String path;
+        long size;
+
+        try {
+            FileInputStream propInput = new FileInputStream("config.properties");
+            Properties prop = new Properties();
+            prop.load(propInput);
+            propInput.close();
+
+            path = System.getProperty("mapped.path", prop.getProperty("mapped.path"));
+            size = Long.parseLong(System.getProperty("mapped.size", prop.getProperty("mapped.size")));
+        } catch (Exception e) {
+            path = System.getProperty("java.io.tmpdir") + "/persistent_heap.mapped";
+            size = 2L*1024L*1024L*1024L;
+            System.out.println("Could not properly load mapped.path and mapped.size from config.properties file; using default values for pool path (" + path + ") and size (2GB).");
+        }
+
+        System.out.print("Opening heap... ");
+        map(path, size);
+        this.open = true;
+        long seq = 0;
+        for (int i = 0; i < LOG_SLOTS; i++) {
+            seq = Math.max(seq, MappedTransaction.recover(this, i));
+            freeLogSlots.add(i);
+        }
+        logSeq.set(seq);
+        rebuildFreeLists();
+        lib.util.persistent.ClassInfo.init();
+        lib.util.persistent.CycleCollector.init();
+        System.out.print("Cleaning up heap... ");
+        ((MappedRoot)getRoot()).clean();
+        lib.util.persistent.CycleCollector.start();
+        System.out.println("Heap opened.");
+    }
+
+    public synchronized void close() {
+        if (!open) return;
+        this.open = false;
+        for (MappedByteBuffer segment : segments) segment.force();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new PersistenceException("Failed to close heap: " + e);
+        }
+    }
+
+    public MemoryRegion allocateRegion(long size) {
+        if (!open) open();
+        return Transaction.run(() -> {
+            MappedTransaction tx = transaction();
+            long block = allocateBlock(size, FREE);
+            tx.addDirtyRange(block + BLOCK_HEADER_SIZE, size);
+            tx.putLong(block + BLOCK_FLAGS_OFFSET, ALLOCATED);
+            tx.allocated(block);
+            account(block, 1);
+            return new MappedMemoryRegion(this, block + BLOCK_HEADER_SIZE);
+        });
+    }
+
+    public MemoryRegion allocateObjectRegion(long size) {
+        if (!open) open();
+        long block = allocateBlock(size, ALLOCATED | OBJECT);
+        account(block, 1);
+        return new MappedMemoryRegion(this, block + BLOCK_HEADER_SIZE);
+    }
+
+    public void freeRegion(MemoryRegion region) {
+        if (!open) open();
+        long block = region.addr() - BLOCK_HEADER_SIZE;
+        Transaction.run(() -> {
+            MappedTransaction tx = transaction();
+            if ((getLong(block + BLOCK_FLAGS_OFFSET) & ALLOCATED) == 0) throw new PersistenceException("Failed to free region");
+            tx.putLong(block + BLOCK_FLAGS_OFFSET, FREE);
+            tx.freed(block);
+        });
+    }
+
+    public synchronized Root getRoot() {
+        if (root == null) {
+            if (!open) open();
+            if (root == null) root = new MappedRoot(this);
+            ObjectDirectory.initialize();
+        }
+        return root;
+    }
+
+    public long allocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    public long allocationCount() {
+        return allocationCount.sum();
+    }
+
+    public void forEachRegion(RegionVisitor visitor) {
+        if (!open) open();
+        long block = HEAP_START;
+        long end = top;
+        while (block < end) {
+            long blockSize = getLong(block + BLOCK_SIZE_OFFSET);
+            long flags = getLong(block + BLOCK_FLAGS_OFFSET);
+            if ((flags & (ALLOCATED | LOG)) == ALLOCATED) visitor.visit(block + BLOCK_HEADER_SIZE, blockSize - BLOCK_HEADER_SIZE, (flags & OBJECT) != 0);
+            block += blockSize;
+        }
+    }
+
+    public MemoryRegion regionFromAddress(long addr) {
+        return new MappedMemoryRegion(this, addr);
+    }
+
+    public void memcpy(MemoryRegion srcRegion, long srcOffset, MemoryRegion destRegion, long destOffset, long length) {
+        long src = srcRegion.addr() + srcOffset;
+        long dest = destRegion.addr() + destOffset;
+        Transaction.run(() -> {
+            transaction().addRange(dest, length);
+            copy(segment(src), index(src), segment(dest), index(dest), (int)length);
+        });
+    }
+
+    public void memcpy(MemoryRegion srcRegion, long srcOffset, byte[] destArray, int destOffset, int length) {
+        long src = srcRegion.addr() + srcOffset;
+        ByteBuffer b = segment(src).duplicate();
+        b.position(index(src));
+        b.get(destArray, destOffset, length);
+    }
+
+    public void memcpy(byte[] srcArray, int srcOffset, MemoryRegion destRegion, long destOffset, int length) {
+        Transaction.run(() -> {
+            copyBytesToRegion(srcArray, srcOffset, destRegion, destOffset, length);
+        });
+    }
+
+    // must be called from within a transaction
+    public void copyBytesToRegion(byte[] bytes, int startIndex, MemoryRegion destRegion, long destOffset, int length) {
+        long dest = destRegion.addr() + destOffset;
+        transaction().addRange(dest, length);
+        ByteBuffer b = segment(dest).duplicate();
+        b.position(index(dest));
+        b.put(bytes, startIndex, length);
+    }
+
+    // raw access by heap address
+
+    MappedByteBuffer segment(long address) {
+        return segments[(int)(address >>> SEGMENT_SHIFT)];
+    }
+
+    static int index(long address) {
+        return (int)(address & SEGMENT_MASK);
+    }
+
+    // absolute bulk copy between buffers; duplicates keep the shared buffers' positions untouched
+    static void copy(ByteBuffer src, int srcIndex, ByteBuffer dest, int destIndex, int length) {
+        ByteBuffer s = src.duplicate();
+        s.limit(srcIndex + length);
+        s.position(srcIndex);
+        ByteBuffer d = dest.duplicate();
+        d.position(destIndex);
+        d.put(s);
+    }
+
+    long getLong(long address) {
+        return segment(address).getLong(index(address));
+    }
+
+    void putLong(long address, long value) {
+        segment(address).putLong(index(address), value);
+    }
+
+    int getInt(long address) {
+        return segment(address).getInt(index(address));
+    }
+
+    void putInt(long address, int value) {
+        segment(address).putInt(index(address), value);
+    }
+
+    void putDurableLong(long address, long value) {
+        segment(address).putLong(index(address), value);
+        force(address, 8);
+    }
+
+    // forces each header or window mapping overlapping [address, address + length) and returns the end of the
+    // last one forced.  Java 8 has no ranged MappedByteBuffer.force, so the range is bounded by mapping small
+    // windows instead; an msync writes back the file's pages in its range whichever mapping dirtied them
+    long force(long address, long length) {
+        long end = address + length;
+        long forced = address;
+        if (length <= 0) return forced;
+        if (address < LOG_START) {
+            header.force();
+            forced = LOG_START;
+        }
+        while (forced < end) {
+            int w = (int)((forced - LOG_START) >>> WINDOW_SHIFT);
+            window(w).force();
+            forced = LOG_START + ((long)(w + 1) << WINDOW_SHIFT);
+        }
+        return forced;
+    }
+
+    private MappedByteBuffer window(int w) {
+        MappedByteBuffer window = windows.get(w);
+        if (window != null) return window;
+        long start = LOG_START + ((long)w << WINDOW_SHIFT);
+        try {
+            window = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(1L << WINDOW_SHIFT, size - start));
+        } catch (IOException e) {
+            throw new PersistenceException("Failed to map heap window at " + start + ": " + e);
+        }
+        return windows.compareAndSet(w, null, window) ? window : windows.get(w);
+    }
+
+    long rootAddress() {
+        return getLong(ROOT_OFFSET);
+    }
+
+    // must be called from within a transaction
+    void setRootAddress(long addr) {
+        transaction().putLong(ROOT_OFFSET, addr);
+    }
+
+    // transactions
+
+    MappedTransaction transaction() {
+        MappedTransaction tx = current.get();
+        if (tx == null) throw new PersistenceException("No active transaction");
+        return tx;
+    }
+
+    int begin(MappedTransaction tx) {
+        if (!open) open();
+        current.set(tx);
+        try {
+            return freeLogSlots.take();
+        } catch (InterruptedException e) {
+            current.remove();
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted waiting for a transaction log");
+        }
+    }
+
+    void end(int logSlot) {
+        current.remove();
+        freeLogSlots.add(logSlot);
+    }
+
+    long nextLogSeq() {
+        return logSeq.incrementAndGet();
+    }
+
+    // a block holding a transaction's log past its slot; its flags are durable before it is returned
+    long allocateLogExtent(long size) {
+        return allocateBlock(size, ALLOCATED | LOG) + BLOCK_HEADER_SIZE;
+    }
+
+    void freeLogExtent(long region) {
+        long block = region - BLOCK_HEADER_SIZE;
+        putDurableLong(block + BLOCK_FLAGS_OFFSET, FREE);
+        release(block);
+    }
+
+    // the end of a log extent's region, or 0 if region is not a log extent
+    long logExtentEnd(long region) {
+        long block = region - BLOCK_HEADER_SIZE;
+        if (block < HEAP_START || block >= size - BLOCK_HEADER_SIZE || (block & 15) != 0) return 0;
+        long blockSize = getLong(block + BLOCK_SIZE_OFFSET);
+        if (getLong(block + BLOCK_FLAGS_OFFSET) != (ALLOCATED | LOG) || blockSize <= BLOCK_HEADER_SIZE || ((block + blockSize - 1) >>> SEGMENT_SHIFT) != (block >>> SEGMENT_SHIFT)) return 0;
+        return block + blockSize;
+    }
+
+    // allocation
+
+    static long blockSize(long regionSize) {
+        return (regionSize + BLOCK_HEADER_SIZE + 15) & ~15L;
+    }
+
+    // returns a block marked with flags whose region is zeroed for the first size bytes.  Unless flags is FREE
+    // the zeroed region and then the flags are durable; a FREE block is claimed by the caller.  Log extents
+    // are not zeroed: their entries are told apart by seq
+    private long allocateBlock(long size, long flags) {
+        long blockSize = blockSize(size);
+        if (blockSize > SEGMENT_SIZE) throw new PersistenceException("Failed to allocate region of size " + size);
+        Long block = takeFree(blockSize);
+        if (block != null) {
+            long region = block + BLOCK_HEADER_SIZE;
+            if ((flags & LOG) == 0) {
+                MappedByteBuffer segment = segment(region);
+                for (int i = index(region), end = i + (int)size; i < end; i++) segment.put(i, (byte)0);
+                if (flags != FREE) force(region, size);
+            }
+            if (flags != FREE) putDurableLong(block + BLOCK_FLAGS_OFFSET, flags);
+            return block;
+        }
+        synchronized (topLock) {
+            long start = top;
+            long segmentEnd = (start | SEGMENT_MASK) + 1;
+            if (start + blockSize > segmentEnd) {
+                // blocks never straddle segments; the remainder becomes an ordinary free block
+                formatBlock(start, segmentEnd - start, FREE);
+                release(start);
+                start = segmentEnd;
+            }
+            if (start + blockSize > this.size) throw new PersistenceException("Failed to allocate region of size " + size);
+            // nothing past top has been written, so the region is already zero in the file
+            formatBlock(start, blockSize, flags);
+            top = start + blockSize;
+            return start;
+        }
+    }
+
+    private void formatBlock(long block, long blockSize, long flags) {
+        MappedByteBuffer segment = segment(block);
+        segment.putLong(index(block) + (int)BLOCK_FLAGS_OFFSET, flags);
+        segment.putLong(index(block) + (int)BLOCK_SIZE_OFFSET, blockSize);
+        force(block, BLOCK_HEADER_SIZE);
+    }
+
+    // an exact-size small block if there is one, else the smallest large block that fits, split down to blockSize
+    private Long takeFree(long blockSize) {
+        if (blockSize <= SMALL_BLOCK_LIMIT) {
+            Long block = smallFree[(int)(blockSize >>> 4)].poll();
+            if (block != null) return block;
+        }
+        Long block;
+        long size;
+        synchronized (largeFree) {
+            Map.Entry<Long, ArrayDeque<Long>> e = largeFree.ceilingEntry(blockSize);
+            if (e == null) return null;
+            size = e.getKey();
+            block = e.getValue().poll();
+            if (e.getValue().isEmpty()) largeFree.remove(size);
+        }
+        if (size - blockSize >= MIN_SPLIT) {
+            // the rest gets its header before the block shrinks, so a crash leaves the whole block or both
+            long rest = block + blockSize;
+            formatBlock(rest, size - blockSize, FREE);
+            putDurableLong(block + BLOCK_SIZE_OFFSET, blockSize);
+            list(rest, size - blockSize);
+        }
+        return block;
+    }
+
+    // makes a block whose FREE flag is durable available for allocation again, first merging into it the large
+    // free blocks that follow it in its segment; small ones are left to be merged when the heap is next opened
+    void release(long block) {
+        long blockSize = getLong(block + BLOCK_SIZE_OFFSET);
+        long next;
+        while (((next = block + blockSize) & SEGMENT_MASK) != 0 && next < top && getLong(next + BLOCK_FLAGS_OFFSET) == FREE) {
+            long nextSize = getLong(next + BLOCK_SIZE_OFFSET);
+            if (nextSize <= SMALL_BLOCK_LIMIT || !unlist(next, nextSize)) break;
+            blockSize += nextSize;
+            putDurableLong(block + BLOCK_SIZE_OFFSET, blockSize);
+        }
+        list(block, blockSize);
+    }
+
+    private void list(long block, long blockSize) {
+        if (blockSize <= SMALL_BLOCK_LIMIT) smallFree[(int)(blockSize >>> 4)].add(block);
+        else synchronized (largeFree) {
+            largeFree.computeIfAbsent(blockSize, k -> new ArrayDeque<>()).add(block);
+        }
+    }
+
+    // takes a listed large block off its list; false if another thread has taken it
+    private boolean unlist(long block, long blockSize) {
+        synchronized (largeFree) {
+            ArrayDeque<Long> blocks = largeFree.get(blockSize);
+            if (blocks == null || !blocks.remove(block)) return false;
+            if (blocks.isEmpty()) largeFree.remove(blockSize);
+            return true;
+        }
+    }
+
+    // sign is 1 for a block that became allocated, -1 for one that became free
+    void account(long block, int sign) {
+        allocatedBytes.add(sign * getLong(block + BLOCK_SIZE_OFFSET));
+        allocationCount.add(sign);
+    }
+
+    // lists the free blocks, merging runs of them within a segment, and frees the log extents left by a crash;
+    // must run after the logs are recovered
+    private void rebuildFreeLists() {
+        long block = HEAP_START;
+        long blockSize;
+        long run = 0;
+        long runSize = 0;
+        while (block < size && (blockSize = getLong(block + BLOCK_SIZE_OFFSET)) != 0) {
+            long flags = getLong(block + BLOCK_FLAGS_OFFSET);
+            if ((flags & LOG) != 0) {
+                putDurableLong(block + BLOCK_FLAGS_OFFSET, FREE);
+                flags = FREE;
+            }
+            if (flags == FREE && run != 0 && (run >>> SEGMENT_SHIFT) == (block >>> SEGMENT_SHIFT)) runSize += blockSize;
+            else {
+                if (run != 0) listRun(run, runSize);
+                run = flags == FREE ? block : 0;
+                runSize = blockSize;
+                if (flags != FREE) account(block, 1);
+            }
+            block += blockSize;
+        }
+        if (run != 0) listRun(run, runSize);
+        top = block;
+    }
+
+    private void listRun(long run, long runSize) {
+        if (getLong(run + BLOCK_SIZE_OFFSET) != runSize) putDurableLong(run + BLOCK_SIZE_OFFSET, runSize);
+        list(run, runSize);
+    }
+
+    // frees object regions whose construction was interrupted and drops residual references,
+    // as the native heap does when it is opened
+    void cleanObjects() {
+        long block = HEAP_START;
+        while (block < top) {
+            long blockSize = getLong(block + BLOCK_SIZE_OFFSET);
+            if (getLong(block + BLOCK_FLAGS_OFFSET) == (ALLOCATED | OBJECT)) {
+                long region = block + BLOCK_HEADER_SIZE;
+                if (segment(region).getInt(index(region)) == 0) {
+                    putDurableLong(block + BLOCK_FLAGS_OFFSET, FREE);
+                    account(block, -1);
+                    release(block);
+                }
+                else if (segment(region).getInt(index(region) + 4) == 0) {
+                    AnyPersistent.deleteResidualReferences(region);
+                }
+            }
+            block += blockSize;
+        }
+    }
+
+    private void map(String path, long size) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            boolean create = file.length() == 0;
+            if (create) {
+                if (size < HEAP_START + SEGMENT_SIZE / 1024) {
+                    file.close();
+                    throw new PersistenceException("Heap size " + size + " is too small");
+                }
+                file.setLength(size);
+            }
+            else size = file.length();
+            this.size = size;
+            this.channel = file.getChannel();
+            int count = (int)((size + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long)i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, size - start));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, LOG_START);
+            windows = new AtomicReferenceArray<>((int)((size - LOG_START + (1L << WINDOW_SHIFT) - 1) >>> WINDOW_SHIFT));
+            if (create) {
+                segments[0].putLong((int)SIZE_OFFSET, size);
+                segments[0].putLong((int)ROOT_OFFSET, 0);
+                force(0, LOG_START);
+                putDurableLong(MAGIC_OFFSET, MAGIC);
+            }
+            else if (getLong(MAGIC_OFFSET) != MAGIC || getLong(SIZE_OFFSET) != size) {
+                channel.close();
+                throw new PersistenceException("Not a mapped heap: " + path);
+            }
+        } catch (IOException e) {
+            throw new PersistenceException("Failed to map heap " + path + ": " + e);
+        }
+    }
+}
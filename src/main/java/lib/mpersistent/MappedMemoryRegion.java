@@ -0,0 +1,158 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.mpersistent;
+
+import lib.util.persistent.MemoryRegion;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+public class MappedMemoryRegion implements MemoryRegion {
+    private final MappedHeap heap;
+    private long addr;
+    private MappedByteBuffer segment;
+    private int base;
+
+    MappedMemoryRegion(MappedHeap heap, long addr) {
+        this.heap = heap;
+        this.addr = addr;
+        this.segment = addr == 0 ? null : heap.segment(addr);
+        this.base = MappedHeap.index(addr);
+    }
+
+    public void clear() {
+        addr = 0;
+        segment = null;
+        base = 0;
+    }
+
+    public long addr() {
+        return this.addr;
+    }
+
+    private void checkAddress() {
+        if (segment != null) return;
+        throw new IllegalArgumentException();
+    }
+
+    private int index(long offset) {
+        checkAddress();
+        return base + (int)offset;
+    }
+
+    public byte getByte(long offset) {
+        return segment.get(index(offset));
+    }
+
+    public short getShort(long offset) {
+        return segment.getShort(index(offset));
+    }
+
+    public int getInt(long offset) {
+        return segment.getInt(index(offset));
+    }
+
+    public long getLong(long offset) {
+        return segment.getLong(index(offset));
+    }
+
+    public void putByte(long offset, byte value) {
+        int i = index(offset);
+        heap.transaction().addRange(addr + offset, 1);
+        segment.put(i, value);
+    }
+
+    public void putShort(long offset, short value) {
+        int i = index(offset);
+        heap.transaction().addRange(addr + offset, 2);
+        segment.putShort(i, value);
+    }
+
+    public void putInt(long offset, int value) {
+        int i = index(offset);
+        heap.transaction().addRange(addr + offset, 4);
+        segment.putInt(i, value);
+    }
+
+    public void putLong(long offset, long value) {
+        int i = index(offset);
+        heap.transaction().addRange(addr + offset, 8);
+        segment.putLong(i, value);
+    }
+
+    public void putDurableByte(long offset, byte value) {
+        putRawByte(offset, value);
+        flush(offset, 1);
+    }
+
+    public void putDurableShort(long offset, short value) {
+        putRawShort(offset, value);
+        flush(offset, 2);
+    }
+
+    public void putDurableInt(long offset, int value) {
+        putRawInt(offset, value);
+        flush(offset, 4);
+    }
+
+    public void putDurableLong(long offset, long value) {
+        putRawLong(offset, value);
+        flush(offset, 8);
+    }
+
+    public void putRawByte(long offset, byte value) {
+        segment.put(index(offset), value);
+    }
+
+    public void putRawShort(long offset, short value) {
+        segment.putShort(index(offset), value);
+    }
+
+    public void putRawInt(long offset, int value) {
+        segment.putInt(index(offset), value);
+    }
+
+    public void putRawLong(long offset, long value) {
+        segment.putLong(index(offset), value);
+    }
+
+    public void putRawBytes(long offset, byte[] value) {
+        ByteBuffer b = segment.duplicate();
+        b.position(index(offset));
+        b.put(value);
+    }
+
+    public void flush(long size) {
+        flush(0, size);
+    }
+
+    public void flush(long offset, long size) {
+        if (size <= 0) return;
+        checkAddress();
+        heap.force(addr + offset, size);
+    }
+
+    @Override
+    public String toString() {
+        return "MappedMemoryRegion(" + addr + ")";
+    }
+}
@@ -0,0 +1,51 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.mpersistent;
+
+import lib.util.persistent.TransactionCore;
+import lib.util.persistent.spi.PersistentMemoryProvider;
+import lib.util.persistent.PersistentHeap;
+
+// Persistent memory provider backed by a memory-mapped file; needs no native library
+public class MappedPersistentMemory extends PersistentMemoryProvider {
+    private MappedHeap heap;
+
+    public MappedPersistentMemory() {}
+
+    @Override
+    public String getName() {
+        return "MappedPersistentMemory";
+    }
+
+    @Override
+    public TransactionCore newTransaction() {
+        return new MappedTransaction((MappedHeap)getHeap());
+    }
+
+    @Override
+    public synchronized PersistentHeap getHeap() {
+        if (this.heap == null) {
+            this.heap = new MappedHeap();
+        }
+        return heap;
+    }
+}
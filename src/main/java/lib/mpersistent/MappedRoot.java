@@ -0,0 +1,73 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.mpersistent;
+
+import lib.util.persistent.*;
+
+public final class MappedRoot implements Root {
+    private static final int OBJECT_DIRECTORY_OFFSET = 0;
+    private static final int CLASS_REGISTRY_OFFSET = 8;
+    private static final long ROOT_SIZE = 16;   // 2 objects, each represented by an 8-byte pointer
+
+    private final MappedHeap heap;
+    private final MemoryRegion region;
+    private final PersistentHashMap<PersistentString, AnyPersistent> objectDirectory;
+    private long classRegistryAddr;
+
+    @SuppressWarnings("unchecked")
+    MappedRoot(MappedHeap heap) {
+        this.heap = heap;
+        if (heap.rootAddress() != 0) {
+            region = heap.regionFromAddress(heap.rootAddress());
+            objectDirectory = PersistentObject.fromPointer(new ObjectPointer<PersistentHashMap>(PersistentHashMap.TYPE, heap.regionFromAddress(region.getLong(OBJECT_DIRECTORY_OFFSET))));
+            classRegistryAddr = region.getLong(CLASS_REGISTRY_OFFSET);
+        } else {
+            MemoryRegion objectDirectoryRegion = heap.allocateRegion(PersistentHashMap.TYPE.allocationSize());
+            // TODO: HACK to make object directory have non-zero refCount
+            objectDirectoryRegion.putDurableInt(4, 1);
+            objectDirectory = PersistentObject.fromPointer(new ObjectPointer<>(PersistentHashMap.TYPE, objectDirectoryRegion));
+            region = Transaction.run(() -> {
+                MemoryRegion rootRegion = heap.allocateRegion(ROOT_SIZE);
+                rootRegion.putLong(OBJECT_DIRECTORY_OFFSET, objectDirectoryRegion.addr());
+                this.classRegistryAddr = 0;
+                rootRegion.putLong(CLASS_REGISTRY_OFFSET, classRegistryAddr);
+                heap.setRootAddress(rootRegion.addr());
+                return rootRegion;
+            });
+        }
+    }
+
+    public PersistentHashMap<PersistentString, AnyPersistent> getObjectDirectory() { return objectDirectory; }
+
+    void clean() {
+        heap.cleanObjects();
+    }
+
+    public long getRootRegionAddr() {return region.addr();}
+
+    public long getClassRegistryAddr() {return classRegistryAddr;}
+
+    public void setClassRegistryAddr(long addr) {
+        classRegistryAddr = addr;
+        Transaction.run(() -> { region.putLong(CLASS_REGISTRY_OFFSET, classRegistryAddr); });
+    }
+}
@@ -0,0 +1,253 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.mpersistent;
+
+import lib.util.persistent.TransactionCore;
+import lib.util.persistent.TransactionException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+// Undo logging: before a range is first written in a transaction its old contents are appended
+// to the transaction's log and forced; written ranges are forced at commit.  A log left ACTIVE
+// by a crash is rolled back when the heap is next opened.  The slot is marked ACTIVE in the same
+// force as its first entry; nothing has been written in place before that force returns.
+//
+// Log slot layout: [state long][seq long] followed by entries
+//   [seq long][addr long][length int][crc int][old bytes, padded to 8]
+// A log that outgrows its slot continues in extents, blocks allocated from the heap, each reached
+// through a link entry whose addr is the extent's region and whose length is LINK; the slot and
+// every extent keep room for one.  Extents are freed when the transaction ends, or when the heap is
+// next opened.  Only entries carrying the transaction's seq and a matching crc are applied; seqs
+// are unique across slots, so entries an earlier transaction left in a reused extent never match.
+public class MappedTransaction implements TransactionCore {
+    private static final long IDLE = 0;
+    private static final long ACTIVE = 1;
+    private static final int STATE_OFFSET = 0;
+    private static final int SEQ_OFFSET = 8;
+    private static final int ENTRIES_OFFSET = 16;
+    private static final int ENTRY_HEADER_SIZE = 24;
+    private static final int LINK = -1;
+    private static final int MAX_EXTENT_SHIFT = 4;
+
+    private final MappedHeap heap;
+    private final HashMap<Long, Integer> logged;
+    private final ArrayList<Long> entries;
+    private final ArrayList<Long> extents;
+    private final ArrayList<long[]> dirty;
+    private final ArrayList<Long> allocated;
+    private final ArrayList<Long> freed;
+    private final CRC32 crc;
+    private int slot;
+    private long logAddress;
+    private long tail;
+    private long limit;     // entries end here in the slot or extent holding tail, leaving room for a link
+    private long seq;
+    private boolean logStarted;
+
+    MappedTransaction(MappedHeap heap) {
+        this.heap = heap;
+        this.logged = new HashMap<>();
+        this.entries = new ArrayList<>();
+        this.extents = new ArrayList<>();
+        this.dirty = new ArrayList<>();
+        this.allocated = new ArrayList<>();
+        this.freed = new ArrayList<>();
+        this.crc = new CRC32();
+    }
+
+    public void start() {
+        slot = heap.begin(this);
+        logAddress = MappedHeap.LOG_START + (long)slot * MappedHeap.LOG_SLOT_SIZE;
+        seq = heap.nextLogSeq();
+        tail = logAddress + ENTRIES_OFFSET;
+        limit = logAddress + MappedHeap.LOG_SLOT_SIZE - ENTRY_HEADER_SIZE;
+        logStarted = false;
+    }
+
+    public void commit() {
+        forceDirtyRanges();
+        if (logStarted) setState(IDLE);
+        for (long block : freed) {
+            heap.account(block, -1);
+            heap.release(block);
+        }
+        finish();
+    }
+
+    public void abort(TransactionException e) {
+        if (logStarted) {
+            for (int i = entries.size() - 1; i >= 0; i--) undo(heap, entries.get(i));
+            setState(IDLE);
+        }
+        for (long block : allocated) {
+            heap.account(block, -1);
+            heap.release(block);
+        }
+        finish();
+    }
+
+    // records the current contents of [addr, addr + length) so they can be restored on abort
+    void addRange(long addr, long length) {
+        Integer loggedLength = logged.get(addr);
+        if (loggedLength != null && loggedLength >= length) return;
+        int entrySize = ENTRY_HEADER_SIZE + (((int)length + 7) & ~7);
+        long forceFrom = tail;
+        if (!logStarted) {
+            heap.putLong(logAddress + SEQ_OFFSET, seq);
+            heap.putLong(logAddress + STATE_OFFSET, ACTIVE);
+            forceFrom = logAddress;
+            logStarted = true;
+        }
+        if (tail + entrySize > limit) {
+            extend(forceFrom, entrySize);
+            forceFrom = tail;
+        }
+        long entry = tail;
+        MappedHeap.copy(heap.segment(addr), MappedHeap.index(addr), heap.segment(entry), MappedHeap.index(entry + ENTRY_HEADER_SIZE), (int)length);
+        writeHeader(entry, addr, (int)length);
+        heap.force(forceFrom, entry + entrySize - forceFrom);
+        tail += entrySize;
+        entries.add(entry);
+        logged.put(addr, (int)length);
+        addDirtyRange(addr, length);
+    }
+
+    // continues the log in a new extent with room for an entry of entrySize; the link to it is forced,
+    // along with anything written to the log from forceFrom, before the extent is used
+    private void extend(long forceFrom, int entrySize) {
+        long size = Math.max((long)MappedHeap.LOG_SLOT_SIZE << Math.min(extents.size(), MAX_EXTENT_SHIFT), entrySize + ENTRY_HEADER_SIZE);
+        long extent = heap.allocateLogExtent(size);
+        extents.add(extent);
+        writeHeader(tail, extent, LINK);
+        heap.force(forceFrom, tail + ENTRY_HEADER_SIZE - forceFrom);
+        tail = extent;
+        limit = extent + size - ENTRY_HEADER_SIZE;
+    }
+
+    private void writeHeader(long entry, long addr, int length) {
+        heap.putLong(entry, seq);
+        heap.putLong(entry + 8, addr);
+        heap.putInt(entry + 16, length);
+        heap.putInt(entry + 20, checksum(crc, heap, entry, length));
+    }
+
+    // a range written in this transaction whose old contents need not be restored on abort
+    void addDirtyRange(long addr, long length) {
+        dirty.add(new long[] {addr, length});
+    }
+
+    void putLong(long addr, long value) {
+        addRange(addr, 8);
+        heap.putLong(addr, value);
+    }
+
+    void allocated(long block) {
+        allocated.add(block);
+    }
+
+    void freed(long block) {
+        freed.add(block);
+    }
+
+    // rolls back the transaction a crash left ACTIVE in the slot, if any, and returns the slot's seq
+    static long recover(MappedHeap heap, int slot) {
+        long logAddress = MappedHeap.LOG_START + (long)slot * MappedHeap.LOG_SLOT_SIZE;
+        long seq = heap.getLong(logAddress + SEQ_OFFSET);
+        if (heap.getLong(logAddress + STATE_OFFSET) != ACTIVE) return seq;
+        CRC32 crc = new CRC32();
+        ArrayList<Long> valid = new ArrayList<>();
+        long tail = logAddress + ENTRIES_OFFSET;
+        long end = logAddress + MappedHeap.LOG_SLOT_SIZE;
+        while (tail + ENTRY_HEADER_SIZE <= end && heap.getLong(tail) == seq) {
+            int length = heap.getInt(tail + 16);
+            if (length == LINK) {
+                long extent = heap.getLong(tail + 8);
+                if (heap.getInt(tail + 20) != checksum(crc, heap, tail, LINK)) break;
+                end = heap.logExtentEnd(extent);
+                tail = extent;
+                continue;
+            }
+            long entrySize = ENTRY_HEADER_SIZE + ((length + 7L) & ~7L);
+            if (length < 0 || tail + entrySize > end) break;
+            if (heap.getInt(tail + 20) != checksum(crc, heap, tail, length)) break;
+            valid.add(tail);
+            tail += entrySize;
+        }
+        for (int i = valid.size() - 1; i >= 0; i--) undo(heap, valid.get(i));
+        heap.putLong(logAddress + STATE_OFFSET, IDLE);
+        heap.force(logAddress + STATE_OFFSET, 8);
+        return seq;
+    }
+
+    private static void undo(MappedHeap heap, long entry) {
+        long addr = heap.getLong(entry + 8);
+        int length = heap.getInt(entry + 16);
+        MappedHeap.copy(heap.segment(entry), MappedHeap.index(entry + ENTRY_HEADER_SIZE), heap.segment(addr), MappedHeap.index(addr), length);
+        heap.force(addr, length);
+    }
+
+    private static int checksum(CRC32 crc, MappedHeap heap, long entry, int length) {
+        int i = MappedHeap.index(entry);
+        crc.reset();
+        ByteBuffer b = heap.segment(entry).duplicate();
+        b.limit(i + 20);
+        b.position(i + 8);
+        crc.update(b);
+        b.limit(i + ENTRY_HEADER_SIZE + Math.max(length, 0));
+        b.position(i + ENTRY_HEADER_SIZE);
+        crc.update(b);
+        return (int)crc.getValue();
+    }
+
+    private void setState(long state) {
+        heap.putLong(logAddress + STATE_OFFSET, state);
+        heap.force(logAddress + STATE_OFFSET, 8);
+    }
+
+    // forces each window holding a written range once
+    private void forceDirtyRanges() {
+        if (dirty.isEmpty()) return;
+        dirty.sort((a, b) -> Long.compare(a[0], b[0]));
+        long forced = -1;
+        for (long[] range : dirty) {
+            long end = range[0] + range[1];
+            if (end <= forced) continue;
+            long start = Math.max(range[0], forced);
+            forced = heap.force(start, end - start);
+        }
+    }
+
+    // the log is IDLE, so its extents are no longer needed
+    private void finish() {
+        for (long extent : extents) heap.freeLogExtent(extent);
+        extents.clear();
+        logged.clear();
+        entries.clear();
+        dirty.clear();
+        allocated.clear();
+        freed.clear();
+        heap.end(slot);
+    }
+}
@@ -29,13 +29,11 @@ import lib.util.persistent.types.Types;
 import lib.util.persistent.types.PersistentType;
 import lib.util.persistent.types.ObjectType;
 import lib.xpersistent.*;
-import lib.util.persistent.spi.PersistentMemoryProvider;
 import lib.util.persistent.PersistentHeap;
 import static lib.util.persistent.Trace.*;
 
 abstract class AbstractPersistentArray extends AnyPersistent {
     private int length = -1; // cache immutable length
-    private static PersistentHeap heap = PersistentMemoryProvider.getDefaultProvider().getHeap();
 
     protected AbstractPersistentArray(ArrayType<? extends AnyPersistent> type, int count, Object data) {
         super(type, heap.allocateObjectRegion(type.allocationSize(count)));
@@ -43,6 +41,7 @@ abstract class AbstractPersistentArray extends AnyPersistent {
         length = count;
         if (data != null) initializeElements(data, type.elementType());
         flushRegion();
+        if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.allocationSize.record(type.allocationSize(count));
         if (Config.ENABLE_ALLOC_STATS) Stats.current.allocStats.update(type.cls().getName(), type.allocationSize(count), Stats.AllocationStats.WRAPPER_PER_INSTANCE + 4, 1); // uncomment for allocation stats
     }
 
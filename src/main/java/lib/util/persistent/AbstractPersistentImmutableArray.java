@@ -80,7 +80,8 @@ abstract class AbstractPersistentImmutableArray extends AbstractPersistentArray
         MemoryRegion dstRegion = new VolatileMemoryRegion(type.size());
         // trace(true, "APIA.getValueObject, src addr = %d, srcOffset = %d, dst  = %s, size = %d", srcRegion.addr(), offset, dstRegion, type.size());
         Util.memCopy(getType(), (ObjectType)type, srcRegion, offset, dstRegion, 0L, type.size());
-        ObjectPointer p = new ObjectPointer<T>((ObjectType)type, dstRegion);
-        return AnyPersistent.reconstruct(new ObjectPointer<T>((ObjectType)type, dstRegion));
+        T obj = AnyPersistent.reconstruct(new ObjectPointer<T>((ObjectType)type, dstRegion));
+        if (obj != null) obj.onGet();
+        return obj;
     }
 }
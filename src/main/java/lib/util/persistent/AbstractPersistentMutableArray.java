@@ -27,6 +27,8 @@ import lib.util.persistent.types.Types;
 import lib.util.persistent.types.PersistentType;
 import lib.util.persistent.types.ObjectType;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import static lib.util.persistent.Trace.*;
 
 abstract class AbstractPersistentMutableArray extends AbstractPersistentArray {
@@ -106,7 +108,62 @@ abstract class AbstractPersistentMutableArray extends AbstractPersistentArray {
             Util.memCopy(getType(), (ObjectType)type, srcRegion, offset, dstRegion, 0L, type.size());
             return dstRegion;
         });
-        return AnyPersistent.reconstruct(new ObjectPointer<T>((ObjectType)type, region));
+        T obj = AnyPersistent.reconstruct(new ObjectPointer<T>((ObjectType)type, region));
+        if (obj != null) obj.onGet();
+        return obj;
+    }
+
+    // bulk element access for the primitive arrays; elements travel through a reused buffer of this many bytes
+    private static final int BULK_CHUNK_BYTES = 1 << 18;
+
+    @FunctionalInterface
+    interface ChunkHandler {void handle(ByteBuffer chunk, int done, int count);}
+
+    // hands elements [index, index + count) to the reader a chunk at a time, in their persistent (little-endian)
+    // encoding; the whole range is read under one lock acquisition
+    void readElements(int index, int count, ChunkHandler reader) {
+        checkRange(index, count);
+        int size = (int)((ArrayType)getType()).elementSize();
+        int chunk = BULK_CHUNK_BYTES / size;
+        byte[] bytes = new byte[Math.min(count, chunk) * size];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        Util.synchronizedBlock(this, () -> {
+            for (int done = 0; done < count; done += chunk) {
+                int n = Math.min(chunk, count - done);
+                heap.memcpy(region(), elementOffset(index + done), bytes, 0, n * size);
+                buffer.clear();
+                reader.handle(buffer, done, n);
+            }
+        });
+    }
+
+    // the writer encodes elements [index, index + count) a chunk at a time; each chunk is stored with a single
+    // logged copy.  The whole range is written in one transaction, so a bulk write (put, fill, sort) is
+    // crash-atomic however long it is; the undo log grows to hold it
+    void writeElements(int index, int count, ChunkHandler writer) {
+        checkRange(index, count);
+        int size = (int)((ArrayType)getType()).elementSize();
+        Transaction.run(() -> writeChunks(index, count, size, writer), this);
+    }
+
+    private void writeChunks(int index, int count, int size, ChunkHandler writer) {
+        int chunk = BULK_CHUNK_BYTES / size;
+        byte[] bytes = new byte[Math.min(count, chunk) * size];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int done = 0; done < count; done += chunk) {
+            int n = Math.min(chunk, count - done);
+            buffer.clear();
+            writer.handle(buffer, done, n);
+            heap.copyBytesToRegion(bytes, 0, region(), elementOffset(index + done), n * size);
+        }
+    }
+
+    void checkRange(int index, int count) {
+        if (index < 0 || count < 0 || index > length() - count) throw new IndexOutOfBoundsException("range [" + index + ", " + (index + count) + ") out of bounds");
+    }
+
+    static void checkArrayRange(int arrayLength, int offset, int count) {
+        if (offset < 0 || count < 0 || offset > arrayLength - count) throw new IndexOutOfBoundsException("array range [" + offset + ", " + (offset + count) + ") out of bounds");
     }
 
     @Override
@@ -46,7 +46,6 @@ import lib.util.persistent.types.FinalBooleanField;
 import lib.util.persistent.types.FinalObjectField;
 import lib.util.persistent.types.FinalValueField;
 import lib.util.persistent.types.PersistentField;
-import lib.xpersistent.UncheckedPersistentMemoryRegion;
 import java.lang.reflect.Constructor;
 import static lib.util.persistent.Trace.*;
 import java.util.function.Consumer;
@@ -58,6 +57,7 @@ abstract class AbstractPersistentObject extends AnyPersistent {
 
     public AbstractPersistentObject(ObjectType<? extends AbstractPersistentObject> type) {
         super(type);
+        if (Config.ENABLE_MEMORY_STATS && !type.valueBased()) Stats.current.memory.allocationSize.record(type.allocationSize());
         if (Config.ENABLE_ALLOC_STATS) Stats.current.allocStats.update(type.cls().getName(), type.allocationSize(), Stats.AllocationStats.WRAPPER_PER_INSTANCE + 8, 1);  // uncomment for allocation stats
     }
 
@@ -97,11 +97,21 @@ abstract class AbstractPersistentObject extends AnyPersistent {
         return getValueObject(offset(f.getIndex()), f.getType());
     }
 
+    // reads the value in place instead of copying it out; the view sees later writes to the field
+    public <T extends AnyPersistent> T getObjectFieldView(FinalValueField<T> f) {
+        return getValueView(offset(f.getIndex()), f.getType(), false);
+    }
+
+    // like getObjectFieldView, but setters of the returned value write through to this object's field
+    public <T extends AnyPersistent> T getMutableObjectFieldView(ValueField<T> f) {
+        return getValueView(offset(f.getIndex()), f.getType(), true);
+    }
+
     @SuppressWarnings("unchecked") public <T extends AnyPersistent> T getObjectField(GenericField<? extends AnyPersistent> f) {
         // trace(true, "APO.getObjectField(%s) : GF, index = %d, offset for index = %d", f, f.getIndex(), offset(f.getIndex())); 
         long fieldAddress = getRegionLong(offset(f.getIndex()));
-        long classInfoAddress = new UncheckedPersistentMemoryRegion(fieldAddress).getLong(0);
-        ClassInfo classInfo = ClassInfo.getClassInfo(classInfoAddress);
+        int classId = heap.regionFromAddress(fieldAddress).getInt(0);
+        ClassInfo classInfo = ClassInfo.getClassInfo(classId);
         ObjectType objectType = (ObjectType)classInfo.getType();
         if (objectType.kind() == ObjectType.Kind.Reference) return (T)getObject(offset(f.getIndex()), objectType);
         else if (objectType.kind() == ObjectType.Kind.IndirectValue) return (T)getValueObject(offset(f.getIndex()), objectType);
@@ -150,10 +160,11 @@ abstract class AbstractPersistentObject extends AnyPersistent {
         // trace(true, "APO.initObjectField(%s) : FVF", f); 
         if (value != null) {
             checkUninitializedField(f);
-            value.onSet();
+            AnyPersistent copy = detached(value);
+            copy.onSet();
             MemoryRegion region = region();
             long offset = offset(f.getIndex());
-            byte[] bytes = ((VolatileMemoryRegion)value.region()).getBytes();
+            byte[] bytes = ((VolatileMemoryRegion)copy.region()).getBytes();
             region.putRawBytes(offset, bytes);
             region.flush(offset, bytes.length);
         }
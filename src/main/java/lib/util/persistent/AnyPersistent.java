@@ -25,6 +25,7 @@ import lib.util.persistent.types.Types;
 import lib.util.persistent.types.PersistentType;
 import lib.util.persistent.types.ObjectType;
 import lib.util.persistent.types.IndirectValueObjectType;
+import lib.util.persistent.types.ValueArrayType;
 import lib.util.persistent.types.ValueType;
 import lib.util.persistent.types.ArrayType;
 import lib.util.persistent.types.ReferenceArrayType;
@@ -47,10 +48,8 @@ import java.util.ArrayList;
 import java.util.Deque;
 import java.util.ArrayDeque;
 import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
 import java.util.Iterator;
-import lib.xpersistent.XHeap;
-import lib.xpersistent.XRoot;
-import lib.xpersistent.UncheckedPersistentMemoryRegion;
 import java.util.Random;
 import static lib.util.persistent.Trace.*;
 import java.util.concurrent.TimeoutException;
@@ -106,8 +105,8 @@ public abstract class AnyPersistent {
     @SuppressWarnings("unchecked")
     <T extends AnyPersistent> AnyPersistent(ObjectType<T> type, MemoryRegion region) {
         // trace(true, region.addr(), "creating object of type %s, region = %s", type.name(), region);
-        if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.constructions++;
-        this.lock = new ReentrantLock(true);
+        if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.constructions.increment();
+        this.lock = new LockProfiler.OwnedLock();
         this.type = type;
         this.region = region;
         if (!type.valueBased()) {
@@ -119,8 +118,8 @@ public abstract class AnyPersistent {
 
     protected AnyPersistent(ObjectPointer<? extends AnyPersistent> p) {
         // trace(true, p.region().addr(), "recreating object of type %s", p.type().name());
-        lock = new ReentrantLock(true);
-        if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.reconstructions++;
+        lock = new LockProfiler.OwnedLock();
+        if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.reconstructions.increment();
         if (p != null) {
             this.type = p.type();
             this.region = p.region();
@@ -131,22 +130,20 @@ public abstract class AnyPersistent {
         }
     }
 
-    @SuppressWarnings("unchecked")
     static <T extends AnyPersistent> T reconstruct(ObjectPointer<T> p) {
+        return reconstruct(p, ((ObjectType)p.type()).getFactory());
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T extends AnyPersistent> T reconstruct(ObjectPointer<T> p, MethodHandle factory) {
         // special case for reconstructing an indirect value
         T obj = null;
         try {
-            Constructor ctor = ((ObjectType)p.type()).getReconstructor();
-            obj = (T)ctor.newInstance(p);
+            obj = (T)(AnyPersistent)factory.invokeExact((ObjectPointer)p);
             obj.onReconstruction();
         }
-        catch (Exception e) {
-            Throwable cause = e.getCause();
-            if (e instanceof InvocationTargetException && cause instanceof TransactionRetryException) {
-                throw (TransactionRetryException)e;
-            }
-            else throw new RuntimeException(cause);
-        }
+        catch (TransactionRetryException e) {throw e;}
+        catch (Throwable e) {throw new RuntimeException(e);}
         return obj;
     }
 
@@ -163,12 +160,13 @@ public abstract class AnyPersistent {
 
     static void free(long addr) {
         // trace(true, addr, "free called");
-        ObjectCache.remove(addr);
-        MemoryRegion reg = new UncheckedPersistentMemoryRegion(addr);
+        ObjectCache.forget(addr);
+        MemoryRegion reg = heap.regionFromAddress(addr);
         Transaction.run(() -> {
             // trace(true, addr, "freeing object region %d ", reg.addr());
+            if (Config.COLLECT_CYCLES) CycleCollector.freed(addr);
+            SizeCounter.freed(addr);
             heap.freeRegion(reg);
-            //CycleCollector.removeFromCandidates(addr);
         });
     }
 
@@ -292,12 +290,21 @@ public abstract class AnyPersistent {
 
     void setObject(long offset, AnyPersistent value) {
         Transaction.run(() -> {
+            long newAddr = value == null ? 0 : value.addr();
+            if (Config.COALESCE_REF_COUNTS) {
+                // value and the old referent are locked when the counts are applied, if they change at all
+                long oldAddr = getLong(offset);
+                if (value != null) value.addReference();
+                if (oldAddr != 0) Transaction.deferRefCount(null, oldAddr, -1);
+                region.putLong(offset, newAddr);
+                return;
+            }
             AnyPersistent old = ObjectCache.get(getLong(offset), true);
             // trace(true, "AP.setObject(%d, value = %d, old = %d)", offset, value == null ? -1 : value.addr(), old == null ? -1 : old.addr());
             Transaction.run(() -> {
                 if (value != null) value.addReference();
                 if (old != null) old.deleteReference(false);
-                region.putLong(offset, value == null ? 0 : value.addr());
+                region.putLong(offset, newAddr);
             }, value, old);
         }, this);
     }
@@ -305,47 +312,71 @@ public abstract class AnyPersistent {
     @SuppressWarnings("unchecked")
     void setValueObject(long offset, AnyPersistent value) {
         if (value == null) return;  // TODO: should be exception
+        value = detached(value);
         // trace(true, "AP.setValueObject(%d), hostType = %s, value's type = %s", offset, getType().cls(), value.getType().cls());
-        value.onSet();
         ObjectType hostType = getType();
         ObjectType valueType = value.getType();
-        ObjectType.Kind hostKind = hostType.kind();
-        ObjectType.Kind valueKind = valueType.kind();
-        MemoryRegion srcRegion = value.region(); 
-        long srcSize = valueType.size(); 
-        MemoryRegion dstRegion = null;
-        switch (hostKind) {
-            case Reference: dstRegion = valueKind == ObjectType.Kind.IndirectValue ? heap.allocateRegion(srcSize) : region(); break;
-            case DirectValue: dstRegion = valueKind == ObjectType.Kind.IndirectValue ? new VolatileMemoryRegion(srcSize) : region(); break;
-            case IndirectValue: dstRegion = valueKind == ObjectType.Kind.IndirectValue ? new VolatileMemoryRegion(srcSize) : region(); break;
-        }
-        long dstOffset = offset; 
-        Util.memCopy(valueType, hostType, srcRegion, 0, dstRegion, dstOffset, srcSize);
-        
-        // after-copy work
-        if (valueKind == ObjectType.Kind.IndirectValue) {
-            switch (hostKind) {
-                case Reference : 
-                    region().putRawLong(offset, dstRegion.addr());
-                    long classInfoAddress = ClassInfo.getClassInfo(valueType.name()).getRegion().addr();
-                    dstRegion.putRawLong(IndirectValueObjectType.CLASS_INFO_OFFSET, classInfoAddress);
-                    break;
-                case DirectValue : /* don't know how to store IV in DV yet*/
-                    throw new RuntimeException("NYI");
-                case IndirectValue :  /*don't know how to nest IVs yet*/
-                    throw new RuntimeException("NYI");
-                default : throw new RuntimeException("Unsupported Kind: " + hostKind);
-            }
+        if (hostType.kind() != ObjectType.Kind.Reference || valueType.kind() != ObjectType.Kind.IndirectValue) {
+            setInlineValueObject(offset, value);
+            return;
         }
-        // TODO:
-        // write nested indirect values
-        // List<PersistentType> valueFieldTypes = valueType.fieldTypes();
-        // for (PersistentType t : valueFieldTypes) {
-        //     if (t instanceof ObjectType && ((ObjectType)t).kind() == ObjectType.Kind.IndirectValue) {
-        //         // System.out.println("read field of type " + t + " and write here");
-        //         // read indirect field and write to this object
-        //     }
-        // } 
+        // an indirect value held by a reference object gets its own region, replacing the previous one
+        AnyPersistent v = value;
+        Transaction.run(() -> {
+            long oldAddr = region().getLong(offset);
+            v.onSet();
+            long srcSize = valueType.size();
+            stampClassId(v);
+            MemoryRegion dstRegion = heap.allocateRegion(srcSize);
+            Util.memCopy(valueType, hostType, v.region(), 0, dstRegion, 0, srcSize);
+            region().putLong(offset, dstRegion.addr());
+            if (oldAddr != 0) heap.freeRegion(heap.regionFromAddress(oldAddr));
+        }, this);
+    }
+
+    // copies the value into this object's region; values nested in values and elements of value arrays are
+    // flattened this way, an indirect value carrying its class id in front of its fields
+    @SuppressWarnings("unchecked")
+    void setInlineValueObject(long offset, AnyPersistent value) {
+        if (value == null) return;  // TODO: should be exception
+        value = detached(value);
+        value.onSet();
+        ObjectType valueType = value.getType();
+        stampClassId(value);
+        Util.memCopy(valueType, getType(), value.region(), 0, region(), offset, valueType.size());
+    }
+
+    // the value at offset, reading this object's memory in place; the view is not a snapshot and its reads
+    // are not synchronized with writers of the host
+    @SuppressWarnings("unchecked")
+    <T extends AnyPersistent> T getValueView(long offset, PersistentType type, boolean writable) {
+        return valueView(region(), offset, (ObjectType<T>)type, writable);
+    }
+
+    <T extends AnyPersistent> T valueView(MemoryRegion base, long offset, ObjectType<T> type, boolean writable) {
+        if (isValueBased()) throw new UnsupportedOperationException("views of values held by values are not supported");
+        T obj = reconstruct(new ObjectPointer<T>(type, new ValueView(this, base, offset, writable)));
+        if (obj != null) obj.onGet();
+        return obj;
+    }
+
+    // a view that is stored somewhere is copied out first, as if it had been read by value
+    @SuppressWarnings("unchecked")
+    static AnyPersistent detached(AnyPersistent value) {
+        if (!(value.region() instanceof ValueView)) return value;
+        ObjectType<AnyPersistent> type = value.getType();
+        VolatileMemoryRegion copy = new VolatileMemoryRegion(type.size());
+        ((ValueView)value.region()).copyTo(0, copy.getBytes(), 0, (int)type.size());
+        AnyPersistent ans = reconstruct(new ObjectPointer<AnyPersistent>(type, copy));
+        ans.onGet();
+        return ans;
+    }
+
+    private static void stampClassId(AnyPersistent value) {
+        ObjectType valueType = value.getType();
+        if (valueType.kind() != ObjectType.Kind.IndirectValue) return;
+        int classId = ClassInfo.getClassInfo(valueType.name()).id();
+        value.region().putRawInt(IndirectValueObjectType.CLASS_ID_OFFSET, classId);
     }
 
     void setRegionByte(long offset, byte value) {
@@ -408,11 +439,11 @@ public abstract class AnyPersistent {
     }
 
     private void initHeader(ClassInfo classInfo) {
-        setRegionLong(Header.TYPE.offset(Header.CLASS_INFO), classInfo.getRegion().addr());
+        setRegionInt(Header.TYPE.offset(Header.CLASS_ID), classInfo.id());
     }
 
     static String typeNameFromRegion(MemoryRegion region) {
-        ClassInfo ci = ClassInfo.getClassInfo(region.addr());
+        ClassInfo ci = ClassInfo.getClassInfo(region.getInt(0));
         return ci.className();
     }
 
@@ -421,9 +452,13 @@ public abstract class AnyPersistent {
     }
 
     void incRefCount() {
+        incRefCount(1);
+    }
+
+    void incRefCount(int delta) {
         Transaction.run(() -> {
             int oldCount = region.getInt(Header.TYPE.offset(Header.REF_COUNT));
-            region.putInt(Header.TYPE.offset(Header.REF_COUNT), oldCount + 1);
+            region.putInt(Header.TYPE.offset(Header.REF_COUNT), oldCount + delta);
             //  trace(true, addr(), "incRefCount(), type = %s, old = %d, new = %d", type, oldCount, getRefCount());
         }, this);
     }
@@ -450,42 +485,44 @@ public abstract class AnyPersistent {
     }
 
     void addReference() {
-        // Transaction.run(() -> {
-            incRefCount();
-            //setColor(CycleCollector.BLACK);
-        // }, this);
+        if (!Transaction.deferRefCount(this, addr(), 1)) incRefCount();
     }
 
     //TODO: analyze serialization / isolation of this
     public void deleteReference(boolean live) {
         // trace(true, addr(), "deleteReference(%s), type = %s ", live, getType());
         long address = addr();
+        if (!live && Transaction.deferRefCount(this, address, -1)) return;
         Transaction.run(() -> {
+            ObjectCache.claim(address);
             int count = getRefCount();
             boolean isCleanup = !live && count == 0;
             if (live) ObjectCache.remove(address);
-            else count = count == 0 ? 0 : decRefCount();
+            else if (count != 0) {
+                if (Config.COLLECT_CYCLES) CycleCollector.pin(address);
+                count = decRefCount();
+            }
             boolean reachable = (!live && !(ObjectCache.getReference(address, true)).isForAdmin());
             if (count == 0 && !reachable) {
-                Deque<Long> addrsToDelete = new ArrayDeque<>();
-                addrsToDelete.push(addr());
+                LongStack addrsToDelete = new LongStack();
+                LongStack childAddresses = new LongStack();
+                addrsToDelete.push(address);
                 while (!addrsToDelete.isEmpty()) {
                     long addrToDelete = addrsToDelete.pop();
-                    Iterator<Long> childAddresses = getChildAddressIterator(addrToDelete);
-                    ArrayList<ObjectCache.Ref<AnyPersistent>> children = new ArrayList<>();
-                    while (childAddresses.hasNext()) {
-                        long childAddress = childAddresses.next();
-                        children.add(ObjectCache.getReference(childAddress, true));
-                    }
-                    for (ObjectCache.Ref<AnyPersistent> childRef : children) {
+                    childAddresses.clear();
+                    childAddresses(heap.regionFromAddress(addrToDelete), true, childAddresses);
+                    for (int i = 0; i < childAddresses.size(); i++) {
+                        long childAddr = childAddresses.get(i);
+                        ObjectCache.claim(childAddr);
+                        ObjectCache.Ref<AnyPersistent> childRef = ObjectCache.getReference(childAddr, true);
                         AnyPersistent child = childRef.get();
                         Transaction.run(() -> {
-                            long childAddr = child.addr();
+                            if (Config.COLLECT_CYCLES) CycleCollector.pin(childAddr);
                             int crc = child.decRefCount();
                             if (crc == 0 && childRef.isForAdmin()) {
                                 addrsToDelete.push(childAddr);
-                            } else {
-                                //CycleCollector.addCandidate(childAddr);
+                            } else if (Config.COLLECT_CYCLES) {
+                                CycleCollector.addCandidate(childAddr);
                             }
                         }, child);
                     }
@@ -493,8 +530,8 @@ public abstract class AnyPersistent {
                     free(addrToDelete);
 
                 }
-            } else {
-                //CycleCollector.addCandidate(addr());
+            } else if (!live && Config.COLLECT_CYCLES) {
+                CycleCollector.addCandidate(address);
             }
             if(live) Transaction.getTransaction().reconstructions.clear();
         });
@@ -507,18 +544,12 @@ public abstract class AnyPersistent {
         obj.deleteReference(false);
     }
 
-    static String classNameForRegion(MemoryRegion reg) {
-        long classInfoAddr = reg.getLong(0);  // get class info address
-        return ClassInfo.getClassInfo(classInfoAddr).className();
-    }
-
+    // pushes the addresses of the counted references held by the object in parentRegion; byte vector
+    // payloads are freed along the way if release is true
     @SuppressWarnings("unchecked")
-    static Iterator<Long> getChildAddressIterator(long address) {
-        // trace(true, address, "getChildAddressIterator");
-        MemoryRegion parentRegion = ObjectCache.get(address, true).region();
-        String typeName = classNameForRegion(parentRegion);
-        ObjectType<?> parentType = Types.typeForName(typeName);
-        ArrayList<Long> childAddresses = new ArrayList<>();
+    static void childAddresses(MemoryRegion parentRegion, boolean release, LongStack childAddresses) {
+        ObjectType<?> parentType = (ObjectType<?>)ClassInfo.getClassInfo(parentRegion.getInt(0)).getType();
+        if (parentType instanceof ValueArrayType) parentType = PersistentValueArray.typeForRegion(parentRegion);
         if (parentType instanceof ArrayType && parentType.kind() == ObjectType.Kind.Reference) {
             ArrayType<?> arrType = (ArrayType)parentType;
             PersistentType et = arrType.elementType();
@@ -526,11 +557,12 @@ public abstract class AnyPersistent {
                 ObjectType<AnyPersistent> eot = (ObjectType)et;
                 int length = parentRegion.getInt(ReferenceArrayType.LENGTH_OFFSET);
                 if (eot.valueBased()) {
-                    if (PersistentByteVector.class.isAssignableFrom(eot.cls())) {
+                    if (release && PersistentByteVector.class.isAssignableFrom(eot.cls())) {
                         for (int i = 0; i < length; i++) {
                             long childAddr = parentRegion.getLong(arrType.elementOffset(i));
-                            long childOffset = parentRegion.addr() + parentType.offset(i);
-                            AnyPersistent obj = reconstruct(new ObjectPointer<AnyPersistent>(eot, new UncheckedPersistentMemoryRegion(childAddr)));
+                            if (childAddr == 0) continue;
+                            long childOffset = parentRegion.addr() + arrType.elementOffset(i);
+                            AnyPersistent obj = reconstruct(new ObjectPointer<AnyPersistent>(eot, heap.regionFromAddress(childAddr)));
                             obj.onFree(childOffset);
                         }
                     }
@@ -538,7 +570,7 @@ public abstract class AnyPersistent {
                 else {
                     for (int i = 0; i < length; i++) {
                         long childAddr = parentRegion.getLong(arrType.elementOffset(i));
-                        if (childAddr != 0) childAddresses.add(childAddr);
+                        if (childAddr != 0) childAddresses.push(childAddr);
                     }
                 }
             }
@@ -551,46 +583,31 @@ public abstract class AnyPersistent {
                     long childAddr = parentRegion.getLong(parentType.offset(i));
                     ObjectType ot = (ObjectType)ctype;
                     if (ot.valueBased()) {
-                        if (PersistentByteVector.class.isAssignableFrom(ot.cls())) {
-                            AnyPersistent obj = reconstruct(new ObjectPointer<AnyPersistent>(ot, new UncheckedPersistentMemoryRegion(childAddr)));
+                        if (release && PersistentByteVector.class.isAssignableFrom(ot.cls())) {
+                            AnyPersistent obj = reconstruct(new ObjectPointer<AnyPersistent>(ot, heap.regionFromAddress(childAddr)));
                             long childOffset = parentRegion.addr() + parentType.offset(i);
                             obj.onFree(childOffset);
                         }
-                        else if (ot.kind() == ObjectType.Kind.IndirectValue) {
-                            // System.out.println("free child indirect value");
+                        else if (release && ot.kind() == ObjectType.Kind.IndirectValue && childAddr != 0) {
+                            heap.freeRegion(heap.regionFromAddress(childAddr));
                         }
                     }
                     else if (childAddr != 0) {
-                        childAddresses.add(childAddr);
+                        childAddresses.push(childAddr);
                     }
                 }
             }
         }
         else {
-            throw new RuntimeException("getChildAddressIterator: unexpected type");
+            throw new RuntimeException("childAddresses: unexpected type");
         }
-        return childAddresses.iterator();
     }
 
-    // void setColor(byte color) {
-    //     setColor(color, false);
-    // }
-
-    // void setColor(byte color, boolean cc) {
-    //     if (CycleCollector.isProcessing() && !cc) {
-    //         CycleCollector.stashObjColorChange(addr(), color);
-    //     } else {
-    //         region.putByte(Header.TYPE.offset(Header.REF_COLOR), color);
-    //     }
-    // }
-
-    // byte getColor() {
-    //     return region.getByte(Header.TYPE.offset(Header.REF_COLOR));
-    // }
-
     boolean tryLock(Transaction transaction) {
         int max = transaction.timeout() + timeoutArray[timeoutCursor++ & TIMEOUT_MASK];
+        long start = LockProfiler.enabled ? System.nanoTime() : 0;
         boolean success = tryLock(max);
+        if (LockProfiler.enabled) LockProfiler.record(this, System.nanoTime() - start, success);
         if (success) {
             transaction.timeout(Config.MONITOR_ENTER_TIMEOUT);
         }
@@ -601,11 +618,18 @@ public abstract class AnyPersistent {
     }
 
     void lock() {
+        if (!LockProfiler.enabled) {
+            lock.lock();
+            return;
+        }
+        long start = System.nanoTime();
         lock.lock();
+        LockProfiler.record(this, System.nanoTime() - start, true);
     }
 
     boolean tryLock(long timeout) {
         boolean success = false;
+        long start = Config.ENABLE_LOCK_STATS ? System.nanoTime() : 0;
         if (!Config.USE_BLOCKING_LOCKS_FOR_DEBUG) {
             try {
                 success = lock.tryLock(timeout, TimeUnit.MILLISECONDS);
@@ -616,7 +640,10 @@ public abstract class AnyPersistent {
             lock();
             success = true;
         }
-        if (Config.ENABLE_LOCK_STATS) if (success) Stats.current.locks.acquired++; else Stats.current.locks.timeouts++;
+        if (Config.ENABLE_LOCK_STATS) {
+            Stats.current.locks.wait.record(System.nanoTime() - start);
+            if (success) Stats.current.locks.acquired.increment(); else Stats.current.locks.timeouts.increment();
+        }
         return success;
     }
 
@@ -24,34 +24,42 @@ package lib.util.persistent;
 import lib.util.persistent.types.Types;
 import lib.util.persistent.types.PersistentType;
 import lib.util.persistent.spi.PersistentMemoryProvider;
-import lib.xpersistent.UncheckedPersistentMemoryRegion;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
-import lib.xpersistent.XRoot;
 import static lib.util.persistent.Trace.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Arrays;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 
 public class ClassInfo {
     private static Map<String, ClassInfo> classInfo = new ConcurrentHashMap<>();
-    private static Map<Long, ClassInfo> reverseClassInfo = new ConcurrentHashMap<>();
-    protected static AtomicReference<ClassInfo> lastClassInfo = new AtomicReference<>(null);
+    private static volatile ClassInfo[] classInfoById = new ClassInfo[64];    // copy on write; index 0 unused
+    private static MemoryRegion registry;
     private static final PersistentHeap heap = PersistentMemoryProvider.getDefaultProvider().getHeap();
     // field offsets and allocation size
     private static final int CLASS_NAME = 0;  
-    private static final int NEXT_CLASS_INFO = 8; 
-    private static final int ALLOCATION_SIZE = 16;
+    private static final int ALLOCATION_SIZE = 8;
+    // registry table: class ids are dense and start at 1, so that a zero header marks an object whose
+    // construction was interrupted; the entry for id i holds the address of its ClassInfo region
+    private static final int REGISTRY_CAPACITY = 0;
+    private static final int REGISTRY_COUNT = 8;
+    private static final int REGISTRY_ENTRIES = 16;
+    private static final int INITIAL_REGISTRY_CAPACITY = 64;
     public static final String TYPE_FIELD_NAME = "TYPE";
     private static boolean initialized = false;
 
 
     private final MemoryRegion region;
+    private int id;
     private String className;
     private Class<?> cls;
     private Constructor reconstructor;
-    private PersistentType type;
+    private volatile MethodHandle factory;
+    private volatile PersistentType type;
 
     // constructor
     public ClassInfo(String className) {
@@ -61,18 +69,16 @@ public class ClassInfo {
             MemoryRegion r = box.set(heap.allocateRegion(allocationSize()));
             RawString rs = new RawString(className);
             r.putLong(CLASS_NAME, rs.getRegion().addr());
-            r.putLong(NEXT_CLASS_INFO, 0);
         });
         this.region = box.get();
     }
 
-    // reconstuctor
-    public ClassInfo(MemoryRegion region) {
+    // reconstuctor; the class itself is loaded by init() once every ClassInfo is known
+    public ClassInfo(MemoryRegion region, int id) {
         // trace(true, "ClassInfo reconstructor(%s)", region); 
         this.region = region;
+        this.id = id;
         this.className = className();
-        initReconstructor(className);
-        initType();
     }
 
     public static boolean isInitialized() {return initialized;}
@@ -82,15 +88,15 @@ public class ClassInfo {
         ClassInfo ci = classInfo.get(className);
         if (ci == null) {
             synchronized(ClassInfo.class) {
-                Transaction.runOuter(() -> {
-                    ClassInfo nci = new ClassInfo(className);
-                    if (lastClassInfo.get() != null) {
-                        lastClassInfo.get().setNextClassInfoAddr(nci.getRegion().addr());
-                    }
-                    classInfo.put(className, nci);
-                    reverseClassInfo.put(nci.getRegion().addr(), nci);
-                    lastClassInfo.set(nci);
-                }); 
+                if (classInfo.get(className) == null) {
+                    Box<ClassInfo> nci = new Box<>();
+                    Box<MemoryRegion> r = new Box<>();
+                    Transaction.runOuter(() -> {
+                        nci.set(new ClassInfo(className));
+                        r.set(register(nci.get()));
+                    });
+                    publish(nci.get(), r.get());
+                }
             }
         }
         return ci == null ? classInfo.get(className) : ci;
@@ -100,39 +106,88 @@ public class ClassInfo {
         return getClassInfo(cls.getName());
     }
 
-    public static synchronized ClassInfo getClassInfo(long addr) {
-        return reverseClassInfo.get(addr);
+    // lock-free; null if no class has this id
+    public static ClassInfo getClassInfo(int id) {
+        ClassInfo[] byId = classInfoById;
+        return id > 0 && id < byId.length ? byId[id] : null;
+    }
+
+    public static int classCount() {
+        return registry == null ? 0 : (int)registry.getLong(REGISTRY_COUNT);
     }
 
     public synchronized static void init() {
         // System.out.println("ClassInfo.init() enter");
         // rebuild classInfo map
-        XRoot root = (XRoot)heap.getRoot();
-        ClassInfo ci = null;
-        long rootClassInfoAddr = root.getRootClassInfoAddr();
-        if (rootClassInfoAddr == 0) {
-            ci = new ClassInfo("lib.util.persistent.PersistentString");
-            rootClassInfoAddr = ci.getRegion().addr();
-            root.setRootClassInfoAddr(rootClassInfoAddr);
+        Root root = heap.getRoot();
+        long registryAddr = root.getClassRegistryAddr();
+        if (registryAddr == 0) {
+            registry = Transaction.run(() -> {
+                MemoryRegion r = newRegistry(INITIAL_REGISTRY_CAPACITY);
+                root.setClassRegistryAddr(r.addr());
+                return r;
+            });
         }
-        else ci = new ClassInfo(new UncheckedPersistentMemoryRegion(rootClassInfoAddr));
-        lastClassInfo.set(ci);
-        classInfo.put(ci.className(), ci);
-        reverseClassInfo.put(ci.getRegion().addr(), ci);
-        long nextAddr = ci.getNextClassInfoAddr();
-        while(nextAddr != 0) {
-            ClassInfo old = ci;
-            ci = new ClassInfo(new UncheckedPersistentMemoryRegion(nextAddr));
-            // trace(true, "%s (%d) has next -> %s (%d)", old, old.getRegion().addr(), ci, ci.getRegion().addr());
+        else registry = heap.regionFromAddress(registryAddr);
+        int count = classCount();
+        ClassInfo[] byId = new ClassInfo[Math.max(classInfoById.length, count + 1)];
+        for (int id = 1; id <= count; id++) {
+            ClassInfo ci = new ClassInfo(heap.regionFromAddress(registry.getLong(entryOffset(id))), id);
             classInfo.put(ci.className(), ci);
-            reverseClassInfo.put(ci.getRegion().addr(), ci);
-            lastClassInfo.set(ci);
-            nextAddr = ci.getNextClassInfoAddr();
+            byId[id] = ci;
+        }
+        classInfoById = byId;
+        // classes are loaded only now: a static initializer may read objects of any registered class
+        for (int id = 1; id <= count; id++) {
+            byId[id].getFactory();
+            byId[id].getType();
         }
         initialized = true;        
         // System.out.println("ClassInfo.init() exit");
     }        
 
+    private static long entryOffset(int id) {
+        return REGISTRY_ENTRIES + 8L * (id - 1);
+    }
+
+    private static MemoryRegion newRegistry(long capacity) {
+        MemoryRegion r = heap.allocateRegion(REGISTRY_ENTRIES + 8 * capacity);
+        r.putLong(REGISTRY_CAPACITY, capacity);
+        r.putLong(REGISTRY_COUNT, 0);
+        return r;
+    }
+
+    // called with the ClassInfo.class lock held, inside a transaction; gives ci its id and returns the
+    // registry that holds it.  Nothing static changes here, so an abort leaves no trace of ci
+    private static MemoryRegion register(ClassInfo ci) {
+        MemoryRegion r = registry;
+        long count = r.getLong(REGISTRY_COUNT);
+        long capacity = r.getLong(REGISTRY_CAPACITY);
+        if (count == capacity) {
+            MemoryRegion old = r;
+            r = newRegistry(2 * capacity);
+            heap.memcpy(old, REGISTRY_ENTRIES, r, REGISTRY_ENTRIES, 8 * count);
+            heap.getRoot().setClassRegistryAddr(r.addr());
+            heap.freeRegion(old);
+        }
+        int id = (int)count + 1;
+        r.putLong(entryOffset(id), ci.getRegion().addr());
+        r.putLong(REGISTRY_COUNT, id);
+        ci.id = id;
+        return r;
+    }
+
+    // called with the ClassInfo.class lock held, once ci's registration has committed
+    private static void publish(ClassInfo ci, MemoryRegion r) {
+        registry = r;
+        ClassInfo[] byId = classInfoById;
+        if (ci.id >= byId.length) byId = Arrays.copyOf(byId, 2 * ci.id);
+        else byId = byId.clone();
+        byId[ci.id] = ci;
+        classInfoById = byId;
+        classInfo.put(ci.className(), ci);
+    }
+
 
     void initReconstructor(String className) {
         try {
@@ -140,6 +195,7 @@ public class ClassInfo {
             Constructor ctor = cls.getDeclaredConstructor(ObjectPointer.class);
             ctor.setAccessible(true);
             this.reconstructor = ctor;
+            this.factory = factory(ctor);
         }
         catch (ClassNotFoundException cnf) {throw new RuntimeException("Exception during initReconstructor: " + cnf.getMessage());}
         catch (NoSuchMethodException nsm) {throw new RuntimeException("Exception during initReconstructor: " + nsm.getMessage());}
@@ -150,6 +206,32 @@ public class ClassInfo {
         return reconstructor;
     }
 
+    // the reconstructor as an (ObjectPointer) -> AnyPersistent method handle; invokeExact on it
+    // avoids the access checks and argument boxing of Constructor.newInstance
+    public MethodHandle getFactory() {
+        if (factory == null) initReconstructor(className);
+        return factory;
+    }
+
+    // factory for cls, shared with its ClassInfo if there is one; does not register cls
+    public static MethodHandle getFactory(Class<?> cls) {
+        ClassInfo ci = classInfo.get(cls.getName());
+        if (ci != null) return ci.getFactory();
+        try {
+            Constructor ctor = cls.getDeclaredConstructor(ObjectPointer.class);
+            ctor.setAccessible(true);
+            return factory(ctor);
+        }
+        catch (NoSuchMethodException nsm) {throw new RuntimeException("Unable to get reconstructor: " + nsm.getMessage());}
+    }
+
+    private static MethodHandle factory(Constructor ctor) {
+        try {
+            return MethodHandles.lookup().unreflectConstructor(ctor).asType(MethodType.methodType(AnyPersistent.class, ObjectPointer.class));
+        }
+        catch (IllegalAccessException e) {throw new RuntimeException("Unable to get reconstructor: " + e.getMessage());}
+    }
+
     void initType() {
         Field typeField = getTypeField(className);
         try {
@@ -181,16 +263,22 @@ public class ClassInfo {
         catch (ClassNotFoundException cnf) {throw new RuntimeException("Exception during initTypeField: " + cnf.getMessage());}
     }
 
-    public synchronized PersistentType getType() {
-        if (type == null) initType();
-        return type;
+    public PersistentType getType() {
+        PersistentType ans = type;
+        if (ans != null) return ans;
+        synchronized(this) {
+            if (type == null) initType();
+            return type;
+        }
     }
 
     public MemoryRegion getRegion() {return region;}
 
+    public int id() {return id;}
+
     public String className() {
         if (className != null) return className;
-        className = new RawString(new UncheckedPersistentMemoryRegion(region.getLong(CLASS_NAME))).toString();
+        className = new RawString(heap.regionFromAddress(region.getLong(CLASS_NAME))).toString();
         return className;
     }
 
@@ -198,17 +286,11 @@ public class ClassInfo {
 
     public long getClassNameAddr() {return region.getLong(CLASS_NAME);}
 
-    public long getNextClassInfoAddr() {return region.getLong(NEXT_CLASS_INFO);}
-
-    public void setNextClassInfoAddr(long addr) {
-        Transaction.run(() -> {
-            region.putLong(NEXT_CLASS_INFO, addr);
-        });
-    }
+    public static long getRegistryAddr() {return registry == null ? 0 : registry.addr();}
 
     private int allocationSize() {return ALLOCATION_SIZE;}
 
     public String toString() {
-        return String.format("ClassInfo {\n  className = %s\n  cls = %s\n  rctor = %s\n  type = %s\n}", className, cls, reconstructor, type); 
+        return String.format("ClassInfo {\n  id = %d\n  className = %s\n  cls = %s\n  rctor = %s\n  type = %s\n}", id, className, cls, reconstructor, type); 
     }
 }
@@ -39,7 +39,14 @@ public class Config {
     public static final boolean USE_BLOCKING_LOCKS_FOR_DEBUG = false;
 
     public static final boolean REMOVE_FROM_OBJECT_CACHE_ON_ENQUEUE = false;
-    public static final boolean COLLECT_CYCLES = false;
+    public static final int OBJECT_CACHE_COLLECTOR_THREADS = 2;
+    public static final int OBJECT_CACHE_COLLECTOR_BATCH_SIZE = 64;   // enqueued references released per transaction
+    public static final boolean COALESCE_REF_COUNTS = true;            // see Transaction.deferRefCount()
+    public static final boolean COLLECT_CYCLES = false;                // opt-in: registering candidates adds a durable write per decrement
+    public static final int CYCLE_CANDIDATE_BUFFER_SIZE = 1 << 16;     // persistent candidate slots; candidates beyond this are dropped
+    public static final int CYCLE_COLLECTION_THRESHOLD = 4096;         // candidates that start a collection pass early
+    public static final int CYCLE_COLLECTION_INTERVAL = 1000;          // ms between collection passes
+    public static final int CYCLE_COLLECTION_MAX_GRAPH = 1 << 16;      // objects examined for one candidate before it is dropped
 
     public static boolean ENABLE_STATS = true;
     public static final boolean ENABLE_OBJECT_CACHE_STATS = ENABLE_STATS &&     false;
@@ -47,4 +54,7 @@ public class Config {
     public static final boolean ENABLE_TRANSACTION_STATS = ENABLE_STATS &&      true;
     public static final boolean ENABLE_LOCK_STATS = ENABLE_STATS &&             false;
     public static final boolean ENABLE_ALLOC_STATS = ENABLE_STATS &&            false;
+
+    public static final boolean ENABLE_LOCK_PROFILING = false;         // see LockProfiler; can also be turned on at runtime
+    public static final int LOCK_PROFILING_SAMPLE_RATE = 16;           // 1 in N uncontended acquisitions is recorded
 }
\ No newline at end of file
@@ -22,233 +22,409 @@
 package lib.util.persistent;
 
 import lib.util.persistent.spi.PersistentMemoryProvider;
-import lib.xpersistent.XRoot;
-import lib.xpersistent.XHeap;
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.Deque;
-import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+// Reclaims garbage cycles, which reference counting alone never frees.  An object whose reference count
+// is decremented without freeing it becomes a candidate; candidates are kept in a persistent buffer so
+// that they survive restarts.  A background thread examines them one at a time by trial deletion: counts
+// are trial-decremented for every reference internal to the graph reachable from the candidate, and the
+// part of that graph which has no outside references and no volatile wrapper is garbage.  Trial counts
+// live in volatile memory, so examining a candidate writes nothing to the heap, and freeing the garbage
+// it leads to is a transaction of its own.
+//
+// An uncommitted transaction can hold a reference it has just removed from the heap; such objects are
+// pinned from before their count is decremented until that transaction ends, and are never collected
+// while pinned.
+//
+// Registration is striped by address, each stripe owning its own range of buffer slots, so committing
+// transactions do not serialize on one lock.  The buffer is only allocated once the first candidate
+// is registered.
 public class CycleCollector {
+    private static final String BUFFER_KEY = "lib.util.persistent.CycleCollector.candidates";
+    private static final PersistentHeap heap = PersistentMemoryProvider.getDefaultProvider().getHeap();
 
-    /*public static final byte BLACK = 0;
-    public static final byte PURPLE = 1;
-    public static final byte GREY = 2;
-    public static final byte WHITE = 3;
-
-    // static HashSet<Long> candidatesSet = new HashSet<>();
-    static PersistentConcurrentHashMapInternal candidatesSet;
-    static HashSet<Long> freedCandidates = new HashSet<>();
-    static XHeap heap;
-    static XRoot root;
-    static AtomicBoolean processing = new AtomicBoolean();
-    static HashMap<Long, Byte> colorChangesWhileCollecting = new HashMap<>();
-
-    static HashMap<String, Integer> markedTypeCount = new HashMap<>();
-    static HashMap<String, Integer> markedFreedTypeCount = new HashMap<>();
-    static HashMap<String, Integer> markedGreyTypeCount = new HashMap<>();
-    static HashMap<String, Integer> markedAlreadyGreyTypeCount = new HashMap<>();
-    static HashMap<String, Integer> scannedTypeCount = new HashMap<>();
-    static HashMap<String, Integer> collectedTypeCount = new HashMap<>();
-    static HashMap<String, Integer> collectedWhiteTypeCount = new HashMap<>();
-
-    // public static synchronized HashSet<Long> getCandidates() { return candidatesSet; }
-
-    public static synchronized void collect() {
-        if (Config.COLLECT_CYCLES) {
-            Transaction.run(() -> {
-                heap = ((XHeap)(PersistentMemoryProvider.getDefaultProvider().getHeap()));
-                root = ((XRoot)(heap.getRoot()));
-                processing.set(true);
-                candidatesSet = root.getCandidates();
-                markCandidates();
-                PersistentConcurrentHashMapInternal.EntryIterator iter = candidatesSet.iter();
-                while (iter.hasNext()) {
-                    PersistentConcurrentHashMapInternal.NodeLL node = iter.next();
-                    Deque<Long> stack = new ArrayDeque<>();
-                    stack.push(node.getKey());
-                    scan(stack);
-                }
-                collectCandidates();
-                // root.clearCandidates();
-                processing.set(false);
-                synchronized(colorChangesWhileCollecting) {
-                    for (Map.Entry<Long, Byte> e : colorChangesWhileCollecting.entrySet()) {
-                        AnyPersistent obj = ObjectCache.get(e.getKey(), true);
-                        obj.setColor(e.getValue());
+    private static final int STRIPES = 16;
+
+    private static volatile PersistentLongArray buffer;
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+    private static final AtomicInteger candidates = new AtomicInteger();
+    private static final AtomicLong frees = new AtomicLong();                           // objects freed so far
+    private static final Map<Long, Integer> pinned = new ConcurrentHashMap<>();         // address -> pinning transactions
+    private static final ThreadLocal<Pending> pending = ThreadLocal.withInitial(Pending::new);
+    private static final Object passLock = new Object();
+    private static final Object wakeup = new Object();
+    private static volatile boolean initialized;
+    private static Thread collector;
+
+    // candidates whose address hashes to one stripe, and the buffer slots they may use
+    private static final class Stripe {
+        final Map<Long, Integer> slots = new HashMap<>();                  // candidate -> buffer slot
+        final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+        final Set<Long> renewed = new HashSet<>();                          // registered again while being examined
+    }
+
+    static {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    private static Stripe stripe(long addr) {
+        return stripes[Long.hashCode(addr * 0x9E3779B97F4A7C15L) & (STRIPES - 1)];
+    }
+
+    // loads the candidate buffer, if one was ever allocated; called by heaps when they open, before
+    // residual references are cleaned up
+    public static synchronized void init() {
+        if (!Config.COLLECT_CYCLES || initialized) return;
+        initialized = true;
+        AnyPersistent obj = heap.getRoot().getObjectDirectory().get(new PersistentString(BUFFER_KEY));
+        if (obj != null) load((PersistentLongArray)obj);
+    }
+
+    private static void load(PersistentLongArray buf) {
+        MemoryRegion region = buf.region();
+        int perStripe = buf.length() / STRIPES;
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes[s];
+            synchronized (stripe) {
+                for (int i = (s + 1) * perStripe - 1; i >= s * perStripe; i--) {
+                    long addr = region.getLong(buf.elementOffset(i));
+                    if (addr == 0) stripe.freeSlots.push(i);
+                    // a candidate may sit in another stripe's slot if STRIPES changed since it was stored
+                    else {
+                        Stripe owner = stripe(addr);
+                        synchronized (owner) {owner.slots.put(addr, i);}
+                        candidates.incrementAndGet();
                     }
-                    colorChangesWhileCollecting.clear();
-                }
-            });
-            root.deleteOldCandidates();
-        }
-    }
-
-    private static void markCandidates() {
-        PersistentConcurrentHashMapInternal.EntryIterator iter = candidatesSet.iter();
-        String type;
-        int count;
-        while (iter.hasNext()) {
-            PersistentConcurrentHashMapInternal.NodeLL node = iter.next();
-            Long l = node.getKey();
-            AnyPersistent obj = ObjectCache.get(l, true);
-            type = obj.getType().getName();
-            count = markedTypeCount.containsKey(type) ? markedTypeCount.get(type) : 0;
-            markedTypeCount.put(type, count + 1);
-            if (obj.getColor() == PURPLE) {
-                Deque<Long> stack = new ArrayDeque<>();
-                stack.push(l);
-                markGrey(stack);
-            } else {
-                iter.remove();
-                if (obj.getColor() == BLACK && obj.getRefCount() == 0) {
-                    System.out.println("address " + l + " object " + obj + " needs to be freed");
-                    type = obj.getType().getName();
-                    count = markedFreedTypeCount.containsKey(type) ? markedFreedTypeCount.get(type) : 0;
-                    markedFreedTypeCount.put(type, count + 1);
-                    AnyPersistent.free(l);
-                    root.removeFromAllObjects(l);
                 }
             }
         }
+        buffer = buf;
     }
 
-    private static void markGrey(Deque<Long> stack) {
-        String type;
-        int count;
-        while (!stack.isEmpty()) {
-            Long l = stack.pop();
-            AnyPersistent obj = ObjectCache.get(l, true);
-            type = obj.getType().getName();
-            count = scannedTypeCount.containsKey(type) ? scannedTypeCount.get(type) : 0;
-            scannedTypeCount.put(type, count + 1);
-            if (obj.getColor() != GREY) {
-                Iterator<Long> childAddresses = AnyPersistent.getChildAddressIterator(l);
-                while (childAddresses.hasNext()) {
-                    long childAddr = childAddresses.next();
-                    // System.out.println("processing child addr " + childAddr);
-                    ObjectCache.get(childAddr, true).decRefCount();
-                    stack.push(childAddr);
-                }
-                obj.setColor(GREY, true);
-                type = obj.getType().getName();
-                count = markedGreyTypeCount.containsKey(type) ? markedGreyTypeCount.get(type) : 0;
-                markedGreyTypeCount.put(type, count + 1);
-            } else {
-                type = obj.getType().getName();
-                count = markedAlreadyGreyTypeCount.containsKey(type) ? markedAlreadyGreyTypeCount.get(type) : 0;
-                markedAlreadyGreyTypeCount.put(type, count + 1);
-            }
-        }
-    }
-
-    private static void scan(Deque<Long> stack) {
-        while (!stack.isEmpty()) {
-            Long l = stack.pop();
-            AnyPersistent obj = ObjectCache.get(l, true);
-            if (obj.getColor() == GREY) {
-                if (obj.getRefCount() > 0) {
-                    Deque<Long> scanBlackStack = new ArrayDeque<>();
-                    scanBlackStack.push(l);
-                    scanBlack(scanBlackStack);
-                } else {
-                    Iterator<Long> childAddresses = AnyPersistent.getChildAddressIterator(l);
-                    while (childAddresses.hasNext()) {
-                        long childAddr = childAddresses.next();
-                        stack.push(childAddr);
-                    }
-                    obj.setColor(WHITE, true);
-                }
+    // allocates the candidate buffer on first use
+    private static PersistentLongArray buffer() {
+        PersistentLongArray buf = buffer;
+        if (buf != null) return buf;
+        synchronized (CycleCollector.class) {
+            if (buffer == null) {
+                PersistentHashMap<PersistentString, AnyPersistent> directory = heap.getRoot().getObjectDirectory();
+                load(Transaction.run(() -> {
+                    PersistentString key = new PersistentString(BUFFER_KEY);
+                    AnyPersistent obj = directory.get(key);
+                    if (obj == null) directory.put(key, obj = new PersistentLongArray(Config.CYCLE_CANDIDATE_BUFFER_SIZE));
+                    return (PersistentLongArray)obj;
+                }));
             }
+            return buffer;
         }
     }
 
-    private static void scanBlack(Deque<Long> stack) {
-        while (!stack.isEmpty()) {
-            Long l = stack.pop();
-            ObjectCache.get(l, true).setColor(BLACK, true);
-            Iterator<Long> childAddresses = AnyPersistent.getChildAddressIterator(l);
-            while (childAddresses.hasNext()) {
-                long childAddr = childAddresses.next();
-                AnyPersistent child = ObjectCache.get(childAddr, true);
-                child.incRefCount();
-                if (child.getColor() != BLACK) {
-                    stack.push(childAddr);
-                }
+    // called once the heap is open and cleaned; the collector must not reconstruct objects while
+    // recovery is still running
+    public static synchronized void start() {
+        if (!initialized || collector != null) return;
+        collector = new Thread(CycleCollector::run, "CycleCollector");
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    public static int candidateCount() {
+        return candidates.get();
+    }
+
+    // called before the reference count of the object at addr is decremented
+    static void pin(long addr) {
+        pinned.merge(addr, 1, Integer::sum);
+        Pending p = pending.get();
+        p.pinned.add(addr);
+        p.register();
+    }
+
+    // the object at addr lost a reference but was not freed; it becomes a candidate if the
+    // calling transaction commits
+    static void addCandidate(long addr) {
+        Pending p = pending.get();
+        p.candidates.add(addr);
+        p.register();
+    }
+
+    // the object at addr is being freed
+    static void freed(long addr) {
+        frees.incrementAndGet();
+        pending.get().candidates.remove(addr);
+        removeCandidate(addr);
+    }
+
+    private static void register(long addr) {
+        if (!initialized) return;
+        PersistentLongArray buf = buffer();
+        Stripe stripe = stripe(addr);
+        synchronized (stripe) {
+            if (stripe.slots.containsKey(addr)) {
+                stripe.renewed.add(addr);
+                return;
             }
+            Integer slot = stripe.freeSlots.poll();
+            if (slot == null) {
+                if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.cycleCandidatesDropped.increment();
+                wake();
+                return;
+            }
+            stripe.slots.put(addr, slot);
+            buf.region().putDurableLong(buf.elementOffset(slot), addr);
         }
+        if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.cycleCandidates.increment();
+        if (candidates.incrementAndGet() == Config.CYCLE_COLLECTION_THRESHOLD) wake();
     }
 
-    private static void collectCandidates() {
-        PersistentConcurrentHashMapInternal.EntryIterator iter = candidatesSet.iter();
-        while (iter.hasNext()) {
-            PersistentConcurrentHashMapInternal.NodeLL node = iter.next();
-            Long l = node.getKey();
-            iter.remove();
-            Deque<Long> stack = new ArrayDeque<>();
-            stack.push(l);
-            collectWhite(stack);
-        }
-    }
-
-    private static void collectWhite(Deque<Long> stack) {
-        String type;
-        int count;
-        while (!stack.isEmpty()) {
-            Long l = stack.pop();
-            if (!freedCandidates.contains(l)) {
-                AnyPersistent obj = ObjectCache.get(l, true);
-                if (obj.getColor() == WHITE && !candidatesSet.containsKey(l)) {
-                    type = obj.getType().getName();
-                    count = collectedWhiteTypeCount.containsKey(type) ? collectedWhiteTypeCount.get(type) : 0;
-                    collectedWhiteTypeCount.put(type, count + 1);
-                    obj.setColor(BLACK, true);
-                    Iterator<Long> childAddresses = AnyPersistent.getChildAddressIterator(l);
-                    while (childAddresses.hasNext()) {
-                        long childAddr = childAddresses.next();
-                        stack.push(childAddr);
-                    }
-                    AnyPersistent.free(l);
-                    freedCandidates.add(l);
-                    root.removeFromAllObjects(l);
+    private static void removeCandidate(long addr) {
+        if (buffer == null) return;
+        Stripe stripe = stripe(addr);
+        synchronized (stripe) {
+            remove(stripe, addr);
+        }
+    }
+
+    // must hold the stripe's lock
+    private static void remove(Stripe stripe, long addr) {
+        Integer slot = stripe.slots.remove(addr);
+        if (slot == null) return;
+        stripe.renewed.remove(addr);
+        buffer.region().putDurableLong(buffer.elementOffset(slot), 0);
+        stripe.freeSlots.push(slot);
+        candidates.decrementAndGet();
+    }
+
+    private static void wake() {
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            synchronized (wakeup) {
+                try {wakeup.wait(Config.CYCLE_COLLECTION_INTERVAL);}
+                catch (InterruptedException ie) {return;}
+            }
+            collect();
+        }
+    }
+
+    // examines every candidate registered when the pass starts; returns the number of objects freed
+    public static long collect() {
+        synchronized (passLock) {
+            ArrayList<Long> pass = new ArrayList<>();
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    pass.addAll(stripe.slots.keySet());
                 }
             }
+            long freed = 0;
+            for (long candidate : pass) freed += examine(candidate);
+            return freed;
+        }
+    }
+
+    private static long examine(long candidate) {
+        Stripe stripe = stripe(candidate);
+        synchronized (stripe) {
+            if (!stripe.slots.containsKey(candidate)) return 0;
+            stripe.renewed.remove(candidate);
+        }
+        long freesBefore = frees.get();
+        Graph graph = new Graph();
+        long freed = 0;
+        try {
+            if (!graph.build(candidate)) {
+                // too large to examine in one step; a heap walk will still find any garbage behind it
+                if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.cycleCandidatesDropped.increment();
+                retire(candidate);
+                return 0;
+            }
+            graph.scan();
+            ArrayList<Long> garbage = graph.garbage();
+            if (!garbage.isEmpty()) {
+                freed = release(graph, garbage);
+                if (freed == 0) return 0;       // graph changed under us; try again next pass
+            }
+        }
+        catch (RuntimeException e) {
+            // reading an object that was freed while the graph was built can fail in many ways; try again
+            // next pass.  Anything else is a bug, and the candidate is dropped so it is not hit every pass
+            if (frees.get() != freesBefore) return freed;
+            System.err.println("CycleCollector: dropping candidate " + candidate + " after unexpected exception");
+            e.printStackTrace();
+            if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.cycleCandidatesDropped.increment();
+            removeCandidate(candidate);
+            return freed;
+        }
+        if (!graph.deferred) retire(candidate);
+        return freed;
+    }
+
+    private static void retire(long candidate) {
+        Stripe stripe = stripe(candidate);
+        synchronized (stripe) {
+            if (!stripe.renewed.remove(candidate)) remove(stripe, candidate);
         }
     }
 
-    static void addCandidate(AnyPersistent obj) {
-        long addr = obj.addr();
-        Transaction.run(() -> {
-            if (obj.getColor() != PURPLE) {
-                if (processing.get() == true) {
-                    stashObjColorChange(addr, PURPLE);
-                } else {
-                    obj.setColor(PURPLE);
+    // frees garbage after checking that no reference to it has appeared since the graph was built
+    private static long release(Graph graph, ArrayList<Long> garbage) {
+        HashSet<Long> set = new HashSet<>(garbage);
+        long freed = Transaction.run(() -> {
+            HashMap<Long, Integer> internal = new HashMap<>();
+            for (long addr : garbage) {
+                if (ObjectCache.contains(addr) || pinned.containsKey(addr)) return 0L;
+                MemoryRegion region = heap.regionFromAddress(addr);
+                if (region.getInt(0) != graph.nodes.get(addr).classId) return 0L;
+                LongStack children = new LongStack();
+                AnyPersistent.childAddresses(region, false, children);
+                for (int i = 0; i < children.size(); i++) {
+                    if (set.contains(children.get(i))) internal.merge(children.get(i), 1, Integer::sum);
                 }
-                ((XRoot)(PersistentMemoryProvider.getDefaultProvider().getHeap().getRoot())).addToCandidates(addr);
             }
+            for (long addr : garbage) {
+                if (refCount(addr) != internal.getOrDefault(addr, 0)) return 0L;
+            }
+            for (long addr : garbage) {
+                if (pinned.containsKey(addr)) return 0L;
+            }
+            LongStack children = new LongStack();
+            for (long addr : garbage) {
+                children.clear();
+                AnyPersistent.childAddresses(heap.regionFromAddress(addr), true, children);
+                for (int i = 0; i < children.size(); i++) {
+                    if (!set.contains(children.get(i))) ObjectCache.get(children.get(i), true).deleteReference(false);
+                }
+            }
+            for (long addr : garbage) AnyPersistent.free(addr);
+            return (long)garbage.size();
         });
+        if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.cycleObjectsFreed.add(freed);
+        return freed;
     }
 
-    static void addCandidate(long addr) {
-        addCandidate(ObjectCache.get(addr, true));
+    private static int refCount(long addr) {
+        return heap.regionFromAddress(addr).getInt(Header.TYPE.offset(Header.REF_COUNT));
     }
 
-    static synchronized void removeFromCandidates(long addr) {
-        ((XRoot)(PersistentMemoryProvider.getDefaultProvider().getHeap().getRoot())).removeFromCandidates(addr);
-    }
+    private static final class Graph {
+        final HashMap<Long, Node> nodes = new HashMap<>();
+        boolean deferred;       // some of the graph is kept alive only by volatile references; look again later
+
+        static final class Node {
+            final int classId;
+            final long[] children;
+            int trial;
+            boolean live;
+
+            Node(int classId, long[] children, int trial) {
+                this.classId = classId;
+                this.children = children;
+                this.trial = trial;
+            }
+        }
+
+        // trial-deletes the references internal to the graph reachable from start; returns false if the
+        // graph is larger than Config.CYCLE_COLLECTION_MAX_GRAPH
+        boolean build(long start) {
+            ArrayDeque<Long> stack = new ArrayDeque<>();
+            visit(start);
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                for (long child : nodes.get(stack.pop()).children) {
+                    Node node = nodes.get(child);
+                    if (node == null) {
+                        if (nodes.size() == Config.CYCLE_COLLECTION_MAX_GRAPH) return false;
+                        node = visit(child);
+                        stack.push(child);
+                    }
+                    node.trial--;
+                }
+            }
+            return true;
+        }
+
+        private Node visit(long addr) {
+            MemoryRegion region = heap.regionFromAddress(addr);
+            LongStack children = new LongStack();
+            AnyPersistent.childAddresses(region, false, children);
+            long[] ca = new long[children.size()];
+            for (int i = 0; i < ca.length; i++) ca[i] = children.get(i);
+            Node node = new Node(region.getInt(0), ca, region.getInt(Header.TYPE.offset(Header.REF_COUNT)));
+            nodes.put(addr, node);
+            return node;
+        }
+
+        // objects referenced from outside the graph are live, and so is everything they reach; objects
+        // held by a volatile wrapper or a pinning transaction are live for now
+        void scan() {
+            ArrayDeque<Long> stack = new ArrayDeque<>();
+            for (Map.Entry<Long, Node> e : nodes.entrySet()) {
+                if (e.getValue().trial > 0) stack.push(e.getKey());
+            }
+            markLive(stack);
+            for (Map.Entry<Long, Node> e : nodes.entrySet()) {
+                long addr = e.getKey();
+                if (!e.getValue().live && (ObjectCache.contains(addr) || pinned.containsKey(addr))) {
+                    deferred = true;
+                    stack.push(addr);
+                }
+            }
+            markLive(stack);
+        }
 
-    static boolean isProcessing() { return processing.get(); }
-    static void stashObjColorChange(long addr, byte color) {
-        synchronized(colorChangesWhileCollecting) {
-            colorChangesWhileCollecting.put(addr, color);
+        private void markLive(ArrayDeque<Long> stack) {
+            while (!stack.isEmpty()) {
+                Node node = nodes.get(stack.pop());
+                if (node.live) continue;
+                node.live = true;
+                for (long child : node.children) {
+                    if (!nodes.get(child).live) stack.push(child);
+                }
+            }
+        }
+
+        ArrayList<Long> garbage() {
+            ArrayList<Long> ans = new ArrayList<>();
+            for (Map.Entry<Long, Node> e : nodes.entrySet()) {
+                if (!e.getValue().live) ans.add(e.getKey());
+            }
+            return ans;
         }
     }
 
-    static synchronized boolean isCandidate(long addr) {
-        return candidatesSet.containsKey(addr);
-    }*/
+    // candidates and pins of the calling thread's transaction
+    private static final class Pending {
+        final ArrayList<Long> pinned = new ArrayList<>();
+        final LinkedHashSet<Long> candidates = new LinkedHashSet<>();
+        boolean registered;
+
+        void register() {
+            if (registered) return;
+            registered = Transaction.addHandlers(() -> end(true), () -> end(false));
+            if (!registered) end(true);
+        }
+
+        void end(boolean committed) {
+            registered = false;
+            if (committed) {
+                for (long addr : candidates) CycleCollector.register(addr);
+            }
+            candidates.clear();
+            for (long addr : this.pinned) CycleCollector.pinned.computeIfPresent(addr, (a, n) -> n == 1 ? null : n - 1);
+            this.pinned.clear();
+        }
+    }
 }
@@ -27,14 +27,13 @@ import lib.util.persistent.types.Types;
 import lib.util.persistent.types.PersistentType;
 
 public class Header {
-    static final int CLASS_INFO = 0;  // must be first field
+    static final int CLASS_ID = 0;  // must be first field; see ClassInfo.getClassInfo(int)
     static final int REF_COUNT = 1;
 
     // TODO: should not be public
     public static final PersistentType[] TYPES = new PersistentType[] {
-        Types.LONG,        // CLASS_INFO
+        Types.INT,         // CLASS_ID
         Types.INT,         // REF_COUNT
-        Types.INT,         // PADDING
     };
 
     // TODO: should not be public
@@ -0,0 +1,385 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.util.persistent;
+
+import lib.util.persistent.spi.PersistentMemoryProvider;
+import lib.util.persistent.types.ArrayType;
+import lib.util.persistent.types.ObjectType;
+import lib.util.persistent.types.PersistentType;
+import lib.util.persistent.types.ReferenceArrayType;
+import lib.util.persistent.types.ValueArrayType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* Finds regions that cannot be reached from the root: objects orphaned by a crash between allocation
+   and linking, unreclaimed cycles, and raw regions (e.g. byte vector payloads) whose owner is gone.
+
+    -- analyze() only reads the heap; it may run while the heap is in use, but objects held only by
+       volatile references or by uncommitted transactions then show up as unreachable
+    -- free() releases the unreachable object regions of a report, never raw ones; it must only be used
+       when no other thread is using the heap, e.g. from main() right after the heap is opened
+    -- reachability follows typed fields only, so a report is marked incomplete, and cannot be freed,
+       if any reachable object's type is unknown
+*/
+public class HeapWalker {
+    private static final PersistentHeap heap = PersistentMemoryProvider.getDefaultProvider().getHeap();
+    private static final int SPLIT_THRESHOLD = 256;
+
+    public static void main(String[] args) {
+        boolean free = args.length > 0 && args[0].equals("--free");
+        heap.open();
+        Report report = analyze();
+        System.out.println(report);
+        if (free) {
+            long freed = free(report);
+            System.out.format("Freed %,d regions; left %,d raw regions%n", freed, report.unreachable.size() - freed);
+        }
+    }
+
+    public static Report analyze() {
+        return analyze(Runtime.getRuntime().availableProcessors());
+    }
+
+    public static Report analyze(int threads) {
+        Walk walk = new Walk();
+        heap.forEachRegion(walk::add);
+        walk.sort();
+        Root root = heap.getRoot();
+        walk.markRaw(root.getRootRegionAddr());
+        walk.markRaw(root.getClassRegistryAddr());
+        for (int id = 1; id <= ClassInfo.classCount(); id++) {
+            ClassInfo ci = ClassInfo.getClassInfo(id);
+            if (ci == null) {
+                walk.incomplete("class id " + id);
+                break;
+            }
+            walk.markRaw(ci.getRegion().addr());
+            walk.markRaw(ci.getClassNameAddr());
+        }
+        // the object directory region has no class info in its header, so its type comes from the root
+        AnyPersistent directory = root.getObjectDirectory();
+        ArrayDeque<Long> roots = new ArrayDeque<>();
+        walk.markRaw(directory.addr());
+        forEachChild(directory.region(), directory.getType(), roots::add, walk::markRaw);
+        ObjectCache.forEachAddress(roots::add);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (long addr : roots) if (walk.mark(addr)) pool.execute(new Scan(walk, addr));
+            pool.awaitQuiescence(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        finally {pool.shutdown();}
+        return walk.report();
+    }
+
+    // frees the unreachable object regions found by report; returns the number of regions freed.
+    // Raw regions (byte vector payloads, registry tables, ...) are left alone: nothing in them shows
+    // whether they are garbage or held through storage the walk cannot follow
+    public static long free(Report report) {
+        if (!report.complete()) throw new IllegalStateException("heap walk was incomplete: " + report.problem);
+        long count = 0;
+        for (Region r : report.unreachable) {
+            if (!hasClassHeader(r)) continue;
+            Transaction.run(() -> {
+                releaseChildren(r.addr);
+                if (Config.COLLECT_CYCLES) CycleCollector.freed(r.addr);
+                heap.freeRegion(heap.regionFromAddress(r.addr));
+            });
+            count++;
+        }
+        return count;
+    }
+
+    // an object region whose header holds a registered class id
+    private static boolean hasClassHeader(Region r) {
+        return r.object && r.size >= Header.TYPE.allocationSize() && typeOf(r.addr) != null;
+    }
+
+    // children that stay reachable lose the reference held by the freed object
+    private static void releaseChildren(long addr) {
+        ObjectType<?> type = typeOf(addr);
+        if (type == null) return;
+        forEachChild(heap.regionFromAddress(addr), type, child -> {
+            MemoryRegion region = heap.regionFromAddress(child);
+            int count = region.getInt(refCountOffset());
+            if (count > 1) region.putInt(refCountOffset(), count - 1);
+        }, raw -> {});
+    }
+
+    // not a constant: loading Header before the type system is initialized breaks its static initialization
+    private static long refCountOffset() {
+        return Header.TYPE.offset(Header.REF_COUNT);
+    }
+
+    // type of the object at addr, or null if the region does not start with a known class id
+    private static ObjectType<?> typeOf(long addr) {
+        ClassInfo ci = ClassInfo.getClassInfo(heap.regionFromAddress(addr).getInt(0));
+        if (ci == null) return null;
+        PersistentType type = ci.getType();
+        return type instanceof ObjectType ? (ObjectType<?>)type : null;
+    }
+
+    private interface AddressConsumer {void accept(long addr);}
+
+    // reads references straight from the region; unlike AnyPersistent.childAddresses(), it also reports
+    // value-based payloads, as raw regions
+    @SuppressWarnings("unchecked")
+    private static void forEachChild(MemoryRegion region, ObjectType<?> type, AddressConsumer objects, AddressConsumer raw) {
+        if (type instanceof ArrayType) {
+            if (type.kind() != ObjectType.Kind.Reference) return;
+            if (type instanceof ValueArrayType) type = PersistentValueArray.typeForRegion(region);
+            ArrayType<?> arrayType = (ArrayType<?>)type;
+            if (!(arrayType.elementType() instanceof ObjectType)) return;
+            ObjectType<?> elementType = (ObjectType<?>)arrayType.elementType();
+            // indirect values in a value array are inline, not pointers
+            if (type instanceof ValueArrayType && elementType.kind() == ObjectType.Kind.IndirectValue) return;
+            int length = region.getInt(ReferenceArrayType.LENGTH_OFFSET);
+            for (int i = 0; i < length; i++) {
+                child(region.getLong(arrayType.elementOffset(i)), elementType, objects, raw);
+            }
+        }
+        else {
+            List<PersistentType> types = type.fieldTypes();
+            for (int i = Header.TYPE.fieldCount(); i < type.fieldCount(); i++) {
+                PersistentType fieldType = types.get(i);
+                if (fieldType instanceof ObjectType) child(region.getLong(type.offset(i)), (ObjectType<?>)fieldType, objects, raw);
+            }
+        }
+    }
+
+    private static void child(long value, ObjectType<?> type, AddressConsumer objects, AddressConsumer raw) {
+        if (value == 0) return;
+        if (!type.valueBased()) objects.accept(value);
+        else if (PersistentByteVector.class.isAssignableFrom(type.cls()) || type.kind() == ObjectType.Kind.IndirectValue) raw.accept(value);
+        else if (type.kind() == ObjectType.Kind.Generic) {
+            ObjectType<?> actual = typeOf(value);
+            if (actual != null && !actual.valueBased()) objects.accept(value);
+            else raw.accept(value);
+        }
+    }
+
+    private static final class Walk {
+        private long[] addrs = new long[1024];
+        private long[] sizes = new long[1024];
+        private boolean[] objects = new boolean[1024];
+        private int count;
+        private AtomicLongArray marks;
+        private final AtomicReference<String> problem = new AtomicReference<>();
+
+        void add(long addr, long size, boolean object) {
+            if (count == addrs.length) {
+                addrs = Arrays.copyOf(addrs, 2 * count);
+                sizes = Arrays.copyOf(sizes, 2 * count);
+                objects = Arrays.copyOf(objects, 2 * count);
+            }
+            addrs[count] = addr;
+            sizes[count] = size;
+            objects[count] = object;
+            count++;
+        }
+
+        void sort() {
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Long.compare(addrs[a], addrs[b]));
+            long[] a = new long[count], s = new long[count];
+            boolean[] o = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                a[i] = addrs[order[i]];
+                s[i] = sizes[order[i]];
+                o[i] = objects[order[i]];
+            }
+            addrs = a;
+            sizes = s;
+            objects = o;
+            marks = new AtomicLongArray((count + 63) >>> 6);
+        }
+
+        int index(long addr) {
+            int i = Arrays.binarySearch(addrs, 0, count, addr);
+            return i < 0 ? -1 : i;
+        }
+
+        // returns true if addr is an object region that was not marked before
+        boolean mark(long addr) {
+            int i = index(addr);
+            if (i < 0) {
+                incomplete("reference to unallocated address " + addr);
+                return false;
+            }
+            long bit = 1L << (i & 63);
+            long word;
+            do {
+                word = marks.get(i >>> 6);
+                if ((word & bit) != 0) return false;
+            } while (!marks.compareAndSet(i >>> 6, word, word | bit));
+            return objects[i] || !isRawObject(i);
+        }
+
+        // regions from allocateRegion that carry an object header, e.g. the object directory
+        private boolean isRawObject(int i) {
+            if (sizes[i] < Header.TYPE.allocationSize()) return false;
+            ObjectType<?> type = typeOf(addrs[i]);
+            return type != null && !type.valueBased();
+        }
+
+        void markRaw(long addr) {
+            int i = index(addr);
+            if (i < 0) return;
+            marks.getAndAccumulate(i >>> 6, 1L << (i & 63), (a, b) -> a | b);
+        }
+
+        boolean marked(int i) {
+            return (marks.get(i >>> 6) & (1L << (i & 63))) != 0;
+        }
+
+        void incomplete(String reason) {
+            problem.compareAndSet(null, reason);
+        }
+
+        Report report() {
+            Report r = new Report(problem.get());
+            for (int i = 0; i < count; i++) {
+                boolean reachable = marked(i);
+                String name = "(raw region)";
+                MemoryRegion region = heap.regionFromAddress(addrs[i]);
+                if (objects[i] || (reachable && isRawObject(i))) {
+                    ClassInfo ci = ClassInfo.getClassInfo(region.getInt(0));
+                    name = ci == null ? "(unknown class)" : ci.className();
+                }
+                r.add(name, sizes[i], reachable);
+                if (!reachable) r.unreachable.add(new Region(addrs[i], sizes[i], objects[i], name, objects[i] ? region.getInt(refCountOffset()) : 0));
+            }
+            return r;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Scan extends java.util.concurrent.RecursiveAction {
+        private final Walk walk;
+        private final ArrayDeque<Long> work;
+
+        Scan(Walk walk, long addr) {
+            this.walk = walk;
+            this.work = new ArrayDeque<>();
+            work.add(addr);
+        }
+
+        Scan(Walk walk, ArrayDeque<Long> work) {
+            this.walk = walk;
+            this.work = work;
+        }
+
+        protected void compute() {
+            while (!work.isEmpty()) {
+                long addr = work.pop();
+                ObjectType<?> type = typeOf(addr);
+                if (type == null) {
+                    walk.incomplete("object of unknown type at " + addr);
+                    continue;
+                }
+                if (type.valueBased()) continue;
+                forEachChild(heap.regionFromAddress(addr), type, child -> {
+                    if (walk.mark(child)) work.push(child);
+                }, walk::markRaw);
+                if (work.size() > SPLIT_THRESHOLD) {
+                    ArrayDeque<Long> half = new ArrayDeque<>();
+                    for (int i = work.size() / 2; i > 0; i--) half.add(work.removeLast());
+                    new Scan(walk, half).fork();
+                }
+            }
+        }
+    }
+
+    public static final class Region {
+        public final long addr;
+        public final long size;
+        public final boolean object;
+        public final String className;
+        public final int refCount;
+
+        Region(long addr, long size, boolean object, String className, int refCount) {
+            this.addr = addr;
+            this.size = size;
+            this.object = object;
+            this.className = className;
+            this.refCount = refCount;
+        }
+
+        public String toString() {
+            return String.format("%s at %d, %,d bytes%s", className, addr, size, object ? ", refCount " + refCount : "");
+        }
+    }
+
+    public static final class Report {
+        private final String problem;
+        private final Map<String, long[]> live = new TreeMap<>();      // class name -> {count, bytes}
+        private final Map<String, long[]> leaked = new TreeMap<>();
+        private final List<Region> unreachable = new ArrayList<>();
+
+        Report(String problem) {this.problem = problem;}
+
+        private void add(String name, long size, boolean reachable) {
+            long[] totals = (reachable ? live : leaked).computeIfAbsent(name, n -> new long[2]);
+            totals[0]++;
+            totals[1] += size;
+        }
+
+        public boolean complete() {return problem == null;}
+        public List<Region> unreachable() {return unreachable;}
+
+        public long unreachableBytes() {
+            long ans = 0;
+            for (Region r : unreachable) ans += r.size;
+            return ans;
+        }
+
+        public String toString() {
+            StringBuilder buff = new StringBuilder();
+            buff.append("                                    Heap Walk\n");
+            if (!complete()) buff.append("INCOMPLETE: " + problem + "\n");
+            appendHistogram(buff, "Reachable", live);
+            appendHistogram(buff, "Unreachable", leaked);
+            return buff.toString();
+        }
+
+        private static void appendHistogram(StringBuilder buff, String title, Map<String, long[]> histogram) {
+            long count = 0, bytes = 0;
+            buff.append("--------------------------------------------------------------------------------------------------\n");
+            buff.append(String.format("%-66s%15s%17s\n", title, "regions", "bytes"));
+            buff.append("--------------------------------------------------------------------------------------------------\n");
+            for (Map.Entry<String, long[]> e : histogram.entrySet()) {
+                buff.append(String.format("%-66s%,15d%,17d\n", e.getKey(), e.getValue()[0], e.getValue()[1]));
+                count += e.getValue()[0];
+                bytes += e.getValue()[1];
+            }
+            buff.append(String.format("%-66s%,15d%,17d\n\n", "total", count, bytes));
+        }
+    }
+}
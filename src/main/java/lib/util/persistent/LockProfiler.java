@@ -0,0 +1,150 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.util.persistent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Records per-object and per-type lock contention:
+    -- every failed or contended acquisition is recorded, with the thread and transaction holding the lock
+    -- uncontended acquisitions are sampled, 1 in Config.LOCK_PROFILING_SAMPLE_RATE, and weighted accordingly
+    -- once MAX_TRACKED_OBJECTS objects are tracked, new objects are only counted against their type
+*/
+public class LockProfiler {
+    private static final int MAX_TRACKED_OBJECTS = 1 << 16;
+    private static final long CONTENDED_NANOS = 50_000;
+
+    static volatile boolean enabled = Config.ENABLE_LOCK_PROFILING;
+    private static final Map<Long, Site> objects = new ConcurrentHashMap<>();
+    private static final Map<String, Site> types = new ConcurrentHashMap<>();
+    private static final Map<Thread, Transaction> transactions = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicLong transactionIds = new AtomicLong();
+
+    public static void enable(boolean e) {enabled = e;}
+
+    public static boolean enabled() {return enabled;}
+
+    public static void clear() {
+        objects.clear();
+        types.clear();
+    }
+
+    // lock that can report its owner, so conflicts can be attributed
+    static final class OwnedLock extends ReentrantLock {
+        OwnedLock() {super(true);}
+        Thread owner() {return getOwner();}
+    }
+
+    static void transactionCreated(Transaction tx) {
+        transactions.put(Thread.currentThread(), tx);
+    }
+
+    static long nextTransactionId() {
+        return transactionIds.incrementAndGet();
+    }
+
+    static void record(AnyPersistent obj, long waitNanos, boolean acquired) {
+        boolean contended = !acquired || waitNanos >= CONTENDED_NANOS;
+        long weight = 1;
+        if (!contended) {
+            int rate = Config.LOCK_PROFILING_SAMPLE_RATE;
+            if (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0) return;
+            weight = rate;
+        }
+        String holder = contended ? holder(obj) : null;
+        String typeName = obj.getType() == null ? obj.getClass().getName() : obj.getType().name();
+        types.computeIfAbsent(typeName, Site::new).record(weight, waitNanos, acquired, holder);
+        long addr = obj.region() == null ? 0 : obj.addr();
+        Site site = objects.get(addr);
+        if (site == null) {
+            if (objects.size() >= MAX_TRACKED_OBJECTS) return;
+            site = objects.computeIfAbsent(addr, a -> new Site(typeName + "@" + a));
+        }
+        site.record(weight, waitNanos, acquired, holder);
+    }
+
+    private static String holder(AnyPersistent obj) {
+        Thread owner = obj.lock instanceof OwnedLock ? ((OwnedLock)obj.lock).owner() : null;
+        if (owner == null) return null;
+        Transaction tx = transactions.get(owner);
+        if (tx == null || tx.profileId() == 0) return owner.getName();
+        return String.format("%s, transaction #%d running %,d us", owner.getName(), tx.profileId(), (System.nanoTime() - tx.profileStart()) / 1000);
+    }
+
+    private static final class Site {
+        private final String name;
+        private final LongAdder acquired = new LongAdder();
+        private final LongAdder conflicts = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+        private volatile String lastHolder;
+
+        Site(String name) {this.name = name;}
+
+        void record(long weight, long wait, boolean success, String holder) {
+            if (success) acquired.add(weight);
+            else conflicts.increment();
+            waitNanos.add(weight * wait);
+            long max;
+            while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait));
+            if (holder != null) lastHolder = holder;
+        }
+
+        long waitMillis() {return waitNanos.sum() / 1_000_000;}
+    }
+
+    private static final Comparator<Site> CONTENTION = Comparator.<Site>comparingLong(s -> s.conflicts.sum()).thenComparingLong(s -> s.waitNanos.sum()).reversed();
+
+    public static String report(int topN) {
+        StringBuilder buff = new StringBuilder();
+        append(buff, "Lock Contention by Object", objects, topN);
+        append(buff, "Lock Contention by Type", types, topN);
+        return buff.toString();
+    }
+
+    public static void printReport(int topN) {
+        System.out.println(report(topN));
+    }
+
+    private static void append(StringBuilder buff, String title, Map<?, Site> sites, int topN) {
+        List<Site> sorted = new ArrayList<>(sites.values());
+        sorted.sort(CONTENTION);
+        buff.append(String.format("%s (top %d of %d)\n", title, Math.min(topN, sorted.size()), sorted.size()));
+        buff.append("--------------------------------------------------------------------------------------------------------------------------\n");
+        buff.append(String.format("%-60s%12s%12s%14s%14s   %s\n", "Object", "acquired", "conflicts", "wait ms", "max wait us", "last holder"));
+        buff.append("--------------------------------------------------------------------------------------------------------------------------\n");
+        for (int i = 0; i < Math.min(topN, sorted.size()); i++) {
+            Site s = sorted.get(i);
+            buff.append(String.format("%-60s%,12d%,12d%,14d%,14d   %s\n", s.name, s.acquired.sum(), s.conflicts.sum(), s.waitMillis(), s.maxWaitNanos.get() / 1000, s.lastHolder == null ? "" : s.lastHolder));
+        }
+        buff.append("\n");
+    }
+}
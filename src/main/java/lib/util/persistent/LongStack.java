@@ -0,0 +1,68 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.util.persistent;
+
+import java.util.Arrays;
+
+// growable stack of primitive longs, for address traversals that would otherwise box every element
+final class LongStack {
+    private long[] elements;
+    private int size;
+
+    LongStack() {
+        this(16);
+    }
+
+    LongStack(int capacity) {
+        elements = new long[capacity];
+    }
+
+    void push(long value) {
+        if (size == elements.length) elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = value;
+    }
+
+    long pop() {
+        return elements[--size];
+    }
+
+    long get(int index) {
+        return elements[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    boolean contains(long value) {
+        for (int i = 0; i < size; i++) if (elements[i] == value) return true;
+        return false;
+    }
+}
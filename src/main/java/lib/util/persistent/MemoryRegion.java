@@ -47,4 +47,7 @@ public interface MemoryRegion {
 
     void flush(long size);
     void flush(long offset, long size);
+
+    // detaches the region from its memory after the allocation is rolled back
+    default void clear() {}
 }
@@ -21,6 +21,7 @@
 
 package lib.util.persistent;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Set;
@@ -35,9 +36,6 @@ import lib.util.persistent.types.ObjectType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.ref.ReferenceQueue;
-import lib.xpersistent.XRoot;
-import lib.xpersistent.XTransaction;
-import lib.xpersistent.UncheckedPersistentMemoryRegion;
 import static lib.util.persistent.Trace.*;
 
 
@@ -46,7 +44,10 @@ public class ObjectCache {
     private static ReferenceQueue<AnyPersistent> queue;
     private static Set<Long> uncommittedConstructions;
     private static final PersistentHeap heap;
-    private static Thread collector;
+    private static final Thread[] collectors;
+    private static final Map<Long, Thread> claims;
+    private static final ThreadLocal<LongStack> claimed;
+    private static final Object[] claimStripes;
     private static long counter;                    // only used for ObjectCache stats
     private static final long counterMod = 10000;   // only used for ObjectCache stats
     private static final AnyPersistent cacheLock;
@@ -59,32 +60,128 @@ public class ObjectCache {
         uncommittedConstructions = new ConcurrentSkipListSet<>();
         adminMode = ThreadLocal.withInitial(() -> false);
         heap = PersistentMemoryProvider.getDefaultProvider().getHeap();
-        collector = new Thread(() -> {
-            try {
-                while (true) {
-                    Ref<?> ref = (Ref)queue.remove();
+        claims = new ConcurrentHashMap<>();
+        claimed = new ThreadLocal<>();
+        claimStripes = new Object[64];
+        for (int i = 0; i < claimStripes.length; i++) claimStripes[i] = new Object();
+        collectors = new Thread[Config.OBJECT_CACHE_COLLECTOR_THREADS];
+        for (int i = 0; i < collectors.length; i++) {
+            collectors[i] = new Thread(ObjectCache::collect, "ObjectCache collector " + i);
+            collectors[i].setDaemon(true);
+            collectors[i].start();
+        }
+    }
+
+    private static void collect() {
+        if (Config.OBJECT_CACHE_COLLECTOR_THREADS > 1) claimed.set(new LongStack());
+        long[] batch = new long[Config.OBJECT_CACHE_COLLECTOR_BATCH_SIZE];
+        try {
+            while (true) {
+                int n = 0;
+                Ref<?> ref = (Ref)queue.remove();
+                do {
                     long address = ref.getAddress();
                     if (address == 0) {
                         // trace(true, address, "ignoring address");
                         continue;
                     }
-                    if (uncommittedConstructions.contains(address)) {
+                    if (uncommittedConstructions.remove(address)) {
                         // trace(true, address, "ignoring address");
-                        uncommittedConstructions.remove(address);
                         continue;
                     }
-                    // trace(true, ref.getAddress(), "object enqueued and processing");
-                    if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.enqueued++;
-                        AnyPersistent obj = get(address, true);
-                        obj.deleteReference(true);
+                    batch[n++] = address;
+                } while (n < batch.length && (ref = (Ref)queue.poll()) != null);
+                if (n > 0) release(batch, n);
+            }
+        } 
+        catch (InterruptedException ie) {
+            ie.printStackTrace();
+        }
+    }
+
+    // releases a batch of enqueued references in one transaction
+    private static void release(long[] batch, int n) {
+        Arrays.sort(batch, 0, n);     // a replaced wrapper can be enqueued along with its successor
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || batch[i] != batch[i - 1]) batch[count++] = batch[i];
+        }
+        // trace(true, "releasing %d enqueued references", count);
+        if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.enqueued.add(count);
+        Ref<?>[] refs = new Ref<?>[count];
+        AnyPersistent[] objs = new AnyPersistent[count];
+        for (int i = 0; i < count; i++) objs[i] = (refs[i] = getReference(batch[i], true)).get();
+        try {
+            Transaction.run(() -> {
+                for (int i = 0; i < refs.length; i++) release(refs[i], objs[i]);
+            });
+        }
+        catch (RuntimeException e) {
+            // one reference that cannot be released should not hold back the rest of the batch; references
+            // cleared by the aborted attempt are looked up again, its frees were rolled back with it
+            for (int i = 0; i < count; i++) {
+                if (refs[i].getAddress() == 0) objs[i] = (refs[i] = getReference(batch[i], true)).get();
+            }
+            for (int i = 0; i < count; i++) {
+                try {
+                    release(refs[i], objs[i]);
+                }
+                catch (RuntimeException re) {
+                    System.err.println("ObjectCache: failed to release object " + batch[i]);
+                    re.printStackTrace();
                 }
-            } 
-            catch (InterruptedException ie) {
-                ie.printStackTrace();
             }
-        });
-        collector.setDaemon(true);
-        collector.start();
+        }
+    }
+
+    // an object freed earlier in the same batch, by the cascade from a parent, has had its reference cleared
+    private static void release(Ref<?> ref, AnyPersistent obj) {
+        if (ref.getAddress() != 0) obj.deleteReference(true);
+    }
+
+    // Collector threads may each hold their own wrapper, and so their own lock, for the same object; with
+    // more than one of them, reference counts they change are also claimed by address until the changing
+    // transaction ends. A thread waiting for a claim waits on the monitor of the address's claim stripe.
+    static void claim(long address) {
+        LongStack held = claimed.get();
+        if (held == null) return;
+        Thread self = Thread.currentThread();
+        Object stripe = claimStripe(address);
+        long deadline = 0;
+        Thread owner;
+        while ((owner = claims.putIfAbsent(address, self)) != null) {
+            if (owner == self) return;
+            long now = System.nanoTime();
+            if (deadline == 0) deadline = now + Config.MAX_MONITOR_ENTER_TIMEOUT * 1_000_000L;
+            else if (now >= deadline) throw new TransactionRetryException("failed to claim object " + address);
+            synchronized (stripe) {
+                if (claims.get(address) == null) continue;
+                try {
+                    stripe.wait(Math.max(1, (deadline - now) / 1_000_000L));
+                }
+                catch (InterruptedException e) {
+                    throw new TransactionRetryException("interrupted while claiming object " + address);
+                }
+            }
+        }
+        if (held.isEmpty()) Transaction.addHandlers(ObjectCache::releaseClaims, ObjectCache::releaseClaims);
+        held.push(address);
+    }
+
+    private static void releaseClaims() {
+        LongStack held = claimed.get();
+        while (!held.isEmpty()) {
+            long address = held.pop();
+            claims.remove(address);
+            Object stripe = claimStripe(address);
+            synchronized (stripe) {
+                stripe.notifyAll();
+            }
+        }
+    }
+
+    private static Object claimStripe(long address) {
+        return claimStripes[(int)((address * 0x9E3779B97F4A7C15L) >>> 58)];
     }
 
     public static class Ref<T extends AnyPersistent> extends SoftReference<T> {
@@ -132,7 +229,7 @@ public class ObjectCache {
             ref = Transaction.getReconstructedObject(address);
             if (ref == null || (obj = (T)ref.get()) == null) {
                 // trace(true, address, "MISS: " + (ref == null ? "simple" : "null referent"));
-                if (Config.ENABLE_OBJECT_CACHE_STATS) {if (ref == null) Stats.current.objectCache.simpleMisses++; else Stats.current.objectCache.referentMisses++;}  // uncomment for ObjectCache stats
+                if (Config.ENABLE_OBJECT_CACHE_STATS) {if (ref == null) Stats.current.objectCache.simpleMisses.increment(); else Stats.current.objectCache.referentMisses.increment();}  // uncomment for ObjectCache stats
                 boolean admin = ObjectCache.adminMode.get() || forAdmin;
                 ref = objectForAddress(address, admin);
                 obj = (T)ref.get();
@@ -147,23 +244,42 @@ public class ObjectCache {
                 // trace(true, address, "HIT: forAdmin -> !forAdmin");
                 ref.setForAdmin(false);
                 //obj = (T)ref.get();
-                if (Config.ENABLE_OBJECT_CACHE_STATS) Stats.current.objectCache.promotedHits++; // uncomment for ObjectCache stats
+                if (Config.ENABLE_OBJECT_CACHE_STATS) Stats.current.objectCache.promotedHits.increment(); // uncomment for ObjectCache stats
         }
-        else if (Config.ENABLE_OBJECT_CACHE_STATS) Stats.current.objectCache.simpleHits++;      // uncomment for ObjectCache stats
+        else if (Config.ENABLE_OBJECT_CACHE_STATS) Stats.current.objectCache.simpleHits.increment();      // uncomment for ObjectCache stats
                 // trace(true,address, "simple HIT in OC");
         // assert(obj != null):address;
         return ref;
     }
 
+    public static int size() {
+        return cache.size();
+    }
+
+    static boolean contains(long address) {
+        return cache.containsKey(new Address(address));
+    }
+
+    // addresses of objects that currently have a volatile wrapper
+    static void forEachAddress(java.util.function.LongConsumer action) {
+        for (Address a : cache.keySet()) action.accept(a.addr());
+    }
+
+    // references whose objects have been collected but not yet released by the collector threads
+    public static int collectorBacklog() {
+        int count = 0;
+        for (Reference<? extends AnyPersistent> ref : cache.values()) if (ref.get() == null) count++;
+        return count;
+    }
+
     // TODO: not sound, only usable for testing
     public static void clear() {
         cache.clear();
     }
 
     private static void updateCacheSizeStats() {
-        long size;
-        if (counter++ % counterMod != 0 || (size = cache.size()) < Stats.current.objectCache.maxSize) return;
-        Stats.current.objectCache.maxSize = size;
+        if (counter++ % counterMod != 0) return;
+        Stats.current.objectCache.maxSize.updateMax(cache.size());
     }
 
     @SuppressWarnings("unchecked")
@@ -178,11 +294,12 @@ public class ObjectCache {
         }
         else {
             T obj = null;
-            MemoryRegion region = new UncheckedPersistentMemoryRegion(address);
-            long classInfoAddress = region.getLong(0);
-            ClassInfo ci = ClassInfo.getClassInfo(classInfoAddress);
-            ObjectType<T> type = Types.typeForName(ci.className());
-            obj = AnyPersistent.reconstruct(new ObjectPointer<T>((ObjectType)type, region));
+            MemoryRegion region = heap.regionFromAddress(address);
+            int classId = region.getInt(0);
+            // lock-free lookups: class id -> ClassInfo -> type and factory
+            ClassInfo ci = ClassInfo.getClassInfo(classId);
+            ObjectType<T> type = (ObjectType<T>)ci.getType();
+            obj = AnyPersistent.reconstruct(new ObjectPointer<T>(type, region), ci.getFactory());
             ans = new Ref(obj, forAdmin);
             if (!Transaction.addReconstructedObject(address, ans)) cache.put(addr, ans);
         }
@@ -194,6 +311,12 @@ public class ObjectCache {
         cache.remove(new Address(address));
     }
 
+    // the object at address is being freed; its wrapper, once collected, must not be released again
+    static void forget(long address) {
+        Reference<? extends AnyPersistent> ref = cache.remove(new Address(address));
+        if (ref != null) ((Ref)ref).clear();
+    }
+
     @SuppressWarnings("unchecked")
     static <T extends AnyPersistent> void add(long address, Ref ref) {
         // trace(obj.getPointer().addr(), "ObjectCache.add");
@@ -46,12 +46,19 @@ import static lib.util.persistent.Util.*;
 public class PersistentArrayList<T extends AnyPersistent> extends PersistentObject implements Iterable<T> {
     static final int DEFAULT_CAPACITY = 10;
     private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    // elements live in fixed-size chunks hung off a spine array, so growth appends a chunk
+    // and never copies elements; only the first chunk starts smaller and grows by copying
+    // until it is full, so short lists stay small
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
     protected int modCount = 0;
     private static Statics statics;
 
     private static final IntField SIZE = new IntField();
-    private static final ObjectField<PersistentArray> ELEMENTDATA = new ObjectField<>(PersistentArray.class);
-    public static final ObjectType<PersistentArrayList> TYPE = ObjectType.withFields(PersistentArrayList.class, SIZE, ELEMENTDATA);
+    private static final IntField CHUNK_COUNT = new IntField();
+    private static final ObjectField<PersistentArray> CHUNKS = new ObjectField<>(PersistentArray.class);
+    public static final ObjectType<PersistentArrayList> TYPE = ObjectType.withFields(PersistentArrayList.class, SIZE, CHUNK_COUNT, CHUNKS);
 
     static {
         statics = ObjectDirectory.get("PersistentArrayList_statics", Statics.class);
@@ -91,20 +98,66 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
         return statics.defaultCapacityEmptyArray();
     }
 
-    private void setDataArray(PersistentArray a){
-        setObjectField(ELEMENTDATA, a);
+    private void setChunks(PersistentArray a){
+        setObjectField(CHUNKS, a);
     }
 
-    private PersistentArray getDataArray(){
-        return getObjectField(ELEMENTDATA);
+    private PersistentArray getChunks(){
+        return getObjectField(CHUNKS);
+    }
+
+    private int chunkCount(){
+        return getIntField(CHUNK_COUNT);
+    }
+
+    private void chunkCount(int count){
+        setIntField(CHUNK_COUNT, count);
+    }
+
+    // the chunk holding the element at index
+    private PersistentArray chunk(int index){
+        return (PersistentArray)getChunks().get(index >> CHUNK_SHIFT);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void setChunk(int chunkIndex, PersistentArray chunk){
+        PersistentArray chunks = getChunks();
+        int length = chunks.length();
+        if (chunkIndex >= length) {
+            // the spine only holds chunk pointers, so copying it is cheap
+            chunks = PersistentArrays.copyOf(chunks, Math.max(chunkIndex + 1, length + (length >> 1)));
+            setChunks(chunks);
+        }
+        chunks.set(chunkIndex, chunk);
+        if (chunkIndex >= chunkCount()) chunkCount(chunkIndex + 1);
+    }
+
+    // sets up empty chunks for initialCapacity elements
+    private void allocate(int initialCapacity){
+        if (initialCapacity <= CHUNK_SIZE) {
+            setChunks(new PersistentArray(1));
+            setChunk(0, new PersistentArray(initialCapacity));
+        }
+        else {
+            int count = (int)(((long)initialCapacity + CHUNK_MASK) >> CHUNK_SHIFT);
+            setChunks(new PersistentArray(count));
+            for (int i = 0; i < count; i++) setChunk(i, new PersistentArray(CHUNK_SIZE));
+        }
+    }
+
+    private int capacity(){
+        int count = chunkCount();
+        if (count == 0) return 0;
+        if (count == 1) return ((PersistentArray)getChunks().get(0)).length();
+        return (int)Math.min((long)count << CHUNK_SHIFT, Integer.MAX_VALUE);
     }
 
     private boolean isEmptyArray(){
-        return getDataArray().is(emptyArray());
+        return getChunks().is(emptyArray());
     }
 
     private boolean isDefaultCapacityEmptyArray(){
-        return getDataArray().is(defaultCapacityEmptyArray());
+        return getChunks().is(defaultCapacityEmptyArray());
     }
 
     public PersistentArrayList(int initialCapacity){
@@ -117,15 +170,15 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
 
     protected PersistentArrayList(ObjectType<? extends PersistentArrayList> type) {
         super(type);
-        setDataArray(defaultCapacityEmptyArray());
+        setChunks(defaultCapacityEmptyArray());
     }
 
     protected PersistentArrayList(ObjectType<? extends PersistentArrayList> type, int initialCapacity) {
         super(type);
         if (initialCapacity > 0){
-            setDataArray(new PersistentArray(initialCapacity));
+            allocate(initialCapacity);
         } else if (initialCapacity == 0) {
-            setDataArray(emptyArray());
+            setChunks(emptyArray());
         } else {
             throw new IllegalArgumentException("Illegal Capacity: "+initialCapacity);
         }
@@ -142,10 +195,11 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
     public PersistentArrayList(ObjectType<? extends PersistentArrayList> type, T... ts) {
         super(type);
         if (ts.length > 0){
-            setDataArray(new PersistentArray(ts));
+            allocate(ts.length);
+            insertElements(0, ts);
             size(ts.length);
         } else {
-            setDataArray(emptyArray());
+            setChunks(emptyArray());
         }
     }
 
@@ -155,13 +209,26 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
     public void trimToSize() {
         Transaction.run(() -> {
             int size = size();
-            int length = getDataArray().length();
             modCount++;
-            if (size < length) {
-                if (size == 0)
-                    setDataArray(emptyArray());
-                else
-                    setDataArray(PersistentArrays.copyOfRange(getDataArray(), 0 ,size));
+            if (size < capacity()) {
+                if (size == 0) {
+                    setChunks(emptyArray());
+                    chunkCount(0);
+                }
+                else if (size <= CHUNK_SIZE) {
+                    PersistentArray first = PersistentArrays.copyOfRange(chunk(0), 0, size);
+                    setChunks(new PersistentArray(1));
+                    chunkCount(0);
+                    setChunk(0, first);
+                }
+                else {
+                    // chunks are never split; drop the unused ones and the spare spine slots
+                    int count = (size + CHUNK_MASK) >> CHUNK_SHIFT;
+                    if (count < chunkCount() || count < getChunks().length()) {
+                        setChunks(PersistentArrays.copyOfRange(getChunks(), 0, count));
+                        chunkCount(count);
+                    }
+                }
             }
         }, this);
     }
@@ -186,22 +253,69 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
 
     private void ensureExplicitCapacity(int minCapacity) {
         modCount++;
-        if (minCapacity - getDataArray().length() > 0) {
+        if (minCapacity - capacity() > 0) {
             grow(minCapacity);
         }
     }
 
     @SuppressWarnings("unchecked")
     private void grow(int minCapacity) {
-        Util.synchronizedBlock(this, () -> {
-            int oldCapacity = getDataArray().length();
-            int newCapacity = oldCapacity + (oldCapacity >> 1);
-            if (newCapacity - minCapacity < 0)
-                newCapacity = minCapacity;
-            if (newCapacity - MAX_ARRAY_SIZE > 0)
-                newCapacity = hugeCapacity(minCapacity);
-            setDataArray(PersistentArrays.copyOf(getDataArray(), newCapacity));
-        });
+        Transaction.run(() -> {
+            int oldCapacity = capacity();
+            int count = chunkCount();
+            if (minCapacity <= CHUNK_SIZE) {
+                // still within the first chunk; grow it as the array used to, up to a full chunk
+                int newCapacity = oldCapacity + (oldCapacity >> 1);
+                if (newCapacity - minCapacity < 0)
+                    newCapacity = minCapacity;
+                newCapacity = Math.min(newCapacity, CHUNK_SIZE);
+                setChunk(0, count == 0 ? new PersistentArray(newCapacity) : PersistentArrays.copyOf(chunk(0), newCapacity));
+                return;
+            }
+            long newCapacity = minCapacity - MAX_ARRAY_SIZE > 0 ? hugeCapacity(minCapacity) : minCapacity;
+            if (count == 0)
+                setChunk(0, new PersistentArray(CHUNK_SIZE));
+            else if (oldCapacity < CHUNK_SIZE)
+                setChunk(0, PersistentArrays.copyOf(chunk(0), CHUNK_SIZE));
+            for (int i = chunkCount(); ((long)i << CHUNK_SHIFT) < newCapacity; i++)
+                setChunk(i, new PersistentArray(CHUNK_SIZE));
+        }, this);
+    }
+
+    // list-level ArrayCopy; copies one chunk-sized piece at a time, in the direction that is
+    // safe when the ranges overlap
+    @SuppressWarnings("unchecked")
+    private void moveElements(int srcPos, int destPos, int length) {
+        if (srcPos < destPos) {
+            int srcEnd = srcPos + length;
+            int destEnd = destPos + length;
+            while (length > 0) {
+                int n = Math.min(length, Math.min(((srcEnd - 1) & CHUNK_MASK) + 1, ((destEnd - 1) & CHUNK_MASK) + 1));
+                srcEnd -= n;
+                destEnd -= n;
+                length -= n;
+                PersistentArrays.ArrayCopy(chunk(srcEnd), srcEnd & CHUNK_MASK, chunk(destEnd), destEnd & CHUNK_MASK, n);
+            }
+        }
+        else {
+            while (length > 0) {
+                int n = Math.min(length, Math.min(CHUNK_SIZE - (srcPos & CHUNK_MASK), CHUNK_SIZE - (destPos & CHUNK_MASK)));
+                PersistentArrays.ArrayCopy(chunk(srcPos), srcPos & CHUNK_MASK, chunk(destPos), destPos & CHUNK_MASK, n);
+                srcPos += n;
+                destPos += n;
+                length -= n;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void insertElements(int index, AnyPersistent[] a) {
+        for (int i = 0; i < a.length; ) {
+            int pos = index + i;
+            int n = Math.min(a.length - i, CHUNK_SIZE - (pos & CHUNK_MASK));
+            chunk(pos).insert(pos & CHUNK_MASK, Arrays.copyOfRange(a, i, i + n));
+            i += n;
+        }
     }
 
     private static int hugeCapacity(int minCapacity) {
@@ -232,11 +346,11 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
         return Util.synchronizedBlock(this, () -> {
             if (o == null) {
                 for (int i = 0; i < size(); i++)
-                    if (getDataArray().get(i)==null)
+                    if (elementData(i)==null)
                         return i;
             } else {
                 for (int i = 0; i < size(); i++)
-                    if (o.equals(getDataArray().get(i)))
+                    if (o.equals(elementData(i)))
                         return i;
             }
         return -1;
@@ -247,11 +361,11 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
         return Util.synchronizedBlock(this, () -> {
             if (o == null) {
                 for (int i = size()-1; i >= 0; i--)
-                    if (getDataArray().get(i)==null)
+                    if (elementData(i)==null)
                         return i;
             } else {
                 for (int i = size()-1; i >= 0; i--)
-                    if (o.equals(getDataArray().get(i)))
+                    if (o.equals(elementData(i)))
                         return i;
             }
             return -1;
@@ -260,10 +374,14 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
 
     @SuppressWarnings("unchecked")
     public Object[] toArray() {
-        AnyPersistent[] all = getDataArray().toArray();
-        AnyPersistent[] ans = new AnyPersistent[size()];
-        System.arraycopy(all, 0, ans, 0, ans.length);
-        return ans;
+        return Util.synchronizedBlock(this, () -> {
+            AnyPersistent[] ans = new AnyPersistent[size()];
+            for (int i = 0; i < ans.length; i += CHUNK_SIZE) {
+                AnyPersistent[] chunk = chunk(i).toArray();
+                System.arraycopy(chunk, 0, ans, i, Math.min(chunk.length, ans.length - i));
+            }
+            return ans;
+        });
     }
 
     @SuppressWarnings("unchecked")
@@ -280,7 +398,7 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
     @SuppressWarnings("unchecked")
     T elementData(int index){
         return Util.synchronizedBlock(this, () -> {
-            return (T) getDataArray().get(index);
+            return (T) chunk(index).get(index & CHUNK_MASK);
         });
     }
 
@@ -296,7 +414,7 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
     @SuppressWarnings("unchecked")
     void setElementData(int index, T element){
         Transaction.run(() -> {
-                getDataArray().set(index, element);
+                chunk(index).set(index & CHUNK_MASK, element);
         }, this);
     }
 
@@ -326,8 +444,7 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
         rangeCheckForAdd(index);
         Transaction.run(() -> {
             ensureCapacityInternal(size() + 1);
-            PersistentArrays.ArrayCopy(getDataArray(), index, getDataArray(), index + 1,
-                        size() - index);
+            moveElements(index, index + 1, size() - index);
             setElementData(index, element);
             size(size()+1);
         }, this);
@@ -345,8 +462,7 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
 
                 int numMoved = size() - index - 1;
                 if (numMoved > 0)
-                    PersistentArrays.ArrayCopy(getDataArray(), index+1, getDataArray(), index,
-                                 numMoved);
+                    moveElements(index+1, index, numMoved);
                     size(size()-1);
                     setElementData(size(), null); // clear to let GC do its work
             });
@@ -380,8 +496,7 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
             Transaction.run(() -> {
                 int numMoved = size() - index - 1;
                 if (numMoved > 0)
-                    PersistentArrays.ArrayCopy(getDataArray(), index+1, getDataArray(), index,
-                                 numMoved);
+                    moveElements(index+1, index, numMoved);
                 size(size()-1);
                 setElementData(size(), null); // clear to let GC do its work
             });
@@ -408,7 +523,7 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
             AnyPersistent[] a = c.toArray(new AnyPersistent[c.size()]);
             numNew.set(a.length);
             ensureCapacityInternal(size() + numNew.get());  // Increments modCount
-            getDataArray().insert(size(), a);
+            insertElements(size(), a);
             size(size()+numNew.get());
         }, this);
         return numNew.get() != 0;
@@ -426,9 +541,9 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
 
             int numMoved = size() - index;
             if (numMoved > 0)
-                PersistentArrays.ArrayCopy(getDataArray(), index, getDataArray(), index + numNew.get(), numMoved);
+                moveElements(index, index + numNew.get(), numMoved);
 
-            getDataArray().insert(index, a);
+            insertElements(index, a);
             size(size() + numNew.get());
         }, this);
         return numNew.get() != 0;
@@ -439,8 +554,7 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
         Transaction.run(() -> {
             modCount++;
             int numMoved = size() - toIndex;
-            PersistentArrays.ArrayCopy(getDataArray(), toIndex, getDataArray(), fromIndex,
-                         numMoved);
+            moveElements(toIndex, fromIndex, numMoved);
 
             // clear to let GC do its work
             int newSize = size() - (toIndex-fromIndex);
@@ -521,7 +635,7 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
             int i = cursor - 1;
             if (i < 0)
                 throw new NoSuchElementException();
-            AnyPersistent[] elementData = PersistentArrayList.this.getDataArray().toArray(new AnyPersistent[0]);
+            Object[] elementData = PersistentArrayList.this.toArray();
             if (i >= elementData.length)
                 throw new ConcurrentModificationException();
             cursor = i;
@@ -576,7 +690,7 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
             int i = cursor;
             if (i >= size())
                 throw new NoSuchElementException();
-            //AnyPersistent[] elementData = PersistentArrayList.this.getDataArray().toArray(new AnyPersistent[0]);
+            //AnyPersistent[] elementData = PersistentArrayList.this.toArray(new AnyPersistent[0]);
             if (i >= snapshot.length)
                 throw new ConcurrentModificationException();
             cursor = i + 1;
@@ -608,7 +722,7 @@ public class PersistentArrayList<T extends AnyPersistent> extends PersistentObje
             if (i >= size()) {
                 return;
             }
-            //final AnyPersistent[] elementData = PersistentArrayList.this.getDataArray().toArray(new AnyPersistent[0]);
+            //final AnyPersistent[] elementData = PersistentArrayList.this.toArray(new AnyPersistent[0]);
             if (i >= snapshot.length) {
                 throw new ConcurrentModificationException();
             }
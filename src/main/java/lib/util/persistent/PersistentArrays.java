@@ -21,12 +21,13 @@
 
 package lib.util.persistent;
 
-import lib.xpersistent.*;
 import lib.util.persistent.spi.PersistentMemoryProvider;
 import lib.util.persistent.types.Types;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class PersistentArrays{
-    private static XHeap heap = (XHeap) PersistentMemoryProvider.getDefaultProvider().getHeap();
+    private static PersistentHeap heap = PersistentMemoryProvider.getDefaultProvider().getHeap();
     private PersistentArrays(){}
 
     @SuppressWarnings("unchecked")
@@ -41,9 +42,7 @@ public class PersistentArrays{
         Transaction.run(() ->{
             copy.set(new PersistentArray<>(newLength));
             int size = Math.min(newLength, original.length());
-            for (int i = 0; i < size; i++){
-                copy.get().set(i, (T)original.get(i));
-            }
+            copyElements(original, 0, copy.get(), 0, size);
         });
         return copy.get();
     }
@@ -61,15 +60,13 @@ public class PersistentArrays{
         Transaction.run(() ->{
             copy.set(new PersistentArray<>(newLength));
             int size = Math.min(newLength, original.length()-from);
-            for (int i = 0; i < size; i++){
-                copy.get().set(i, (T)original.get(from+i));
-            }
+            copyElements(original, from, copy.get(), 0, size);
         });
         return copy.get();
     }
 
      @SuppressWarnings("unchecked")
-    public static synchronized <T extends AnyPersistent> void ArrayCopy(PersistentArray<T> src, int srcPos, PersistentArray<T> dest, int destPos, int length){
+    public static <T extends AnyPersistent> void ArrayCopy(PersistentArray<T> src, int srcPos, PersistentArray<T> dest, int destPos, int length){
         if (src.equals(null) || dest.equals(null))
             throw new NullPointerException("Cannot copy to or from Null Array");
         if (srcPos < 0 || destPos < 0 || length < 0)
@@ -79,18 +76,51 @@ public class PersistentArrays{
         if (destPos+length > ((AbstractPersistentArray)dest).length())
             throw new IndexOutOfBoundsException("Index out of bounds: dest Array");
 
-        //special overlap case. Start copying from end
-        Transaction.run(() -> {
-            if (src.equals(dest) && srcPos < destPos && destPos <= srcPos + length -1) {
-                for (int i=length-1; i>=0; i--) {
-                    dest.set(destPos+i, src.get(srcPos+i));
-                }
-            } else {
-                for (int i=0; i<length; i++) {
-                    dest.set(destPos+i, src.get(srcPos+i));
+        copyElements(src, srcPos, dest, destPos, length);
+    }
+
+    static void copyElements(PersistentArray<?> src, int srcPos, PersistentArray<?> dest, int destPos, int length) {
+        if (length <= 0) return;
+        if (src instanceof PersistentValueArray || dest instanceof PersistentValueArray) {
+            // elements are stored inline, not as pointers; copy them one at a time
+            Transaction.run(() -> {
+                //special overlap case. Start copying from end
+                if (src == dest && srcPos < destPos && destPos <= srcPos + length -1) {
+                    for (int i=length-1; i>=0; i--) {
+                        dest.setObjectElement(destPos+i, src.getObjectElement(srcPos+i));
+                    }
+                } else {
+                    for (int i=0; i<length; i++) {
+                        dest.setObjectElement(destPos+i, src.getObjectElement(srcPos+i));
+                    }
                 }
+            }, src == dest ? null : src, dest);
+            return;
+        }
+        Transaction.run(() -> {
+            // net reference count change for each element gained or lost by dest; slots moved within
+            // the same array cancel out
+            Map<Long, Integer> deltas = new LinkedHashMap<>();
+            for (int i = 0; i < length; i++) {
+                long addr = src.getRegionLong(src.elementOffset(srcPos + i));
+                if (addr != 0) deltas.merge(addr, 1, Integer::sum);
             }
-        });
+            for (int i = 0; i < length; i++) {
+                long addr = dest.getRegionLong(dest.elementOffset(destPos + i));
+                if (addr != 0) deltas.merge(addr, -1, Integer::sum);
+            }
+            long srcOffset = src.elementOffset(srcPos);
+            long destOffset = dest.elementOffset(destPos);
+            long size = dest.elementOffset(destPos + length) - destOffset;
+            if (src == dest && srcPos < destPos + length && destPos < srcPos + length) {
+                // heap memcpy is not guaranteed to handle overlapping ranges
+                byte[] bytes = new byte[(int)size];
+                heap.memcpy(src.region(), srcOffset, bytes, 0, (int)size);
+                heap.memcpy(bytes, 0, dest.region(), destOffset, (int)size);
+            }
+            else heap.memcpy(src.region(), srcOffset, dest.region(), destOffset, size);
+            Transaction.applyRefCountDeltas(deltas);
+        }, src == dest ? null : src, dest);
     }
 
     public static void toByteArray(AnyPersistent src, byte[] dest, int length) {
@@ -35,7 +35,7 @@ public final class PersistentBooleanArray extends AbstractPersistentMutableArray
 
     public PersistentBooleanArray(boolean[] array) {
         this(array.length);
-        for (int i = 0; i < array.length; i++) setBooleanElement(i, array[i]);
+        put(0, array, 0, array.length);
     }
 
     private PersistentBooleanArray(ObjectPointer<PersistentBooleanArray> pointer) {
@@ -50,10 +50,36 @@ public final class PersistentBooleanArray extends AbstractPersistentMutableArray
         setBooleanElement(index, value);
     }
 
-    public synchronized boolean[] toArray() {
+    // copies len elements starting at from into dst[off, off + len)
+    public void get(int from, boolean[] dst, int off, int len) {
+        checkArrayRange(dst.length, off, len);
+        readElements(from, len, (chunk, done, n) -> {
+            for (int i = 0; i < n; i++) dst[off + done + i] = chunk.get(i) != 0;
+        });
+    }
+
+    // stores src[off, off + len) into the elements starting at from
+    public void put(int from, boolean[] src, int off, int len) {
+        checkArrayRange(src.length, off, len);
+        writeElements(from, len, (chunk, done, n) -> {
+            for (int i = 0; i < n; i++) chunk.put(i, src[off + done + i] ? (byte)1 : (byte)0);
+        });
+    }
+
+    public void fill(boolean value) {
+        fill(0, length(), value);
+    }
+
+    public void fill(int from, int to, boolean value) {
+        writeElements(from, to - from, (chunk, done, n) -> {
+            if (done > 0) return; // later chunks reuse the filled buffer
+            for (int i = 0; i < n; i++) chunk.put(i, value ? (byte)1 : (byte)0);
+        });
+    }
+
+    public boolean[] toArray() {
         boolean[] ans = new boolean[length()];
-        int len = length();
-        for (int i = 0; i < len; i++) ans[i] = getBooleanElement(i);
+        get(0, ans, 0, ans.length);
         return ans;
     }
 }
\ No newline at end of file
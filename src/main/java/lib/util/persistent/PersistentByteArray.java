@@ -25,6 +25,7 @@ package lib.util.persistent;
 import lib.util.persistent.types.Types;
 import lib.util.persistent.types.ArrayType;
 import lib.util.persistent.types.ReferenceArrayType;
+import java.util.Arrays;
 
 public final class PersistentByteArray extends AbstractPersistentMutableArray {
     private static final ArrayType<PersistentByteArray> TYPE = new ReferenceArrayType<>(PersistentByteArray.class, Types.BYTE);
@@ -35,7 +36,7 @@ public final class PersistentByteArray extends AbstractPersistentMutableArray {
 
     public PersistentByteArray(byte[] array) {
         this(array.length);
-        for (int i = 0; i < array.length; i++) setByteElement(i, array[i]);
+        put(0, array, 0, array.length);
     }
 
     private PersistentByteArray(ObjectPointer<PersistentByteArray> pointer) {
@@ -50,6 +51,57 @@ public final class PersistentByteArray extends AbstractPersistentMutableArray {
         setByteElement(index, value);
     }
 
+    // copies len elements starting at from into dst[off, off + len)
+    public void get(int from, byte[] dst, int off, int len) {
+        checkArrayRange(dst.length, off, len);
+        readElements(from, len, (chunk, done, n) -> chunk.get(dst, off + done, n));
+    }
+
+    // stores src[off, off + len) into the elements starting at from
+    public void put(int from, byte[] src, int off, int len) {
+        checkArrayRange(src.length, off, len);
+        writeElements(from, len, (chunk, done, n) -> chunk.put(src, off + done, n));
+    }
+
+    public void fill(byte value) {
+        fill(0, length(), value);
+    }
+
+    public void fill(int from, int to, byte value) {
+        writeElements(from, to - from, (chunk, done, n) -> {
+            if (done > 0) return; // later chunks reuse the filled buffer
+            for (int i = 0; i < n; i++) chunk.put(i, value);
+        });
+    }
+
+    public void sort() {
+        sort(0, length());
+    }
+
+    public void sort(int from, int to) {
+        Util.synchronizedBlock(this, () -> {
+            byte[] a = new byte[to - from];
+            get(from, a, 0, a.length);
+            Arrays.sort(a);
+            put(from, a, 0, a.length);
+        });
+    }
+
+    // same contract as Arrays.binarySearch, for an array sorted in ascending order
+    public int binarySearch(byte key) {
+        return Util.synchronizedBlock(this, () -> {
+            int low = 0, high = length() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Byte.compare(region().getByte(elementOffset(mid)), key);
+                if (cmp < 0) low = mid + 1;
+                else if (cmp > 0) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        });
+    }
+
     public byte[] toArray() {
         byte[] ans = new byte[length()];
         PersistentArrays.toByteArray(this, ans, ans.length);
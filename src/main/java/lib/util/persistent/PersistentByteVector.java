@@ -25,8 +25,10 @@
     import lib.util.persistent.types.ValueField;
     import lib.util.persistent.types.ObjectType;
     import lib.util.persistent.types.Types;
-    import lib.xpersistent.UncheckedPersistentMemoryRegion;
 
+    // The payload lives in a region of its own, pointed to by POINTER, and is copied into a volatile region
+    // on onGet() unless read through a view. Value layouts have a fixed size, so an inline payload is
+    // out of scope here.
     public final class PersistentByteVector extends PersistentObject {
     private static final LongField POINTER = new LongField();
     private static final ObjectType<PersistentByteVector> TYPE = ObjectType.withValueFields(PersistentByteVector.class, POINTER);
@@ -54,6 +56,7 @@
         long capacity = capacity();
         long regionSize = regionSize(capacity);
         MemoryRegion region = heap.allocateRegion(regionSize);
+        if (Config.ENABLE_MEMORY_STATS) Stats.current.memory.allocationSize.record(regionSize);
         if (Config.ENABLE_ALLOC_STATS) Stats.current.allocStats.update("lib.util.persistent.PersistentByteVector (payload)", regionSize, 0, 1);
         Util.memCopyVP(data, 0, region, 0, regionSize); // this is transactional
         // will leak if we crash here
@@ -64,7 +67,12 @@
     void onGet() {
         long offset = getLongField(POINTER);
         assert(offset != 0);
-        MemoryRegion region = new UncheckedPersistentMemoryRegion(offset);
+        MemoryRegion region = heap.regionFromAddress(offset);
+        if (region() instanceof ValueView) {
+            // read the payload in place too
+            data = ((ValueView)region()).rebase(region, 0);
+            return;
+        }
         long capacity = region.getLong(0);
         long regionSize = regionSize(capacity);
         data = new VolatileMemoryRegion(regionSize);
@@ -73,9 +81,9 @@
 
     @Override
     void onFree(long offset) {
-        MemoryRegion region = new UncheckedPersistentMemoryRegion(offset);
+        MemoryRegion region = heap.regionFromAddress(offset);
         long bytesRegionOffset = region.getLong(0);
-        heap.freeRegion(new UncheckedPersistentMemoryRegion(bytesRegionOffset));
+        heap.freeRegion(heap.regionFromAddress(bytesRegionOffset));
     }
 
     public byte getByteAt(long index) {return data.getByte(check(index, 1));}
@@ -97,22 +105,26 @@
     public int getBytesAt(byte[] bytes, int index, int size) {
         int clamp = Math.min(bytes.length, size);
         check(index, clamp);
-        System.arraycopy(((VolatileMemoryRegion)data).getBytes(), intOffset(index), bytes, 0, clamp);
+        copyBytes(intOffset(index), bytes, clamp);
         return clamp;
     }
 
     public void putBytesAt(byte[] bytes, int index) {
-        check(index, bytes.length);
-        System.arraycopy(bytes, 0, ((VolatileMemoryRegion)data).getBytes(), intOffset(index), bytes.length);
+        data.putRawBytes(check(index, bytes.length), bytes);
     }
 
     public byte[] getBytes() {
         long capacity = capacity();
     	if (capacity > Integer.MAX_VALUE) throw new RuntimeException("toBytes: PersistentByteVector is too large");
     	byte[] ans = new byte[(int)capacity];
-        System.arraycopy(((VolatileMemoryRegion)data).getBytes(), intOffset(0), ans, 0, (int)capacity);
+        copyBytes(intOffset(0), ans, (int)capacity);
         return ans;
     }
+
+    private void copyBytes(int offset, byte[] dst, int length) {
+        if (data instanceof ValueView) ((ValueView)data).copyTo(offset, dst, 0, length);
+        else System.arraycopy(((VolatileMemoryRegion)data).getBytes(), offset, dst, 0, length);
+    }
     
     public long capacity() {return data.getLong(0);}
 
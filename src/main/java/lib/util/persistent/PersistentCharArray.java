@@ -25,6 +25,8 @@ package lib.util.persistent;
 import lib.util.persistent.types.Types;
 import lib.util.persistent.types.ArrayType;
 import lib.util.persistent.types.ReferenceArrayType;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 public final class PersistentCharArray extends AbstractPersistentMutableArray {
     private static final ArrayType<PersistentCharArray> TYPE = new ReferenceArrayType<>(PersistentCharArray.class, Types.CHAR);
@@ -35,7 +37,7 @@ public final class PersistentCharArray extends AbstractPersistentMutableArray {
 
     public PersistentCharArray(char[] array) {
         this(array.length);
-        for (int i = 0; i < array.length; i++) setCharElement(i, array[i]);
+        put(0, array, 0, array.length);
     }
 
     private PersistentCharArray(ObjectPointer<PersistentCharArray> pointer) {
@@ -50,10 +52,67 @@ public final class PersistentCharArray extends AbstractPersistentMutableArray {
         setCharElement(index, value);
     }
 
-    public synchronized char[] toArray() {
+    // copies len elements starting at from into dst[off, off + len)
+    public void get(int from, char[] dst, int off, int len) {
+        checkArrayRange(dst.length, off, len);
+        readElements(from, len, (chunk, done, n) -> {
+            IntBuffer buffer = chunk.asIntBuffer();
+            for (int i = 0; i < n; i++) dst[off + done + i] = (char)buffer.get(i);
+        });
+    }
+
+    // stores src[off, off + len) into the elements starting at from
+    public void put(int from, char[] src, int off, int len) {
+        checkArrayRange(src.length, off, len);
+        writeElements(from, len, (chunk, done, n) -> {
+            IntBuffer buffer = chunk.asIntBuffer();
+            for (int i = 0; i < n; i++) buffer.put(i, src[off + done + i]);
+        });
+    }
+
+    public void fill(char value) {
+        fill(0, length(), value);
+    }
+
+    public void fill(int from, int to, char value) {
+        writeElements(from, to - from, (chunk, done, n) -> {
+            if (done > 0) return; // later chunks reuse the filled buffer
+            IntBuffer buffer = chunk.asIntBuffer();
+            for (int i = 0; i < n; i++) buffer.put(i, value);
+        });
+    }
+
+    public void sort() {
+        sort(0, length());
+    }
+
+    public void sort(int from, int to) {
+        Util.synchronizedBlock(this, () -> {
+            char[] a = new char[to - from];
+            get(from, a, 0, a.length);
+            Arrays.sort(a);
+            put(from, a, 0, a.length);
+        });
+    }
+
+    // same contract as Arrays.binarySearch, for an array sorted in ascending order
+    public int binarySearch(char key) {
+        return Util.synchronizedBlock(this, () -> {
+            int low = 0, high = length() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Character.compare((char)region().getInt(elementOffset(mid)), key);
+                if (cmp < 0) low = mid + 1;
+                else if (cmp > 0) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        });
+    }
+
+    public char[] toArray() {
         char[] ans = new char[length()];
-        int len = length();
-        for (int i = 0; i < len; i++) ans[i] = getCharElement(i);
+        get(0, ans, 0, ans.length);
         return ans;
     }
 }
\ No newline at end of file
@@ -84,7 +84,7 @@ public class PersistentConcurrentHashMapInternal {
 
         protected NodeLL(long addr) {
             if (Config.ENABLE_ALLOC_STATS) Stats.current.allocStats.update(NodeLL.class.getName() + "<rctor>", 0, 16 + 64, 1);  // uncomment for allocation stats
-            this.reg = new UncheckedPersistentMemoryRegion(addr);
+            this.reg = heap.regionFromAddress(addr);
         }
 
         public static NodeLL copyOf(NodeLL old) {
@@ -92,7 +92,10 @@ public class PersistentConcurrentHashMapInternal {
             return new NodeLL(old.addr());
         }
 
-        public final void changeAddr(long addr) { ((UncheckedPersistentMemoryRegion)this.reg).addr(addr); }
+        public final void changeAddr(long addr) {
+            if (this.reg instanceof UncheckedPersistentMemoryRegion) ((UncheckedPersistentMemoryRegion)this.reg).addr(addr);
+            else this.reg = heap.regionFromAddress(addr);
+        }
         public final long getKey() { return this.reg.getLong(KEY_OFFSET); }
         public final long getValue() { return this.reg.getLong(VALUE_OFFSET); }
 
@@ -139,7 +142,7 @@ public class PersistentConcurrentHashMapInternal {
             Transaction.run(() -> {
                 heap.freeRegion(this.reg);
             }, () -> {
-                ((UncheckedPersistentMemoryRegion)this.reg).addr(0);
+                this.reg.clear();
             });
         }
 
@@ -25,6 +25,9 @@ package lib.util.persistent;
 import lib.util.persistent.types.Types;
 import lib.util.persistent.types.ArrayType;
 import lib.util.persistent.types.ReferenceArrayType;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.function.DoubleBinaryOperator;
 
 public final class PersistentDoubleArray extends AbstractPersistentMutableArray {
     private static final ArrayType<PersistentDoubleArray> TYPE = new ReferenceArrayType<>(PersistentDoubleArray.class, Types.DOUBLE);
@@ -35,7 +38,7 @@ public final class PersistentDoubleArray extends AbstractPersistentMutableArray
 
     public PersistentDoubleArray(double[] array) {
         this(array.length);
-        for (int i = 0; i < array.length; i++) setDoubleElement(i, array[i]);
+        put(0, array, 0, array.length);
     }
 
     private PersistentDoubleArray(ObjectPointer<PersistentDoubleArray> pointer) {
@@ -50,10 +53,74 @@ public final class PersistentDoubleArray extends AbstractPersistentMutableArray
         setDoubleElement(index, value);
     }
 
-    public synchronized double[] toArray() {
+    // copies len elements starting at from into dst[off, off + len)
+    public void get(int from, double[] dst, int off, int len) {
+        checkArrayRange(dst.length, off, len);
+        readElements(from, len, (chunk, done, n) -> chunk.asDoubleBuffer().get(dst, off + done, n));
+    }
+
+    // stores src[off, off + len) into the elements starting at from
+    public void put(int from, double[] src, int off, int len) {
+        checkArrayRange(src.length, off, len);
+        writeElements(from, len, (chunk, done, n) -> chunk.asDoubleBuffer().put(src, off + done, n));
+    }
+
+    public void fill(double value) {
+        fill(0, length(), value);
+    }
+
+    public void fill(int from, int to, double value) {
+        writeElements(from, to - from, (chunk, done, n) -> {
+            if (done > 0) return; // later chunks reuse the filled buffer
+            DoubleBuffer buffer = chunk.asDoubleBuffer();
+            for (int i = 0; i < n; i++) buffer.put(i, value);
+        });
+    }
+
+    public void sort() {
+        sort(0, length());
+    }
+
+    public void sort(int from, int to) {
+        Util.synchronizedBlock(this, () -> {
+            double[] a = new double[to - from];
+            get(from, a, 0, a.length);
+            Arrays.sort(a);
+            put(from, a, 0, a.length);
+        });
+    }
+
+    // same contract as Arrays.binarySearch, for an array sorted in ascending order
+    public int binarySearch(double key) {
+        return Util.synchronizedBlock(this, () -> {
+            int low = 0, high = length() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Double.compare(Double.longBitsToDouble(region().getLong(elementOffset(mid))), key);
+                if (cmp < 0) low = mid + 1;
+                else if (cmp > 0) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        });
+    }
+
+    public double reduce(double identity, DoubleBinaryOperator op) {
+        double[] ans = {identity};
+        readElements(0, length(), (chunk, done, n) -> {
+            DoubleBuffer buffer = chunk.asDoubleBuffer();
+            for (int i = 0; i < n; i++) ans[0] = op.applyAsDouble(ans[0], buffer.get(i));
+        });
+        return ans[0];
+    }
+
+    public double sum() {
+        return reduce(0.0, Double::sum);
+    }
+
+    public double[] toArray() {
         double[] ans = new double[length()];
-        int len = length();
-        for (int i = 0; i < len; i++) ans[i] = getDoubleElement(i);
+        get(0, ans, 0, ans.length);
         return ans;
     }
 }
\ No newline at end of file
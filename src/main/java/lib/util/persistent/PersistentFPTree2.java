@@ -54,8 +54,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.StampedLock;
 import java.util.function.IntConsumer;
@@ -90,6 +91,7 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 
 	private final StampedLock rootLock;
 	private final Comparator<? super K> comparator;
+	private final LongAdder entryCount;
 	private LeafNode<K,V> headLeafNode;
 	
 	private ConcurrentNavigableMap<K,V> descendingMap;
@@ -117,6 +119,7 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 		MIN_LEAF_KEYS = (MAX_LEAF_KEYS + 1) / 2;
 		this.rootLock = new StampedLock();
 		this.comparator = comparator;
+		this.entryCount = new LongAdder();
 		setIntField(P_MAX_LEAF_KEYS, MAX_LEAF_KEYS);
 		setIntField(P_MAX_INTERNAL_KEYS, MAX_INTERNAL_KEYS);
 		initialize();
@@ -151,11 +154,14 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 		MIN_LEAF_KEYS = (MAX_LEAF_KEYS + 1) / 2;
 		this.rootLock = new StampedLock();
 		this.comparator = null; // how to persist the compartor?
+		this.entryCount = new LongAdder();
 
 		// System.out.println("starting reconstruction");
 		long start = System.nanoTime();
 		//parallelTouch();
 		reconstructTree();
+		// leaf nodes are rebuilt from the persistent leaves on reconstruction, so the count never needs persisting
+		for (LeafNode<K,V> n = headLeafNode; n != null; n = n.next) entryCount.add(n.keycount);
 		float telap = (System.nanoTime() - start) * 1e-9f;
 		int size = this.size();
 		// System.out.println("reconstructed FPTree size = " + size + ", time to reconstruct = " + telap + " sec.");
@@ -310,12 +316,7 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 
 	@Override
 	public int size() {
-		long count = 0;
-		for(LeafNode<K,V> n = headLeafNode; n != null; n = n.next){
-			long stamp = n.readLock();
-			count += n.keycount;
-			n.unlock(stamp);
-		}
+		long count = entryCount.sum();
 		return (count >= Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) count;
 	}
 
@@ -734,9 +735,10 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 					leafNode.leaf.setSlot(slotDel, null);
 					if (leafNode.keycount == 1) leafNode.leaf.setIsEmpty(true);
 				});
-				leafNode.hashes.set(slot, 0);
+				leafNode.setFingerprint(slot, 0);
 				leafNode.keys.set(slot, null);
 				leafNode.keycount--;
+				entryCount.decrement();
 			}
 			else if (kRange.isAboveHighKey(key)) reachedEnd = true;
 		}
@@ -773,22 +775,21 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 
 	private V removeInLeaf(LeafNode<K,V> leafNode, K key, V value) {
 		final int hash = generateHash(key);
-		for (int slot = 0; slot <= MAX_LEAF_KEYS; slot++) {
-			if (leafNode.hashes.get(slot) == hash) {
-				if (key.equals(leafNode.keys.get(slot))) {
-					V val = leafNode.leaf.getSlot(slot).getValue();
-					final int slotToRemove = slot;
-					if(value != null && value != val) return null;
-					else {
-						Transaction.run(() -> {
-							leafNode.leaf.setSlot(slotToRemove, null);
-							if (leafNode.keycount == 1) leafNode.leaf.setIsEmpty(true);
-						});
-						leafNode.hashes.set(slot, 0);
-						leafNode.keys.set(slot, null);
-						leafNode.keycount--;
-						return val;
-					}
+		for (int slot = leafNode.nextSlot(hash, 0); slot >= 0; slot = leafNode.nextSlot(hash, slot + 1)) {
+			if (key.equals(leafNode.keys.get(slot))) {
+				V val = leafNode.leaf.getSlot(slot).getValue();
+				final int slotToRemove = slot;
+				if(value != null && value != val) return null;
+				else {
+					Transaction.run(() -> {
+						leafNode.leaf.setSlot(slotToRemove, null);
+						if (leafNode.keycount == 1) leafNode.leaf.setIsEmpty(true);
+					});
+					leafNode.setFingerprint(slot, 0);
+					leafNode.keys.set(slot, null);
+					leafNode.keycount--;
+					entryCount.decrement();
+					return val;
 				}
 			}
 		}
@@ -992,10 +993,54 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 	}
 
 	public V doPut(K key, V value, boolean putOnlyIfAbsent) {
+		final boolean innerTX = Transaction.isTransactionActive();
+		if (!innerTX) {
+			Box<V> ret = new Box<>();
+			if (tryPutWithoutSplit(key, value, putOnlyIfAbsent, ret)) return ret.get();
+		}
+		return doPutWithSplits(key, value, putOnlyIfAbsent, innerTX);
+	}
+
+	// Descends holding read locks on internal nodes and write-locks only the target leaf, so puts into
+	// different leaves proceed in parallel. A leaf can only be split under its parent's write lock, which
+	// can't be taken while we hold the parent's read lock. Returns false, with nothing locked, if the leaf
+	// is full; the caller then restarts on the splitting path.
+	@SuppressWarnings("unchecked")
+	private boolean tryPutWithoutSplit(K key, V value, boolean putOnlyIfAbsent, Box<V> ret) {
+		Node<K,V> parent, child;
+		long stampParent, stampChild;
+		long stampRoot = rootLock.readLock();
+		try {
+			parent = root;
+			stampParent = parent.readLock();
+		} finally {
+			rootLock.unlock(stampRoot);
+		}
+
+		try {
+			while (!(child = ((InternalNode<K,V>) parent).getChild(key)).isLeaf) {
+				stampChild = child.readLock();
+				parent.unlock(stampParent);
+				parent = child;
+				stampParent = stampChild;
+			}
+			stampChild = child.writeLock();
+		} finally {
+			parent.unlock(stampParent);
+		}
+
+		if (child.needToSplit) {
+			child.unlock(stampChild);
+			return false;
+		}
+		ret.set(putInLeaf((LeafNode<K,V>) child, key, value, putOnlyIfAbsent, stampChild, false));
+		return true;
+	}
+
+	private V doPutWithSplits(K key, V value, boolean putOnlyIfAbsent, boolean innerTX) {
 		Node<K,V> parent, child;
 		long stampParent, stampChild;
 		long stampRoot = rootLock.writeLock();
-        final boolean innerTX = Transaction.isTransactionActive();
 		try {
 			parent = root;
 			stampParent = parent.writeLock();
@@ -1082,44 +1127,39 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 
 	private V putInLeaf(LeafNode<K,V> leafNode, K key, V value, boolean putOnlyIfAbsent, long stampLock, boolean inner) {
 		final int hash = generateHash(key);
-		// scan for empty/matching slots
-		int lastEmptySlot = -1;
-		for (int slot = MAX_LEAF_KEYS; slot >= 0; slot--) {
-			int slotHash = leafNode.hashes.get(slot);
-			if (slotHash == 0) {
-				lastEmptySlot = slot;
-			} else if (slotHash == hash) {
-				if (key.equals(leafNode.keys.get(slot))) {
-					V oldValue = leafNode.leaf.getSlot(slot).getValue();
-					if (putOnlyIfAbsent == false) {
-						final int slotToPut = slot;
-						Transaction.run(() -> {
-							leafNode.leaf.getSlot(slotToPut).setValue(value);
-							if (leafNode.keycount == 0)
-								leafNode.leaf.setIsEmpty(false);
-						}, ()->{
-                            leafNode.unlock(stampLock);
-                        }, ()-> {
-                           if (inner) leafNode.unlock(stampLock);
-                        });
-					} else {
+		// scan for matching slots, then for the first empty one
+		for (int slot = leafNode.nextSlot(hash, 0); slot >= 0; slot = leafNode.nextSlot(hash, slot + 1)) {
+			if (key.equals(leafNode.keys.get(slot))) {
+				V oldValue = leafNode.leaf.getSlot(slot).getValue();
+				if (putOnlyIfAbsent == false) {
+					final int slotToPut = slot;
+					Transaction.run(() -> {
+						leafNode.leaf.getSlot(slotToPut).setValue(value);
+						if (leafNode.keycount == 0)
+							leafNode.leaf.setIsEmpty(false);
+					}, ()->{
                         leafNode.unlock(stampLock);
-                    }
-					return oldValue;
-				}
+                    }, ()-> {
+                       if (inner) leafNode.unlock(stampLock);
+                    });
+				} else {
+                    leafNode.unlock(stampLock);
+                }
+				return oldValue;
 			}
 		}
 
-		final int slot = lastEmptySlot;
+		final int slot = leafNode.nextSlot(0, 0);
 		if (slot >= 0) {
             final int oldCount = leafNode.keycount;
 			Transaction.run(() -> {
 				leafNode.leaf.setSlot(slot, new PersistentLeafSlot<K,V>(hash, key, value));
 				if (leafNode.keycount == 0) leafNode.leaf.setIsEmpty(false);
             }, () -> {
-			leafNode.hashes.set(slot, hash);
+			leafNode.setFingerprint(slot, hash);
 			leafNode.keys.set(slot, key);
 			if ((++leafNode.keycount) == MAX_LEAF_KEYS + 1) leafNode.needToSplit = true;
+			entryCount.increment();
                 leafNode.unlock(stampLock);
             }, ()-> {
                 if (inner) leafNode.unlock(stampLock);
@@ -1177,22 +1217,19 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 
 	private V replaceInLeaf(LeafNode<K,V> leafNode, K key, V oldValue, V newValue) {
 		final int hash = generateHash(key);
-		// scan for empty/matching slots
-		for (int slot = MAX_LEAF_KEYS; slot >= 0; slot--) {
-			int slotHash = leafNode.hashes.get(slot);
-			if (slotHash == hash) {
-				if (key.equals(leafNode.keys.get(slot))) {
-					V value = leafNode.leaf.getSlot(slot).getValue();
-					if (oldValue == null || (oldValue != null && oldValue == value)) {
-						final int slotToPut = slot;
-						Transaction.run(() -> {
-							leafNode.leaf.getSlot(slotToPut).setValue(value);
-							if (leafNode.keycount == 0)
-								leafNode.leaf.setIsEmpty(false);
-						});
-					}
-					return value;
+		// scan for matching slots
+		for (int slot = leafNode.nextSlot(hash, 0); slot >= 0; slot = leafNode.nextSlot(hash, slot + 1)) {
+			if (key.equals(leafNode.keys.get(slot))) {
+				V value = leafNode.leaf.getSlot(slot).getValue();
+				if (oldValue == null || (oldValue != null && oldValue == value)) {
+					final int slotToPut = slot;
+					Transaction.run(() -> {
+						leafNode.leaf.getSlot(slotToPut).setValue(value);
+						if (leafNode.keycount == 0)
+							leafNode.leaf.setIsEmpty(false);
+					});
 				}
+				return value;
 			}
 		}
 		return null;
@@ -1232,8 +1269,8 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
             
         }, ()->{ 
 		    for (int slot = 0; slot <= MAX_LEAF_KEYS; slot++) {
-			    if (newLeafNode.hashes.get(slot) != 0) {
-                    leafNode.hashes.set(slot, newLeafNode.hashes.get(slot)); 
+			    if (newLeafNode.fingerprint(slot) != 0) {
+                    leafNode.setFingerprint(slot, newLeafNode.fingerprint(slot)); 
                     leafNode.keys.set(slot, newLeafNode.keys.get(slot)); 
 				    leafNode.keycount++;
 			    }
@@ -1247,9 +1284,9 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 
 		for (int slot = 0; slot <= MAX_LEAF_KEYS; slot++) {
 			if (compareKeys(splitKey, leafNode.keys.get(slot)) < 0) {
-				newLeafNode.hashes.set(slot, leafNode.hashes.get(slot));
+				newLeafNode.setFingerprint(slot, leafNode.fingerprint(slot));
 				newLeafNode.keys.set(slot, leafNode.keys.get(slot));
-				leafNode.hashes.set(slot, 0);
+				leafNode.setFingerprint(slot, 0);
 				leafNode.keys.set(slot, null);
 				leafNode.keycount--;
 				newLeafNode.keycount++;
@@ -1359,8 +1396,22 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 		return hash;
 	}
 
+	// Pearson hash over the four bytes of the key's hash code; never 0, which marks an empty slot
 	public int generateHash(Object key) {
-		return computePearsonHash(Integer.toString(key.hashCode()).getBytes());
+		int h = key.hashCode();
+		int hash = PEARSON_LOOKUP_TABLE[4 ^ (h & 0xFF)];
+		hash = PEARSON_LOOKUP_TABLE[hash ^ ((h >>> 8) & 0xFF)];
+		hash = PEARSON_LOOKUP_TABLE[hash ^ ((h >>> 16) & 0xFF)];
+		hash = PEARSON_LOOKUP_TABLE[hash ^ (h >>> 24)];
+		return (hash == 0) ? 1 : hash;
+	}
+
+	private static final long LOW_BYTES = 0x0101010101010101L;
+	private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+	// sets the high bit of every zero byte in x and clears all other bits
+	private static long matchingBytes(long x) {
+		return ~(((x & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | x | LOW_SEVEN_BITS);
 	}
 
 	public boolean verifyNext() {
@@ -1456,12 +1507,13 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 		while (cursor != null) {
 			boolean val = rndb.nextBoolean();
 			if (val == true) {
+				entryCount.add(-cursor.keycount);
 				cursor.keycount = 0;
 				cursor.leaf.setIsEmpty(true);
 				for (int i = 0; i < MAX_LEAF_KEYS + 1; i++) {
 					cursor.leaf.setSlot(i, null);
 					cursor.keys.set(i, null);
-					cursor.hashes.set(i, 0);
+					cursor.setFingerprint(i, 0);
 				}
 			}
 			cursor = cursor.next;
@@ -1568,7 +1620,8 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 	}
 
 	private class LeafNode<K extends AnyPersistent, V extends AnyPersistent> extends Node<K,V> {
-		private AtomicIntegerArray hashes;
+		// one-byte fingerprints, eight slots per word; 0 marks an empty slot
+		private final AtomicLongArray fingerprints;
 		private PersistentLeaf<K,V> leaf;
 		private final StampedLock nodeLock;
 		private K highKey;
@@ -1578,7 +1631,7 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 		public LeafNode(PersistentLeaf<K,V> leaf, boolean doReconstruction) {
 			super(MAX_LEAF_KEYS + 1, true);
 			this.leaf = leaf;
-			this.hashes = new AtomicIntegerArray(MAX_LEAF_KEYS + 1);
+			this.fingerprints = new AtomicLongArray((MAX_LEAF_KEYS + 8) >>> 3);
 			this.nodeLock = new StampedLock();
 			this.highKey = null;
 			this.next = null;
@@ -1596,10 +1649,11 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 			//Box<Boolean> isFullBox = new Box(true);
 			//Transaction.run(() -> {
 			for (int slot = 0; slot <= MAX_LEAF_KEYS; slot++) {
-				if (leaf.getSlot(slot) != null) {
-					this.hashes.set(slot, leaf.getSlot(slot).getHash());
-					K key = leaf.getSlot(slot).getKey();
-					//this.hashes.set(slot, generateHash(key));
+				PersistentLeafSlot<K,V> leafSlot = leaf.getSlot(slot);
+				if (leafSlot != null) {
+					K key = leafSlot.getKey();
+					// recomputed rather than read back so leaves written with an older hash function stay reachable
+					setFingerprint(slot, generateHash(key));
 					this.keys.set(slot, key);
 					this.keycount++;
 					if (highKey == null)
@@ -1651,13 +1705,40 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 			else return leafNode;
 		}
 
+		int fingerprint(int slot) {
+			return (int) (fingerprints.get(slot >>> 3) >>> ((slot & 7) << 3)) & 0xFF;
+		}
+
+		void setFingerprint(int slot, int fingerprint) {
+			int i = slot >>> 3;
+			int shift = (slot & 7) << 3;
+			long word, update;
+			do {
+				word = fingerprints.get(i);
+				update = (word & ~(0xFFL << shift)) | ((long) fingerprint << shift);
+			} while (!fingerprints.compareAndSet(i, word, update));
+		}
+
+		// returns the first slot at or after from whose fingerprint equals the given one, or -1;
+		// each word is matched in one step by zeroing equal bytes and testing for zero bytes
+		int nextSlot(int fingerprint, int from) {
+			if (from > MAX_LEAF_KEYS) return -1;
+			final long pattern = LOW_BYTES * fingerprint;
+			int i = from >>> 3;
+			long matches = matchingBytes(fingerprints.get(i) ^ pattern) & (-1L << ((from & 7) << 3));
+			while (matches == 0) {
+				if (++i == fingerprints.length()) return -1;
+				matches = matchingBytes(fingerprints.get(i) ^ pattern);
+			}
+			int slot = (i << 3) + (Long.numberOfTrailingZeros(matches) >>> 3);
+			return slot <= MAX_LEAF_KEYS ? slot : -1;
+		}
+
 		@SuppressWarnings("unchecked")
 		public V getValue(int hash, Object key) {
-			for (int slot = 0; slot <= MAX_LEAF_KEYS; slot++) {
-				if (hashes.get(slot) == hash) {
-					if (compare(key, keys.get(slot)) == 0)
-						return leaf.getSlot(slot).getValue();
-				}
+			for (int slot = nextSlot(hash, 0); slot >= 0; slot = nextSlot(hash, slot + 1)) {
+				if (compare(key, keys.get(slot)) == 0)
+					return leaf.getSlot(slot).getValue();
 			}
 			return null;
 		}
@@ -1676,7 +1757,7 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 			StringBuilder sb = new StringBuilder("KEYS => [");
 			for (int slot = 0; slot <= MAX_LEAF_KEYS; slot++) {
 				String temp = (keys.get(slot) == null) ? "X" : keys.get(slot).toString();
-				sb.append(/* hashes.get(slot) + "->" + */ temp + ",");
+				sb.append(/* fingerprint(slot) + "->" + */ temp + ",");
 			}
 			sb.append("]");
 			System.out.println(sb.toString());
@@ -1824,6 +1905,115 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 		}
 	}
 
+	/* ---------------- Cursors -------------- */
+
+	public Cursor cursor() {
+		return new Cursor(new KeyRangeBox(null, true, null, true));
+	}
+
+	public Cursor cursor(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+		if (fromKey != null && toKey != null && compareKeys(fromKey, toKey) > 0) throw new IllegalArgumentException("inconsistent range");
+		return new Cursor(new KeyRangeBox(fromKey, fromInclusive, toKey, toInclusive));
+	}
+
+	/**
+	 * Streams the entries of a key range in ascending key order.  Each leaf is copied once, under its
+	 * read lock, into buffers owned by the cursor and sorted there, so a scan allocates nothing per
+	 * leaf or per entry.  The scan stops at the first leaf holding a key above the range.  Like the
+	 * iterators, a cursor is weakly consistent; it is not thread-safe.
+	 */
+	public final class Cursor {
+		private final KeyRangeBox range;
+		private final K[] keys;
+		private final int[] slots;
+		private LeafNode<K,V> leafNode;
+		private LeafNode<K,V> nextLeafNode;
+		private boolean checkLow;
+		private boolean done;
+		private int count;
+		private int index;
+
+		@SuppressWarnings("unchecked")
+		Cursor(KeyRangeBox range) {
+			this.range = range;
+			this.keys = (K[]) new AnyPersistent[MAX_LEAF_KEYS + 1];
+			this.slots = new int[MAX_LEAF_KEYS + 1];
+			this.checkLow = range.lo != null;
+			this.nextLeafNode = checkLow ? getLeafNode(range.lo) : headLeafNode;
+		}
+
+		public boolean next() {
+			if (++index < count) return true;
+			count = 0;
+			while (!done && nextLeafNode != null) {
+				load(nextLeafNode);
+				if (count > 0) {
+					index = 0;
+					return true;
+				}
+			}
+			done = true;
+			leafNode = null;
+			return false;
+		}
+
+		public K key() {
+			if (index >= count) throw new NoSuchElementException();
+			return keys[index];
+		}
+
+		@SuppressWarnings("unchecked")
+		public V value() {
+			K key = key();
+			V value;
+			long stamp = leafNode.readLock();
+			try {
+				int slot = slots[index];
+				if (leafNode.keys.get(slot) == key) return leafNode.leaf.getSlot(slot).getValue();
+				value = leafNode.getValue(generateHash(key), key);
+			} finally {
+				leafNode.unlock(stamp);
+			}
+			// the entry moved out of this leaf after it was buffered
+			return value != null ? value : doGet(key);
+		}
+
+		// the successor is read under the same lock as the keys, so moving on needs no descent from the root
+		private void load(LeafNode<K,V> node) {
+			leafNode = node;
+			long stamp = node.readLock();
+			try {
+				for (int slot = 0; slot <= MAX_LEAF_KEYS; slot++) {
+					K key = node.keys.get(slot);
+					if (key == null || (checkLow && range.tooLow(key))) continue;
+					if (range.tooHigh(key)) done = true;
+					else {
+						keys[count] = key;
+						slots[count++] = slot;
+					}
+				}
+				nextLeafNode = node.next;
+			} finally {
+				node.unlock(stamp);
+			}
+			if (count > 0) checkLow = false;
+			// slots fill lowest first, so leaves of ascending keys arrive nearly sorted
+			for (int i = 1; i < count; i++) {
+				K key = keys[i];
+				int slot = slots[i];
+				int j = i - 1;
+				while (j >= 0 && compareKeys(keys[j], key) > 0) {
+					keys[j + 1] = keys[j];
+					slots[j + 1] = slots[j];
+					j--;
+				}
+				keys[j + 1] = key;
+				slots[j + 1] = slot;
+			}
+			Arrays.fill(keys, count, keys.length, null);
+		}
+	}
+
 	/* ---------------- Iterators -------------- */
 
 	abstract class Iter<T> implements Iterator<T> {
@@ -1892,59 +2082,22 @@ public class PersistentFPTree2<K extends AnyPersistent, V extends AnyPersistent>
 	}
 
 	final class KeyIterator implements Iterator<K> {
-		LeafNode<K,V> currentLeafNode;
-		ArrayList<K> currentLeafEntries;
-		int currentLeafIdx;
-
-		public KeyIterator() {
-			currentLeafNode = firstNonEmpty();
-			currentLeafEntries = new ArrayList<>(MAX_LEAF_KEYS + 1);
-			currentLeafIdx = 0;
-			scanAndAdvanceLeaf();
-		}
-
-		public LeafNode<K,V> firstNonEmpty() {
-			LeafNode<K,V> cursor = headLeafNode;
-			if (cursor == null) return null;
-
-			while(cursor.keycount == 0 && cursor.next != null) {
-				cursor = cursor.next;
-			}
-			return cursor;
-		}
-
-		protected final void scanAndAdvanceLeaf() {
-			currentLeafIdx = 0;
-			while (currentLeafNode != null && !sortedKeyList(currentLeafNode)) {
-				currentLeafNode = currentLeafNode.getNextNonEmpty();
-			}
-		}
-
-		private boolean sortedKeyList(LeafNode<K,V> leafNode) {
-			currentLeafEntries.clear();
-			long stamp = leafNode.readLock();
-			for (int slot = 0; slot <= MAX_LEAF_KEYS; slot++) {
-				K key = leafNode.keys.get(slot);
-				if (key != null) currentLeafEntries.add(key);
-			}
-			leafNode.unlock(stamp);
-			Collections.sort(currentLeafEntries, comparator);
-
-			return currentLeafEntries.size() > 0;
-		}
+		private final Cursor cursor = cursor();
+		private boolean advanced;
+		private boolean hasNext;
 
 		public boolean hasNext() {
-			if (currentLeafNode == null) return false;
-			else return !(currentLeafIdx >= currentLeafEntries.size() && currentLeafNode.getNextNonEmpty() == null);
+			if (!advanced) {
+				hasNext = cursor.next();
+				advanced = true;
+			}
+			return hasNext;
 		}
 
 		public K next() {
 			if (!this.hasNext()) throw new NoSuchElementException();
-			if (currentLeafIdx >= currentLeafEntries.size()) {
-				currentLeafNode = currentLeafNode.getNextNonEmpty();
-				scanAndAdvanceLeaf();
-			}
-			return currentLeafEntries.get(currentLeafIdx++);
+			advanced = false;
+			return cursor.key();
 		}
 	}
 
@@ -25,6 +25,8 @@ package lib.util.persistent;
 import lib.util.persistent.types.Types;
 import lib.util.persistent.types.ArrayType;
 import lib.util.persistent.types.ReferenceArrayType;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 public final class PersistentFloatArray extends AbstractPersistentMutableArray {
     private static final ArrayType<PersistentFloatArray> TYPE = new ReferenceArrayType<>(PersistentFloatArray.class, Types.FLOAT);
@@ -35,7 +37,7 @@ public final class PersistentFloatArray extends AbstractPersistentMutableArray {
 
     public PersistentFloatArray(float[] array) {
         this(array.length);
-        for (int i = 0; i < array.length; i++) setFloatElement(i, array[i]);
+        put(0, array, 0, array.length);
     }
 
     private PersistentFloatArray(ObjectPointer<PersistentFloatArray> pointer) {
@@ -50,10 +52,61 @@ public final class PersistentFloatArray extends AbstractPersistentMutableArray {
         setFloatElement(index, value);
     }
 
-    public synchronized float[] toArray() {
+    // copies len elements starting at from into dst[off, off + len)
+    public void get(int from, float[] dst, int off, int len) {
+        checkArrayRange(dst.length, off, len);
+        readElements(from, len, (chunk, done, n) -> chunk.asFloatBuffer().get(dst, off + done, n));
+    }
+
+    // stores src[off, off + len) into the elements starting at from
+    public void put(int from, float[] src, int off, int len) {
+        checkArrayRange(src.length, off, len);
+        writeElements(from, len, (chunk, done, n) -> chunk.asFloatBuffer().put(src, off + done, n));
+    }
+
+    public void fill(float value) {
+        fill(0, length(), value);
+    }
+
+    public void fill(int from, int to, float value) {
+        writeElements(from, to - from, (chunk, done, n) -> {
+            if (done > 0) return; // later chunks reuse the filled buffer
+            FloatBuffer buffer = chunk.asFloatBuffer();
+            for (int i = 0; i < n; i++) buffer.put(i, value);
+        });
+    }
+
+    public void sort() {
+        sort(0, length());
+    }
+
+    public void sort(int from, int to) {
+        Util.synchronizedBlock(this, () -> {
+            float[] a = new float[to - from];
+            get(from, a, 0, a.length);
+            Arrays.sort(a);
+            put(from, a, 0, a.length);
+        });
+    }
+
+    // same contract as Arrays.binarySearch, for an array sorted in ascending order
+    public int binarySearch(float key) {
+        return Util.synchronizedBlock(this, () -> {
+            int low = 0, high = length() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Float.compare(Float.intBitsToFloat(region().getInt(elementOffset(mid))), key);
+                if (cmp < 0) low = mid + 1;
+                else if (cmp > 0) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        });
+    }
+
+    public float[] toArray() {
         float[] ans = new float[length()];
-        int len = length();
-        for (int i = 0; i < len; i++) ans[i] = getFloatElement(i);
+        get(0, ans, 0, ans.length);
         return ans;
     }
 }
\ No newline at end of file
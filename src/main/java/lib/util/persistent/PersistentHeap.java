@@ -28,4 +28,26 @@ public interface PersistentHeap {
     MemoryRegion allocateObjectRegion(long size);
     void freeRegion(MemoryRegion region);
     Root getRoot();
+
+    // region for memory previously returned by one of the allocate methods, identified by its addr()
+    MemoryRegion regionFromAddress(long addr);
+
+    void memcpy(MemoryRegion srcRegion, long srcOffset, MemoryRegion destRegion, long destOffset, long length);
+    void memcpy(MemoryRegion srcRegion, long srcOffset, byte[] destArray, int destOffset, int length);
+    void memcpy(byte[] srcArray, int srcOffset, MemoryRegion destRegion, long destOffset, int length);
+    // must be called from within a transaction
+    void copyBytesToRegion(byte[] bytes, int startIndex, MemoryRegion destRegion, long destOffset, int length);
+
+    // live allocations; -1 if the heap does not track usage
+    default long allocatedBytes() {return -1;}
+    default long allocationCount() {return -1;}
+
+    // visits every allocated region; heaps that cannot enumerate their regions throw UnsupportedOperationException
+    default void forEachRegion(RegionVisitor visitor) {throw new UnsupportedOperationException();}
+
+    @FunctionalInterface
+    interface RegionVisitor {
+        // object is true for regions returned by allocateObjectRegion
+        void visit(long addr, long size, boolean object);
+    }
 }
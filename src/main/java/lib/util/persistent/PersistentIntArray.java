@@ -25,6 +25,9 @@ package lib.util.persistent;
 import lib.util.persistent.types.Types;
 import lib.util.persistent.types.ArrayType;
 import lib.util.persistent.types.ReferenceArrayType;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
 
 public final class PersistentIntArray extends AbstractPersistentMutableArray {
     private static final ArrayType<PersistentIntArray> TYPE = new ReferenceArrayType<>(PersistentIntArray.class, Types.INT);
@@ -35,7 +38,7 @@ public final class PersistentIntArray extends AbstractPersistentMutableArray {
 
     public PersistentIntArray(int[] array) {
         this(array.length);
-        for (int i = 0; i < array.length; i++) setIntElement(i, array[i]);
+        put(0, array, 0, array.length);
     }
 
     private PersistentIntArray(ObjectPointer<PersistentIntArray> pointer) {
@@ -50,10 +53,74 @@ public final class PersistentIntArray extends AbstractPersistentMutableArray {
         setIntElement(index, value);
     }
 
-    public synchronized int[] toArray() {
+    // copies len elements starting at from into dst[off, off + len)
+    public void get(int from, int[] dst, int off, int len) {
+        checkArrayRange(dst.length, off, len);
+        readElements(from, len, (chunk, done, n) -> chunk.asIntBuffer().get(dst, off + done, n));
+    }
+
+    // stores src[off, off + len) into the elements starting at from
+    public void put(int from, int[] src, int off, int len) {
+        checkArrayRange(src.length, off, len);
+        writeElements(from, len, (chunk, done, n) -> chunk.asIntBuffer().put(src, off + done, n));
+    }
+
+    public void fill(int value) {
+        fill(0, length(), value);
+    }
+
+    public void fill(int from, int to, int value) {
+        writeElements(from, to - from, (chunk, done, n) -> {
+            if (done > 0) return; // later chunks reuse the filled buffer
+            IntBuffer buffer = chunk.asIntBuffer();
+            for (int i = 0; i < n; i++) buffer.put(i, value);
+        });
+    }
+
+    public void sort() {
+        sort(0, length());
+    }
+
+    public void sort(int from, int to) {
+        Util.synchronizedBlock(this, () -> {
+            int[] a = new int[to - from];
+            get(from, a, 0, a.length);
+            Arrays.sort(a);
+            put(from, a, 0, a.length);
+        });
+    }
+
+    // same contract as Arrays.binarySearch, for an array sorted in ascending order
+    public int binarySearch(int key) {
+        return Util.synchronizedBlock(this, () -> {
+            int low = 0, high = length() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Integer.compare(region().getInt(elementOffset(mid)), key);
+                if (cmp < 0) low = mid + 1;
+                else if (cmp > 0) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        });
+    }
+
+    public int reduce(int identity, IntBinaryOperator op) {
+        int[] ans = {identity};
+        readElements(0, length(), (chunk, done, n) -> {
+            IntBuffer buffer = chunk.asIntBuffer();
+            for (int i = 0; i < n; i++) ans[0] = op.applyAsInt(ans[0], buffer.get(i));
+        });
+        return ans[0];
+    }
+
+    public int sum() {
+        return reduce(0, Integer::sum);
+    }
+
+    public int[] toArray() {
         int[] ans = new int[length()];
-        int len = length();
-        for (int i = 0; i < len; i++) ans[i] = getIntElement(i);
+        get(0, ans, 0, ans.length);
         return ans;
     }
 }
\ No newline at end of file
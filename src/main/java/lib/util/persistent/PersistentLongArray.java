@@ -25,6 +25,9 @@ package lib.util.persistent;
 import lib.util.persistent.types.Types;
 import lib.util.persistent.types.ArrayType;
 import lib.util.persistent.types.ReferenceArrayType;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.function.LongBinaryOperator;
 
 public final class PersistentLongArray extends AbstractPersistentMutableArray {
     private static final ArrayType<PersistentLongArray> TYPE = new ReferenceArrayType<>(PersistentLongArray.class, Types.LONG);
@@ -35,7 +38,7 @@ public final class PersistentLongArray extends AbstractPersistentMutableArray {
 
     public PersistentLongArray(long[] array) {
         this(array.length);
-        for (int i = 0; i < array.length; i++) setLongElement(i, array[i]);
+        put(0, array, 0, array.length);
     }
 
     private PersistentLongArray(ObjectPointer<PersistentLongArray> pointer) {
@@ -50,10 +53,74 @@ public final class PersistentLongArray extends AbstractPersistentMutableArray {
         setLongElement(index, value);
     }
 
-    public synchronized long[] toArray() {
+    // copies len elements starting at from into dst[off, off + len)
+    public void get(int from, long[] dst, int off, int len) {
+        checkArrayRange(dst.length, off, len);
+        readElements(from, len, (chunk, done, n) -> chunk.asLongBuffer().get(dst, off + done, n));
+    }
+
+    // stores src[off, off + len) into the elements starting at from
+    public void put(int from, long[] src, int off, int len) {
+        checkArrayRange(src.length, off, len);
+        writeElements(from, len, (chunk, done, n) -> chunk.asLongBuffer().put(src, off + done, n));
+    }
+
+    public void fill(long value) {
+        fill(0, length(), value);
+    }
+
+    public void fill(int from, int to, long value) {
+        writeElements(from, to - from, (chunk, done, n) -> {
+            if (done > 0) return; // later chunks reuse the filled buffer
+            LongBuffer buffer = chunk.asLongBuffer();
+            for (int i = 0; i < n; i++) buffer.put(i, value);
+        });
+    }
+
+    public void sort() {
+        sort(0, length());
+    }
+
+    public void sort(int from, int to) {
+        Util.synchronizedBlock(this, () -> {
+            long[] a = new long[to - from];
+            get(from, a, 0, a.length);
+            Arrays.sort(a);
+            put(from, a, 0, a.length);
+        });
+    }
+
+    // same contract as Arrays.binarySearch, for an array sorted in ascending order
+    public int binarySearch(long key) {
+        return Util.synchronizedBlock(this, () -> {
+            int low = 0, high = length() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Long.compare(region().getLong(elementOffset(mid)), key);
+                if (cmp < 0) low = mid + 1;
+                else if (cmp > 0) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        });
+    }
+
+    public long reduce(long identity, LongBinaryOperator op) {
+        long[] ans = {identity};
+        readElements(0, length(), (chunk, done, n) -> {
+            LongBuffer buffer = chunk.asLongBuffer();
+            for (int i = 0; i < n; i++) ans[0] = op.applyAsLong(ans[0], buffer.get(i));
+        });
+        return ans[0];
+    }
+
+    public long sum() {
+        return reduce(0L, Long::sum);
+    }
+
+    public long[] toArray() {
         long[] ans = new long[length()];
-        int len = length();
-        for (int i = 0; i < len; i++) ans[i] = getLongElement(i);
+        get(0, ans, 0, ans.length);
         return ans;
     }
 }
\ No newline at end of file
@@ -202,16 +202,20 @@ public class PersistentObject extends AbstractPersistentObject {
             case IndirectValue :
                 switch (hostKind) {
                     case Reference : 
-                        srcRegion = new lib.xpersistent.UncheckedPersistentMemoryRegion(region().getLong(offset));
+                        srcRegion = heap.regionFromAddress(region().getLong(offset));
                         srcRegionSize = fieldType.allocationSize(); //srcRegion.getInt(0);
                         dstRegion = new VolatileMemoryRegion(srcRegionSize);
-                        Util.memCopy(hostType, fieldType, srcRegion, offset, dstRegion, 0L, srcRegionSize);
+                        Util.memCopy(hostType, fieldType, srcRegion, 0L, dstRegion, 0L, srcRegionSize);
                         obj = AnyPersistent.reconstruct(new ObjectPointer<T>(fieldType, dstRegion));
                         break;
                     case DirectValue : 
-                        throw new RuntimeException("NYI");
                     case IndirectValue :
-                        throw new RuntimeException("NYI");
+                        // nested indirect values are stored inline, class id included
+                        srcRegionSize = fieldType.allocationSize();
+                        dstRegion = new VolatileMemoryRegion(srcRegionSize);
+                        Util.memCopy(hostType, fieldType, region(), offset, dstRegion, 0L, srcRegionSize);
+                        obj = AnyPersistent.reconstruct(new ObjectPointer<T>(fieldType, dstRegion));
+                        break;
                     default : throw new RuntimeException("Unsupported Kind: " + hostKind);
                 }
                 break;
@@ -240,6 +244,16 @@ public class PersistentObject extends AbstractPersistentObject {
         return obj;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    <T extends AnyPersistent> T getValueView(long offset, PersistentType pt, boolean writable) {
+        ObjectType<T> fieldType = (ObjectType<T>)pt;
+        if (fieldType.kind() != ObjectType.Kind.IndirectValue || getType().kind() != ObjectType.Kind.Reference) return super.getValueView(offset, pt, writable);
+        // an indirect value has its own region
+        long addr = getLong(offset);
+        return addr == 0 ? null : valueView(heap.regionFromAddress(addr), 0, fieldType, writable);
+    }
+
     public void setByteField(ByteField f, byte value) {setByte(offset(f.getIndex()), value);}
     public void setShortField(ShortField f, short value) {setShort(offset(f.getIndex()), value);}
     public void setIntField(IntField f, int value) {setInt(offset(f.getIndex()), value);}
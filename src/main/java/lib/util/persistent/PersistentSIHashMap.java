@@ -22,6 +22,7 @@
 package lib.util.persistent;
 
 import lib.util.persistent.types.*;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -31,8 +32,10 @@ import java.util.AbstractSet;
 import java.util.AbstractCollection;
 import java.util.function.Consumer;
 import java.util.function.BiFunction;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.NoSuchElementException;
 
@@ -41,22 +44,34 @@ public class PersistentSIHashMap<K extends AnyPersistent, V extends AnyPersisten
     static final int DEFAULT_INITIAL_CAPACITY = 1 << INITIAL_SIZE_POWER; // aka 16
     static final int MAXIMUM_CAPACITY = 1 << 30;
     static final int DEFAULT_RESIZE_THRESHOLD = 8;
+    static final int RESIZE_THREADS = 2;
+    static final int RESIZE_QUEUE_SIZE = 64;
 
     static final long ERROR_VALUE_CONST = -1L;
 
     private Set<Map.Entry<K, V>> entrySet;
     private Set<K> keySet;
     private Collection<V> values;
+    private final SizeCounter sizeCounter;
 
     private static Statics statics;
+    private static final ThreadPoolExecutor resizer;
     private static final IntField RESIZE_THRESHOLD = new IntField();
     private static final ObjectField<Table> TABLE = new ObjectField<>();
-    public static final ObjectType<PersistentSIHashMap> TYPE = ObjectType.withFields(PersistentSIHashMap.class, RESIZE_THRESHOLD, TABLE);
+    private static final ObjectField<SizeCounter> SIZE = new ObjectField<>();
+    public static final ObjectType<PersistentSIHashMap> TYPE = ObjectType.withFields(PersistentSIHashMap.class, RESIZE_THRESHOLD, TABLE, SIZE);
 
     static {
         statics = ObjectDirectory.get("PersistentSIHashMap_statics", Statics.class);
         if (statics == null)
             ObjectDirectory.put("PersistentSIHashMap_statics", statics = new Statics());
+        // shared by all maps; a resize is only a hint, so one that doesn't fit in the queue is dropped
+        resizer = new ThreadPoolExecutor(RESIZE_THREADS, RESIZE_THREADS, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(RESIZE_QUEUE_SIZE), (Runnable r) -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        resizer.allowCoreThreadTimeOut(true);
     }
 
     public static final class Statics extends PersistentObject {
@@ -80,7 +95,6 @@ public class PersistentSIHashMap<K extends AnyPersistent, V extends AnyPersisten
         private static final ObjectType<Table> TYPE = ObjectType.withFields(Table.class, ARRAY, CAPACITY, INITIAL_CAPACITY);
 
         AtomicBoolean resizing = new AtomicBoolean(false);
-        ExecutorService executor = Executors.newSingleThreadExecutor();
 
         Table() {
             this(DEFAULT_INITIAL_CAPACITY);
@@ -133,22 +147,28 @@ public class PersistentSIHashMap<K extends AnyPersistent, V extends AnyPersisten
             return getTableArray().get(slotIndex).get((index < getInitialCapacity()) ? index : (index - Integer.highestOneBit(index)));
         }
 
+        // sentinels in the new slots are created lazily by getSentinel(); takes the table lock before
+        // the array list's, the same order as setSlot()
         void addSlots(int size) {
             Transaction.run(() -> {
                 PersistentArray<Node> sentinelArray = new PersistentArray<>(size);
+                setIntField(CAPACITY, getIntField(CAPACITY) + size);
                 getTableArray().add(sentinelArray);
                 // debug();
-                setIntField(CAPACITY, getIntField(CAPACITY) + size);
             });
         }
 
         void resize() {
             if (!getResizing() && setResizingIfFalse()) {
                 try {
-                // executor.submit(() -> {
-                    addSlots(getCapacity());
-                // });
-                } finally {
+                    resizer.execute(() -> {
+                        try {
+                            addSlots(getCapacity());
+                        } finally {
+                            clearResizing();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
                     clearResizing();
                 }
             }
@@ -370,10 +390,13 @@ public class PersistentSIHashMap<K extends AnyPersistent, V extends AnyPersisten
         setObjectField(TABLE, new Table(initialCapacity));
         setIntField(RESIZE_THRESHOLD, resizeThreshold);
         setNode(0, new Node<K, V>(0, null, null, null));
+        setObjectField(SIZE, sizeCounter = new SizeCounter());
     }
 
     public PersistentSIHashMap(ObjectPointer<? extends PersistentSIHashMap> p) {
         super(p);
+        sizeCounter = getObjectField(SIZE);
+        sizeCounter.recover(this::countNodes);
     }
 
     private Table getTable() { return getObjectField(TABLE); }
@@ -393,16 +416,24 @@ public class PersistentSIHashMap<K extends AnyPersistent, V extends AnyPersisten
         final int hash = hash(key);
         Box<Object[]> ret = new Box<>();
 
-        while (true) {
-            int slot = hash % getTable().getCapacity();
-            final Node<K, V> sentinel = getSentinel(slot);
-            // System.out.println("table length is " + getTable().getCapacity() + ", slot is " + slot);
-            Transaction.run(() -> {
-                // System.out.println("thread " + Thread.currentThread().getId() + " attempting to insert " + key + " from slot " + slot);
-                ret.set(addOrUpdateNode(sentinel, hash, key, value, onlyIfAbsent));
-            }, sentinel);
-
-            if (ret.get()[0] != statics.errorValue()) break;
+        long delta = 0;
+        sizeCounter.enter();
+        try {
+            while (true) {
+                int slot = hash % getTable().getCapacity();
+                final Node<K, V> sentinel = getSentinel(slot);
+                // System.out.println("table length is " + getTable().getCapacity() + ", slot is " + slot);
+                Transaction.run(() -> {
+                    // System.out.println("thread " + Thread.currentThread().getId() + " attempting to insert " + key + " from slot " + slot);
+                    ret.set(addOrUpdateNode(sentinel, hash, key, value, onlyIfAbsent));
+                }, sentinel);
+
+                if (ret.get()[0] != statics.errorValue()) break;
+            }
+            if (ret.get()[0] == null) delta = 1;
+        }
+        finally {
+            sizeCounter.exit(delta);
         }
         // System.out.println("thread " + Thread.currentThread().getId() + " succeeded in inserting " + key);
 
@@ -592,13 +623,21 @@ public class PersistentSIHashMap<K extends AnyPersistent, V extends AnyPersisten
         if (key == null) throw new NullPointerException();
         int hash = hash(key);
         Box<Object> ret = new Box<>();
-        while (true) {
-            int slot = hash % getTable().getCapacity();
-            Node sentinel = getSentinel(slot);
-            Transaction.run(() -> {
-                ret.set(removeNodeFromSentinel(sentinel, hash, key));
-            }, sentinel);
-            if (ret.get() != statics.errorValue()) break;
+        long delta = 0;
+        sizeCounter.enter();
+        try {
+            while (true) {
+                int slot = hash % getTable().getCapacity();
+                Node sentinel = getSentinel(slot);
+                Transaction.run(() -> {
+                    ret.set(removeNodeFromSentinel(sentinel, hash, key));
+                }, sentinel);
+                if (ret.get() != statics.errorValue()) break;
+            }
+            if (ret.get() != null) delta = -1;
+        }
+        finally {
+            sizeCounter.exit(delta);
         }
         @SuppressWarnings("unchecked") V vv = (V)ret.get();
         return vv;
@@ -697,13 +736,34 @@ public class PersistentSIHashMap<K extends AnyPersistent, V extends AnyPersisten
     }
 
     public int size() {
-        Node curr = getHead();
-        int size = 0;
-        while (curr != null) {
-            if (!curr.isSentinel()) size++;
-            curr = curr.getNext();
-        }
-        return size;
+        long count = sizeCounter.get();
+        return (count >= Integer.MAX_VALUE) ? Integer.MAX_VALUE : (int) count;
+    }
+
+    // only used on reconstruction after an unclean shutdown; each sentinel's segment of the node list
+    // is counted in parallel by reading node regions directly, since the object cache is locked while
+    // this map is being reconstructed
+    private long countNodes() {
+        int capacity = getTable().getCapacity();
+        long[] sentinels = new long[capacity];
+        int n = 0;
+        for (int i = 0; i < capacity; i++) {
+            Node<K, V> sentinel = getNode(i);
+            if (sentinel != null) sentinels[n++] = sentinel.addr();
+        }
+        final long hashOffset = Node.TYPE.offset(Node.HASH.getIndex());
+        final long nextOffset = Node.TYPE.offset(Node.NEXT.getIndex());
+        return Arrays.stream(sentinels, 0, n).parallel().map((long sentinelAddr) -> {
+            long count = 0;
+            long addr = heap.regionFromAddress(sentinelAddr).getLong(nextOffset);
+            while (addr != 0) {
+                MemoryRegion node = heap.regionFromAddress(addr);
+                if ((node.getLong(hashOffset) & 0x1) == 0) break;    // next segment's sentinel
+                count++;
+                addr = node.getLong(nextOffset);
+            }
+            return count;
+        }).sum();
     }
 
     private int hash(Object key) {
@@ -778,19 +838,30 @@ public class PersistentSIHashMap<K extends AnyPersistent, V extends AnyPersisten
     }
 
     public void clear() {
-        Transaction.run(() -> {
-            Node sentinel = getHead(), next = sentinel.getNext();
-            while (next != null) {
-                if (next.isSentinel()) {
-                    sentinel = next;
-                    Transaction.run(() -> {});
-                    next = sentinel.getNext();
-                } else {
-                    sentinel.setNext(next.getNext());
-                    next = next.getNext();
+        long[] removed = new long[1];
+        long delta = 0;
+        sizeCounter.enter();
+        try {
+            Transaction.run(() -> {
+                removed[0] = 0;
+                Node sentinel = getHead(), next = sentinel.getNext();
+                while (next != null) {
+                    if (next.isSentinel()) {
+                        sentinel = next;
+                        Transaction.run(() -> {});
+                        next = sentinel.getNext();
+                    } else {
+                        sentinel.setNext(next.getNext());
+                        next = next.getNext();
+                        removed[0]++;
+                    }
                 }
-            }
-        }, getHead());
+            }, getHead());
+            delta = -removed[0];
+        }
+        finally {
+            sizeCounter.exit(delta);
+        }
     }
 
     public boolean equals(Object o) {
@@ -25,6 +25,8 @@ package lib.util.persistent;
 import lib.util.persistent.types.Types;
 import lib.util.persistent.types.ArrayType;
 import lib.util.persistent.types.ReferenceArrayType;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 
 public final class PersistentShortArray extends AbstractPersistentMutableArray {
     private static final ArrayType<PersistentShortArray> TYPE = new ReferenceArrayType<>(PersistentShortArray.class, Types.SHORT);
@@ -35,7 +37,7 @@ public final class PersistentShortArray extends AbstractPersistentMutableArray {
 
     public PersistentShortArray(short[] array) {
         this(array.length);
-        for (int i = 0; i < array.length; i++) setShortElement(i, array[i]);
+        put(0, array, 0, array.length);
     }
 
     private PersistentShortArray(ObjectPointer<PersistentShortArray> pointer) {
@@ -50,10 +52,61 @@ public final class PersistentShortArray extends AbstractPersistentMutableArray {
         setShortElement(index, value);
     }
 
-    public synchronized short[] toArray() {
+    // copies len elements starting at from into dst[off, off + len)
+    public void get(int from, short[] dst, int off, int len) {
+        checkArrayRange(dst.length, off, len);
+        readElements(from, len, (chunk, done, n) -> chunk.asShortBuffer().get(dst, off + done, n));
+    }
+
+    // stores src[off, off + len) into the elements starting at from
+    public void put(int from, short[] src, int off, int len) {
+        checkArrayRange(src.length, off, len);
+        writeElements(from, len, (chunk, done, n) -> chunk.asShortBuffer().put(src, off + done, n));
+    }
+
+    public void fill(short value) {
+        fill(0, length(), value);
+    }
+
+    public void fill(int from, int to, short value) {
+        writeElements(from, to - from, (chunk, done, n) -> {
+            if (done > 0) return; // later chunks reuse the filled buffer
+            ShortBuffer buffer = chunk.asShortBuffer();
+            for (int i = 0; i < n; i++) buffer.put(i, value);
+        });
+    }
+
+    public void sort() {
+        sort(0, length());
+    }
+
+    public void sort(int from, int to) {
+        Util.synchronizedBlock(this, () -> {
+            short[] a = new short[to - from];
+            get(from, a, 0, a.length);
+            Arrays.sort(a);
+            put(from, a, 0, a.length);
+        });
+    }
+
+    // same contract as Arrays.binarySearch, for an array sorted in ascending order
+    public int binarySearch(short key) {
+        return Util.synchronizedBlock(this, () -> {
+            int low = 0, high = length() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = Short.compare(region().getShort(elementOffset(mid)), key);
+                if (cmp < 0) low = mid + 1;
+                else if (cmp > 0) high = mid - 1;
+                else return mid;
+            }
+            return -(low + 1);
+        });
+    }
+
+    public short[] toArray() {
         short[] ans = new short[length()];
-        int len = length();
-        for (int i = 0; i < len; i++) ans[i] = getShortElement(i);
+        get(0, ans, 0, ans.length);
         return ans;
     }
 }
\ No newline at end of file
@@ -191,14 +191,11 @@ public class PersistentSkipListMap<K extends AnyPersistent, V extends AnyPersist
         boolean casValue(AnyPersistent cmp, AnyPersistent val) {
             if (val != null) return compareAndSetValue(cmp, val);
             else {
-                 Box<Boolean> ret = new Box<>();
-                 Transaction.run(() -> {
-                    ret.set(compareAndSetValue(cmp, val));
-                    }, () -> {
-                    if (ret.get()) hasNullValue = true;
-                    }
-                );
-                 return ret.get();
+                // hasNullValue only means the value may be null and is rechecked on read, so it is set
+                // at once; the rest of the removing transaction must already see this node as deleted
+                boolean ret = compareAndSetValue(cmp, val);
+                if (ret) hasNullValue = true;
+                return ret;
             }
         }
 
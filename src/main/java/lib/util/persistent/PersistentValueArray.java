@@ -23,21 +23,18 @@ package lib.util.persistent;
 
 import lib.util.persistent.types.Types;
 import lib.util.persistent.types.ArrayType;
-import lib.util.persistent.types.ReferenceArrayType;
+import lib.util.persistent.types.ValueArrayType;
 import lib.util.persistent.types.ObjectType;
-import java.lang.reflect.Array;
-import java.util.Arrays;
-import lib.xpersistent.*;
-import lib.util.persistent.spi.PersistentMemoryProvider;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+// elements, direct or indirect, are stored inline in the array's region
 public class PersistentValueArray<T extends AnyPersistent> extends PersistentArray<T> {
-    private static ArrayType<PersistentValueArray> TYPE = new ReferenceArrayType<PersistentValueArray>(PersistentValueArray.class, Types.VALUE);
+    private static final ArrayType<PersistentValueArray> TYPE = new ValueArrayType<PersistentValueArray>(PersistentValueArray.class, Types.VALUE);
+    private static final Map<Class<?>, ArrayType<PersistentValueArray>> types = new ConcurrentHashMap<>();
 
-    @SuppressWarnings("unchecked")
     public PersistentValueArray(Class<T> elementClass, int size) {
-        // super(elementClass, size);
-        super(new ReferenceArrayType<PersistentValueArray>(PersistentValueArray.class, Types.typeForClass(elementClass)), size);
-        TYPE = (ArrayType<PersistentValueArray>)this.getType();
+        this(typeForElementClass(elementClass), size);
     }
 
     @SafeVarargs
@@ -48,16 +45,44 @@ public class PersistentValueArray<T extends AnyPersistent> extends PersistentArr
 
     protected PersistentValueArray(ArrayType<? extends PersistentValueArray> type, int size) {
         super(type, size);
+        if (type.elementType() instanceof ObjectType) {
+            ObjectType<?> elementType = (ObjectType<?>)type.elementType();
+            setRawInt(ValueArrayType.ELEMENT_CLASS_ID_OFFSET, ClassInfo.getClassInfo(elementType.name()).id());
+            flushRegion();
+        }
     }
 
+    @SuppressWarnings("unchecked")
     protected PersistentValueArray(ObjectPointer<? extends PersistentValueArray<T>> pointer) {
-        super(pointer);
+        super(withElementType(pointer));
+    }
+
+    static ArrayType<PersistentValueArray> typeForElementClass(Class<?> elementClass) {
+        ArrayType<PersistentValueArray> ans = types.get(elementClass);
+        if (ans == null) {
+            ans = new ValueArrayType<PersistentValueArray>(PersistentValueArray.class, Types.typeForClass(elementClass.asSubclass(AnyPersistent.class)));
+            ArrayType<PersistentValueArray> prev = types.putIfAbsent(elementClass, ans);
+            if (prev != null) ans = prev;
+        }
+        return ans;
+    }
+
+    // the registered type of this class does not know the element type; it is recovered from the class id
+    // stored in the array's region
+    static ArrayType<PersistentValueArray> typeForRegion(MemoryRegion region) {
+        ClassInfo ci = ClassInfo.getClassInfo(region.getInt(ValueArrayType.ELEMENT_CLASS_ID_OFFSET));
+        return ci == null || ci.cls() == null ? TYPE : typeForElementClass(ci.cls());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ObjectPointer withElementType(ObjectPointer<?> pointer) {
+        return new ObjectPointer(typeForRegion(pointer.region()), pointer.region());
     }
 
     @Override
     void setObjectElement(int index, AnyPersistent value) {
         // System.out.format("setObjectElement(%d, %s), offset = %d\n", index, value, elementOffset(index));
-        setValueObject(elementOffset(checkIndex(index)), value);
+        setInlineValueObject(elementOffset(checkIndex(index)), value);
     }
 
     @Override
@@ -65,4 +90,24 @@ public class PersistentValueArray<T extends AnyPersistent> extends PersistentArr
         return getValueObject(elementOffset(checkIndex(index)), getElementType());
     }
 
+    // element read in place rather than copied out; see AbstractPersistentObject.getObjectFieldView
+    public T getView(int index) {
+        return getValueView(elementOffset(checkIndex(index)), getElementType(), false);
+    }
+
+    public T getMutableView(int index) {
+        return getValueView(elementOffset(checkIndex(index)), getElementType(), true);
+    }
+
+    @Override
+    public <E extends AnyPersistent> E[] toObjectArray(E[] a) {
+        return Util.synchronizedBlock(this, () -> {
+            int length = length();
+            @SuppressWarnings("unchecked")
+            E[] ans = a.length < length ? java.util.Arrays.copyOf(a, length) : a;
+            for (int i = 0; i < length; i++) ans[i] = getValueObject(elementOffset(i), getElementType());
+            if (ans.length > length) ans[length] = null;
+            return ans;
+        });
+    }
 }
@@ -23,4 +23,7 @@ package lib.util.persistent;
 
 public interface Root {
     PersistentHashMap<PersistentString, AnyPersistent> getObjectDirectory();
+    long getClassRegistryAddr();
+    void setClassRegistryAddr(long addr);
+    long getRootRegionAddr();
 }
@@ -0,0 +1,157 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+
+package lib.util.persistent;
+
+import lib.util.persistent.types.IntField;
+import lib.util.persistent.types.LongField;
+import lib.util.persistent.types.ObjectType;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Element count for persistent collections. Updates go to striped volatile cells; the persistent
+// total is only written at checkpoints: at the first quiet moment after every CHECKPOINT_INTERVAL
+// committed updates, and from a shutdown hook. CLEAN is durably cleared before the first update that
+// follows a checkpoint, so a total found with CLEAN == 0 when a counter is first loaded is stale and
+// the owner is asked to recount.
+//
+// The volatile state is registered by address rather than held by the wrapper, so deltas not yet
+// checkpointed survive the wrapper being dropped from the object cache and reconstructed.
+final class SizeCounter extends PersistentObject {
+    private static final LongField COUNT = new LongField();
+    private static final IntField CLEAN = new IntField();
+    static final ObjectType<SizeCounter> TYPE = ObjectType.withFields(SizeCounter.class, COUNT, CLEAN);
+    static final int CHECKPOINT_INTERVAL = 1 << 12;
+
+    private static final long COUNT_OFFSET = TYPE.offset(COUNT.getIndex());
+    private static final long CLEAN_OFFSET = TYPE.offset(CLEAN.getIndex());
+
+    private static final ConcurrentHashMap<Long, State> states = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(SizeCounter::checkpointAll));
+    }
+
+    private static final class State {
+        final MemoryRegion region;
+        final LongAdder cells = new LongAdder();
+        final LongAdder inFlight = new LongAdder();
+        volatile boolean dirty;
+        boolean stale;
+        long base;
+        // approximate; only used to decide when to try a checkpoint
+        int updates;
+
+        State(MemoryRegion region) {
+            this.region = region;
+        }
+
+        long get() {
+            return base + cells.sum();
+        }
+
+        synchronized void markDirty() {
+            if (dirty) return;
+            region.putDurableInt(CLEAN_OFFSET, 0);
+            dirty = true;
+        }
+
+        // folds the cells into the persistent total; gives up if an update is in progress
+        synchronized boolean checkpoint() {
+            dirty = false;
+            if (inFlight.sum() != 0) {
+                dirty = true;
+                return false;
+            }
+            region.putDurableLong(COUNT_OFFSET, get());
+            region.putDurableInt(CLEAN_OFFSET, 1);
+            updates = 0;
+            return true;
+        }
+    }
+
+    private final State state;
+
+    SizeCounter() {
+        super(TYPE);
+        setLongField(COUNT, 0);
+        setIntField(CLEAN, 1);
+        this.state = new State(region());
+        long addr = addr();
+        states.put(addr, state);
+        Transaction.addHandlers(null, () -> states.remove(addr, state));
+    }
+
+    SizeCounter(ObjectPointer<SizeCounter> p) {
+        super(p);
+        this.state = states.computeIfAbsent(addr(), (Long a) -> {
+            State s = new State(region());
+            s.dirty = s.stale = getIntField(CLEAN) == 0;
+            s.base = getLongField(COUNT);
+            return s;
+        });
+    }
+
+    // called by the owner while it is being reconstructed, i.e. before any update can race with it
+    void recover(LongSupplier recount) {
+        synchronized (state) {
+            if (!state.stale) return;
+            state.base = recount.getAsLong();
+            state.stale = false;
+            state.checkpoint();
+        }
+    }
+
+    long get() {
+        return state.get();
+    }
+
+    // must be paired with exactly one exit(), after the update's transaction has been run
+    void enter() {
+        state.inFlight.increment();
+        if (!state.dirty) state.markDirty();
+    }
+
+    void exit(long delta) {
+        if (!Transaction.addHandlers(() -> release(delta), () -> release(0))) release(delta);
+    }
+
+    private void release(long delta) {
+        State s = state;
+        if (delta != 0) {
+            s.cells.add(delta);
+            s.updates++;
+        }
+        s.inFlight.decrement();
+        if (s.updates >= CHECKPOINT_INTERVAL && s.inFlight.sum() == 0) s.checkpoint();
+    }
+
+    // called when the region at addr is freed; a counter's state must not outlive it
+    static void freed(long addr) {
+        if (!states.isEmpty() && states.containsKey(addr)) Transaction.addHandlers(() -> states.remove(addr), null);
+    }
+
+    static void checkpointAll() {
+        for (State s : states.values()) s.checkpoint();
+    }
+}
@@ -21,20 +21,26 @@
 
 package lib.util.persistent;
 
-import lib.xpersistent.XTransaction;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Comparator;
+import java.lang.ref.WeakReference;
 import lib.util.persistent.types.ObjectType;
 
 
 /* Notes:
     -- to enable AllocationStats, find lines marked "uncomment for allocation stats" and comment back in
+    -- counters and histograms are kept in per-thread cells that only the owning thread writes;
+       reads sum (or take the max of) all threads' cells, so reading costs more than updating
 */
 
 public class Stats {
     static boolean enable = Config.ENABLE_STATS;
-    public static Stats current;
+    public static volatile Stats current;
 
     public ObjectCacheStats objectCache;
     public MemoryStats memory;
@@ -42,16 +48,26 @@ public class Stats {
     public LockStats locks;
     public AllocationStats allocStats;
 
+    private int slots;
+    private final BitSet maxSlots;
+    private final ThreadLocal<Cells> cells;
+    private final ConcurrentLinkedQueue<Cells> liveCells;
+    private final AtomicLongArray retired;
+
     static {
         current = new Stats();
     }
 
     private Stats() {
-        objectCache = new ObjectCacheStats();
-        memory = new MemoryStats();
-        transactions = new TransactionStats();
-        locks = new LockStats();
+        maxSlots = new BitSet();
+        cells = ThreadLocal.withInitial(this::newCells);
+        liveCells = new ConcurrentLinkedQueue<>();
+        objectCache = new ObjectCacheStats(this);
+        memory = new MemoryStats(this);
+        transactions = new TransactionStats(this);
+        locks = new LockStats(this);
         allocStats = new AllocationStats(AllocationStats.Key.NPV);
+        retired = new AtomicLongArray(slots);
      }
 
     public static void enable(boolean e) {enable = e;}
@@ -70,87 +86,324 @@ public class Stats {
 
     public static Stats reset() {
         Stats ans = current;
-        current = new Stats();
-        current.objectCache.maxSize = ans.objectCache.maxSize;
+        Stats stats = new Stats();
+        stats.objectCache.maxSize.updateMax(ans.objectCache.maxSize.get());
+        current = stats;
         return ans;
     }
 
-    public static class ObjectCacheStats {
-        public long simpleHits;
-        public long promotedHits;
-        public long simpleMisses;
-        public long referentMisses;
-        public long maxSize;
+    private static final class Cells {
+        private final WeakReference<Thread> owner;
+        private final AtomicLongArray values;
+
+        Cells(int size) {
+            owner = new WeakReference<>(Thread.currentThread());
+            values = new AtomicLongArray(size);
+        }
+
+        boolean retired() {
+            Thread t = owner.get();
+            return t == null || !t.isAlive();
+        }
+    }
+
+    // threads that have exited are folded into retired when a new thread registers, so liveCells
+    // stays bounded by the number of threads alive at once without putting work on the read path
+    private Cells newCells() {
+        retireDeadThreads();
+        Cells c = new Cells(slots);
+        liveCells.add(c);
+        return c;
+    }
+
+    private int allocateSlots(int count, boolean max) {
+        int first = slots;
+        slots += count;
+        if (max) maxSlots.set(first, slots);
+        return first;
+    }
+
+    // single writer per cell, so a plain read and an ordered write are enough
+    private void add(int slot, long delta) {
+        AtomicLongArray values = cells.get().values;
+        values.lazySet(slot, values.get(slot) + delta);
+    }
+
+    private void max(int slot, long value) {
+        AtomicLongArray values = cells.get().values;
+        if (value > values.get(slot)) values.lazySet(slot, value);
+    }
+
+    private long read(int slot) {
+        boolean max = maxSlots.get(slot);
+        long ans = retired.get(slot);
+        for (Cells c : liveCells) {
+            long v = c.values.get(slot);
+            ans = max ? Math.max(ans, v) : ans + v;
+        }
+        return ans;
+    }
+
+    // sums count consecutive non-max slots in one pass over the threads' cells
+    private long[] read(int first, int count) {
+        long[] ans = new long[count];
+        for (int i = 0; i < count; i++) ans[i] = retired.get(first + i);
+        for (Cells c : liveCells) {
+            for (int i = 0; i < count; i++) ans[i] += c.values.get(first + i);
+        }
+        return ans;
+    }
+
+    // approximate if the owning threads are updating concurrently
+    private void clear(int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            retired.set(i, 0);
+            for (Cells c : liveCells) c.values.set(i, 0);
+        }
+    }
+
+    private synchronized void retireDeadThreads() {
+        for (Cells c : liveCells) {
+            if (!c.retired()) continue;
+            for (int i = 0; i < slots; i++) {
+                long v = c.values.get(i);
+                if (maxSlots.get(i)) retired.set(i, Math.max(retired.get(i), v));
+                else retired.addAndGet(i, v);
+            }
+            liveCells.remove(c);
+        }
+    }
+
+    public static final class Counter {
+        private final Stats stats;
+        private final int slot;
+        private final boolean enabled;
+
+        Counter(Stats stats, boolean enabled, boolean max) {
+            this.stats = stats;
+            this.slot = stats.allocateSlots(1, max);
+            this.enabled = enabled;
+        }
+
+        public void increment() {stats.add(slot, 1);}
+        public void add(long delta) {stats.add(slot, delta);}
+        public void updateMax(long value) {stats.max(slot, value);}
+        public long get() {return stats.read(slot);}
+        public boolean enabled() {return enabled;}
+        public void clear() {stats.clear(slot, 1);}
+        public String toString() {return enabled ? Long.toString(get()) : "N/A";}
+    }
+
+    // log-linear buckets in the style of HdrHistogram: exact below SUB_BUCKETS, then SUB_BUCKETS
+    // buckets per power of two, so a recorded value is off by at most 1/SUB_BUCKETS (6.25%)
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MAX_EXPONENT = 40;                     // larger values are recorded as 2^40 - 1
+        private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+        private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final Stats stats;
+        private final int first;
+        private final int sumSlot;
+        private final int maxSlot;
+        private final boolean enabled;
+
+        Histogram(Stats stats, boolean enabled) {
+            this.stats = stats;
+            this.first = stats.allocateSlots(BUCKETS + 1, false);
+            this.sumSlot = first + BUCKETS;
+            this.maxSlot = stats.allocateSlots(1, true);
+            this.enabled = enabled;
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) return value < 0 ? 0 : (int)value;
+            if (value > MAX_VALUE) value = MAX_VALUE;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int)((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        }
+
+        static long lowestValue(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        public void record(long value) {
+            AtomicLongArray values = stats.cells.get().values;
+            int slot = first + bucket(value);
+            values.lazySet(slot, values.get(slot) + 1);
+            values.lazySet(sumSlot, values.get(sumSlot) + value);
+            if (value > values.get(maxSlot)) values.lazySet(maxSlot, value);
+        }
 
-        ObjectCacheStats() {
-            clear();
+        private long[] counts() {
+            return stats.read(first, BUCKETS);
         }
 
+        public long count() {
+            long ans = 0;
+            for (long c : counts()) ans += c;
+            return ans;
+        }
+
+        public long max() {return stats.read(maxSlot);}
+
+        public double mean() {
+            long count = count();
+            return count == 0 ? 0 : (double)stats.read(sumSlot) / count;
+        }
+
+        // highest value equivalent to the recorded value at the given percentile (0 - 100)
+        public long percentile(double percentile) {
+            return percentile(counts(), percentile);
+        }
+
+        private long percentile(long[] counts, double percentile) {
+            long total = 0;
+            for (long c : counts) total += c;
+            if (total == 0) return 0;
+            long target = Math.max(1, (long)Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= target) return Math.min(lowestValue(i + 1) - 1, max());
+            }
+            return max();
+        }
+
+        public boolean enabled() {return enabled;}
+
         public void clear() {
-            simpleHits = -1;
-            promotedHits = 0;
-            simpleMisses = -1;
-            referentMisses = 0;    
-            maxSize = -1;
+            stats.clear(first, BUCKETS + 1);
+            stats.clear(maxSlot, 1);
+        }
+
+        public String toString() {
+            if (!enabled) return "N/A";
+            long[] counts = counts();
+            long count = 0;
+            for (long c : counts) count += c;
+            return String.format("count %,d  mean %,.1f  p50 %,d  p90 %,d  p99 %,d  max %,d", count, count == 0 ? 0.0 : (double)stats.read(sumSlot) / count,
+                percentile(counts, 50), percentile(counts, 90), percentile(counts, 99), max());
+        }
+    }
+
+    public static class ObjectCacheStats {
+        public final Counter simpleHits;
+        public final Counter promotedHits;
+        public final Counter simpleMisses;
+        public final Counter referentMisses;
+        public final Counter maxSize;
+
+        ObjectCacheStats(Stats stats) {
+            boolean enabled = Config.ENABLE_OBJECT_CACHE_STATS;
+            simpleHits = new Counter(stats, enabled, false);
+            promotedHits = new Counter(stats, enabled, false);
+            simpleMisses = new Counter(stats, enabled, false);
+            referentMisses = new Counter(stats, enabled, false);
+            maxSize = new Counter(stats, enabled, true);
+        }
+
+        public void clear() {
+            simpleHits.clear();
+            promotedHits.clear();
+            simpleMisses.clear();
+            referentMisses.clear();
+            maxSize.clear();
         }        
     }
 
     public static class MemoryStats {
-        public long constructions;
-        public long reconstructions;
-        public long enqueued;
+        public final Counter constructions;
+        public final Counter reconstructions;
+        public final Counter enqueued;
+        public final Counter cycleCandidates;
+        public final Counter cycleCandidatesDropped;
+        public final Counter cycleObjectsFreed;
+        public final Histogram allocationSize;     // bytes
     
-        MemoryStats() {
-            clear();
+        MemoryStats(Stats stats) {
+            boolean enabled = Config.ENABLE_MEMORY_STATS;
+            constructions = new Counter(stats, enabled, false);
+            reconstructions = new Counter(stats, enabled, false);
+            enqueued = new Counter(stats, enabled, false);
+            cycleCandidates = new Counter(stats, enabled, false);
+            cycleCandidatesDropped = new Counter(stats, enabled, false);
+            cycleObjectsFreed = new Counter(stats, enabled, false);
+            allocationSize = new Histogram(stats, enabled);
         }
 
         public void clear() {
-            constructions = -1;
-            reconstructions = -1;
-            enqueued = 0;        
+            constructions.clear();
+            reconstructions.clear();
+            enqueued.clear();
+            cycleCandidates.clear();
+            cycleCandidatesDropped.clear();
+            cycleObjectsFreed.clear();
+            allocationSize.clear();
         }
     }
 
 
     public static class TransactionStats {
-        public long total;
-        public long topLevel;
-        public long maxDepth;
-        public long totalRetries;
-        public long runCalls;
-        private long maxRetries;
-        public long failures;
-
-        TransactionStats() {
-            clear();
+        public final Counter total;
+        public final Counter topLevel;
+        public final Counter maxDepth;
+        public final Counter totalRetries;
+        public final Counter runCalls;
+        public final Counter maxRetries;
+        public final Counter failures;
+        public final Histogram duration;           // nanoseconds, top-level transactions including retries
+        public final Histogram retries;            // per top-level transaction
+
+        TransactionStats(Stats stats) {
+            boolean enabled = Config.ENABLE_TRANSACTION_STATS;
+            total = new Counter(stats, enabled, false);
+            topLevel = new Counter(stats, enabled, false);
+            maxDepth = new Counter(stats, enabled, true);
+            totalRetries = new Counter(stats, enabled, false);
+            runCalls = new Counter(stats, enabled, false);
+            maxRetries = new Counter(stats, enabled, true);
+            failures = new Counter(stats, enabled, false);
+            duration = new Histogram(stats, enabled);
+            retries = new Histogram(stats, enabled);
         }
 
         public void clear() {
-            total = -1;
-            topLevel = -1;
-            maxDepth = -1;
-            runCalls = 0;
-            totalRetries = 0;
-            maxRetries = 0;
-            failures = 0;            
+            total.clear();
+            topLevel.clear();
+            maxDepth.clear();
+            runCalls.clear();
+            totalRetries.clear();
+            maxRetries.clear();
+            failures.clear();
+            duration.clear();
+            retries.clear();
         }
 
         public void updateMaxRetries(int retries) {
-            if (retries > maxRetries) maxRetries = retries;
+            maxRetries.updateMax(retries);
         }
     }
 
     public static class LockStats {
-        public long acquired;
-        public long timeouts;
-
-        LockStats() {
-            clear();
+        public final Counter acquired;
+        public final Counter timeouts;
+        public final Histogram wait;               // nanoseconds
+
+        LockStats(Stats stats) {
+            boolean enabled = Config.ENABLE_LOCK_STATS;
+            acquired = new Counter(stats, enabled, false);
+            timeouts = new Counter(stats, enabled, false);
+            wait = new Histogram(stats, enabled);
         }
 
         public void clear() {
-            acquired = -1;
-            timeouts = -1;
+            acquired.clear();
+            timeouts.clear();
+            wait.clear();
         }
     }
 
@@ -201,7 +454,7 @@ public class Stats {
         }
 
         private static class Record {
-            private long instances;
+            private final LongAdder instances = new LongAdder();
         }
 
         public AllocationStats(Comparator<Key> comparator) {
@@ -216,12 +469,7 @@ public class Stats {
 
         public void update(String className, long pSize, long vSize, long count) {
             Key key = new Key(className, pSize, vSize);
-            Record current = data.get(key);
-            if (current == null) {
-                current = new Record();
-                data.put(key, current);
-            }
-            current.instances += count;
+            data.computeIfAbsent(key, k -> new Record()).instances.add(count);
         }
 
         public String toString() {
@@ -239,13 +487,13 @@ public class Stats {
                 String cls = key.className;
                 long persistentUnitSize = key.pSize;
                 long volatileUnitSize = key.vSize;
-                Record rec = entry.getValue();
-                long clsPersistentTotal = rec.instances * persistentUnitSize;
-                long clsVolatileTotal =  rec.instances * volatileUnitSize;
-                totalInstances += rec.instances;
+                long instances = entry.getValue().instances.sum();
+                long clsPersistentTotal = instances * persistentUnitSize;
+                long clsVolatileTotal =  instances * volatileUnitSize;
+                totalInstances += instances;
                 totalPersistentBytes += clsPersistentTotal;
                 totalVolatileBytes += clsVolatileTotal;
-                buff.append(String.format("%-73s%,15d%,13d%,15d%,13d%,15d\n", cls, rec.instances, persistentUnitSize, clsPersistentTotal, volatileUnitSize, clsVolatileTotal));
+                buff.append(String.format("%-73s%,15d%,13d%,15d%,13d%,15d\n", cls, instances, persistentUnitSize, clsPersistentTotal, volatileUnitSize, clsVolatileTotal));
             }
             buff.append("                                                                           -------------                 -----------               -------------\n");
             buff.append(String.format("                                                                         %,15d               %,13d             %,15d\n", totalInstances, totalPersistentBytes, totalVolatileBytes)); 
@@ -255,8 +503,12 @@ public class Stats {
 
     private static String format1 = "%,15d"; 
 
-    private static String format(long value) {
-        return String.format(value == -1 ? "%15s" : "%,15d", value == -1 ? "N/A" : value);
+    private static String format(Counter counter) {
+        return counter.enabled() ? String.format("%,15d", counter.get()) : String.format("%15s", "N/A");
+    }
+
+    private static String format(Histogram histogram) {
+        return " " + histogram;
     }
 
     public static void printObjectCacheStats() {printObjectCacheStats(current);}
@@ -282,6 +534,10 @@ public class Stats {
         System.out.println("constructions  :" + format(stats.memory.constructions)); 
         System.out.println("reconstructions:" + format(stats.memory.reconstructions)); 
         System.out.println("enqueued       :" + format(stats.memory.enqueued)); 
+        System.out.println("cycle cands    :" + format(stats.memory.cycleCandidates)); 
+        System.out.println("cycle dropped  :" + format(stats.memory.cycleCandidatesDropped)); 
+        System.out.println("cycle freed    :" + format(stats.memory.cycleObjectsFreed)); 
+        System.out.println("alloc bytes    :" + format(stats.memory.allocationSize)); 
         System.out.println();
     }
 
@@ -298,6 +554,8 @@ public class Stats {
         System.out.println("totalRetries   :" + format(stats.transactions.totalRetries));
         System.out.println("maxRetries     :" + format(stats.transactions.maxRetries));
         System.out.println("failures       :" + format(stats.transactions.failures));
+        System.out.println("duration ns    :" + format(stats.transactions.duration));
+        System.out.println("retries        :" + format(stats.transactions.retries));
         System.out.println();
     }
 
@@ -309,6 +567,7 @@ public class Stats {
         System.out.println(  "-------------------------------");         
         System.out.println("acquired        :" + format(stats.locks.acquired));
         System.out.println("timeouts       :" + format(stats.locks.timeouts));
+        System.out.println("wait ns        :" + format(stats.locks.wait));
         System.out.println();
     }
 
@@ -0,0 +1,56 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.util.persistent;
+
+// Management view of Stats.current, registered by StatsMonitor.registerMBean(); counters that are
+// disabled in Config read as -1
+public interface StatsMXBean {
+    long getObjectCacheHits();
+    long getObjectCacheMisses();
+    double getObjectCacheHitRate();
+    long getObjectCacheSize();
+    long getObjectCacheMaxSize();
+
+    long getConstructions();
+    long getReconstructions();
+    long getEnqueued();
+    long getCollectorBacklog();
+    long getCycleCandidates();
+    long getCycleObjectsFreed();
+
+    long getTransactions();
+    long getTopLevelTransactions();
+    long getTransactionRetries();
+    long getMaxTransactionRetries();
+    long getTransactionFailures();
+    double getMeanTransactionNanos();
+    long getP99TransactionNanos();
+
+    long getLocksAcquired();
+    long getLockTimeouts();
+    long getP99LockWaitNanos();
+
+    long getHeapAllocatedBytes();
+    long getHeapAllocationCount();
+
+    void resetStats();
+}
@@ -0,0 +1,161 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.util.persistent;
+
+import lib.util.persistent.spi.PersistentMemoryProvider;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
+
+public class StatsMonitor implements StatsMXBean {
+    public static final String OBJECT_NAME = "lib.util.persistent:type=Stats";
+
+    private static final StatsMonitor instance = new StatsMonitor();
+    private static final Map<StatsExporter, ScheduledFuture<?>> exporters = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService scheduler;
+
+    private StatsMonitor() {}
+
+    public static synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) ManagementFactory.getPlatformMBeanServer().registerMBean(instance, name);
+        }
+        catch (Exception e) {throw new RuntimeException("Unable to register " + OBJECT_NAME + ": " + e);}
+    }
+
+    public static synchronized void unregisterMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch (Exception e) {throw new RuntimeException("Unable to unregister " + OBJECT_NAME + ": " + e);}
+    }
+
+    // calls exporter with a snapshot every period on a shared daemon thread
+    public static synchronized void addExporter(StatsExporter exporter, long period, TimeUnit unit) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "StatsMonitor");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        removeExporter(exporter);
+        exporters.put(exporter, scheduler.scheduleAtFixedRate(() -> {
+            try {exporter.export(snapshot());}
+            catch (RuntimeException e) {e.printStackTrace();}
+        }, period, period, unit));
+    }
+
+    public static synchronized void removeExporter(StatsExporter exporter) {
+        ScheduledFuture<?> f = exporters.remove(exporter);
+        if (f != null) f.cancel(false);
+    }
+
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> m = new LinkedHashMap<>();
+        StatsMonitor s = instance;
+        m.put("objectCache.hits", s.getObjectCacheHits());
+        m.put("objectCache.misses", s.getObjectCacheMisses());
+        m.put("objectCache.hitRate", s.getObjectCacheHitRate());
+        m.put("objectCache.size", s.getObjectCacheSize());
+        m.put("objectCache.maxSize", s.getObjectCacheMaxSize());
+        m.put("memory.constructions", s.getConstructions());
+        m.put("memory.reconstructions", s.getReconstructions());
+        m.put("memory.enqueued", s.getEnqueued());
+        m.put("memory.collectorBacklog", s.getCollectorBacklog());
+        m.put("memory.cycleCandidates", s.getCycleCandidates());
+        m.put("memory.cycleObjectsFreed", s.getCycleObjectsFreed());
+        m.put("transactions.total", s.getTransactions());
+        m.put("transactions.topLevel", s.getTopLevelTransactions());
+        m.put("transactions.retries", s.getTransactionRetries());
+        m.put("transactions.maxRetries", s.getMaxTransactionRetries());
+        m.put("transactions.failures", s.getTransactionFailures());
+        m.put("transactions.meanNanos", s.getMeanTransactionNanos());
+        m.put("transactions.p99Nanos", s.getP99TransactionNanos());
+        m.put("locks.acquired", s.getLocksAcquired());
+        m.put("locks.timeouts", s.getLockTimeouts());
+        m.put("locks.p99WaitNanos", s.getP99LockWaitNanos());
+        m.put("heap.allocatedBytes", s.getHeapAllocatedBytes());
+        m.put("heap.allocationCount", s.getHeapAllocationCount());
+        return m;
+    }
+
+    private static long value(Stats.Counter c) {return c.enabled() ? c.get() : -1;}
+    private static long p99(Stats.Histogram h) {return h.enabled() ? h.percentile(99) : -1;}
+
+    public long getObjectCacheHits() {
+        Stats.ObjectCacheStats s = Stats.current.objectCache;
+        return s.simpleHits.enabled() ? s.simpleHits.get() + s.promotedHits.get() : -1;
+    }
+
+    public long getObjectCacheMisses() {
+        Stats.ObjectCacheStats s = Stats.current.objectCache;
+        return s.simpleMisses.enabled() ? s.simpleMisses.get() + s.referentMisses.get() : -1;
+    }
+
+    public double getObjectCacheHitRate() {
+        long hits = getObjectCacheHits();
+        long misses = getObjectCacheMisses();
+        if (hits < 0) return -1;
+        return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+    }
+
+    public long getObjectCacheSize() {return ObjectCache.size();}
+    public long getObjectCacheMaxSize() {return value(Stats.current.objectCache.maxSize);}
+
+    public long getConstructions() {return value(Stats.current.memory.constructions);}
+    public long getReconstructions() {return value(Stats.current.memory.reconstructions);}
+    public long getEnqueued() {return value(Stats.current.memory.enqueued);}
+    public long getCollectorBacklog() {return ObjectCache.collectorBacklog();}
+    public long getCycleCandidates() {return CycleCollector.candidateCount();}
+    public long getCycleObjectsFreed() {return value(Stats.current.memory.cycleObjectsFreed);}
+
+    public long getTransactions() {return value(Stats.current.transactions.total);}
+    public long getTopLevelTransactions() {return value(Stats.current.transactions.topLevel);}
+    public long getTransactionRetries() {return value(Stats.current.transactions.totalRetries);}
+    public long getMaxTransactionRetries() {return value(Stats.current.transactions.maxRetries);}
+    public long getTransactionFailures() {return value(Stats.current.transactions.failures);}
+
+    public double getMeanTransactionNanos() {
+        Stats.Histogram h = Stats.current.transactions.duration;
+        return h.enabled() ? h.mean() : -1;
+    }
+
+    public long getP99TransactionNanos() {return p99(Stats.current.transactions.duration);}
+
+    public long getLocksAcquired() {return value(Stats.current.locks.acquired);}
+    public long getLockTimeouts() {return value(Stats.current.locks.timeouts);}
+    public long getP99LockWaitNanos() {return p99(Stats.current.locks.wait);}
+
+    public long getHeapAllocatedBytes() {return PersistentMemoryProvider.getDefaultProvider().getHeap().allocatedBytes();}
+    public long getHeapAllocationCount() {return PersistentMemoryProvider.getDefaultProvider().getHeap().allocationCount();}
+
+    public void resetStats() {Stats.reset();}
+}
@@ -30,7 +30,11 @@ import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import static lib.util.persistent.ObjectCache.Ref;
 import static lib.util.persistent.Trace.*;
 
@@ -46,6 +50,10 @@ public final class Transaction {
     private State state;
     private ArrayList<Runnable> commitHandlers;
     private ArrayList<Runnable> abortHandlers;
+    private LinkedHashMap<Long, RefCountChange> refCountChanges;   // see deferRefCount()
+    private boolean applyingRefCounts;
+    private volatile long profileId;        // only maintained while LockProfiler is enabled
+    private volatile long profileStart;
 
     static {
         threadsTransaction = new ThreadLocal<>();
@@ -71,9 +79,14 @@ public final class Transaction {
     private void reset() {
         locked.clear();
         constructions.clear();
+        if (refCountChanges != null) refCountChanges.clear();
         timeout = Config.MONITOR_ENTER_TIMEOUT;
         depth = 0;
         state = Transaction.State.None;
+        if (LockProfiler.enabled) {
+            profileId = LockProfiler.nextTransactionId();
+            profileStart = System.nanoTime();
+        }
     }        
 
     static Transaction getTransaction() {
@@ -89,74 +102,86 @@ public final class Transaction {
     }
         
     static <T> T run(Transaction tx, PersistentMemoryProvider provider, Supplier<T> body, Runnable onCommit, Runnable onAbort, AnyPersistent toLock1, AnyPersistent toLock2) {
-        if (Config.ENABLE_TRANSACTION_STATS) Stats.current.transactions.runCalls++;
+        if (Config.ENABLE_TRANSACTION_STATS) Stats.current.transactions.runCalls.increment();
         T ans = null;
         boolean success = false;
         Transaction transaction = tx != null ? tx : getTransaction();
         if (transaction == null) {
                 transaction = new Transaction(provider.newTransaction());
                 setTransaction(transaction);
+                LockProfiler.transactionCreated(transaction);
         }            
         int attempts = 1;
         int sleepTime = Config.MONITOR_ENTER_TIMEOUT;
         int retryDelay = Config.BASE_TRANSACTION_RETRY_DELAY;
-        while (!success && attempts <= Config.MAX_TRANSACTION_ATTEMPTS) {
-            if (transaction.state != Transaction.State.Active) {
-                transaction.reset();
-                if (Config.ENABLE_TRANSACTION_STATS) Stats.current.transactions.topLevel++;
-            }
-            transaction.depth++;
-            if (Config.ENABLE_TRANSACTION_STATS) {
-                int currentDepth = transaction.depth;
-                Stats.current.transactions.total++;
-                Stats.current.transactions.maxDepth = Math.max(Stats.current.transactions.maxDepth, currentDepth);
-            }
-            try {
-                boolean block = Config.BLOCK_ON_MAX_TRANSACTION_ATTEMPTS && attempts == Config.MAX_TRANSACTION_ATTEMPTS;
-                // trace(true, "%s about to call start, attempts = %d, depth = %d, block = %s", t, attempts, transaction.depth, block);
-                if (onCommit != null) transaction.addCommitHandler(onCommit);
-                if (onAbort != null) transaction.addAbortHandler(onAbort);
-                transaction.start(block, toLock1, toLock2);
-                ans = body.get();
-                success = true;
-            }
-            catch (Throwable e) {
-                transaction.abort(new TransactionException(e));
-                success = false;
-                // trace(true, "%s Transaction.run() caught %s, depth = %d", t,  e, transaction.depth);
-                if (e instanceof PersistenceException) {
-                    e.printStackTrace();
-                    System.out.println("A fatal error has occurred, unable to continue, exiting: " + e);
-                    // System.exit(-1);
+        boolean topLevel = transaction.state != Transaction.State.Active;
+        long startTime = Config.ENABLE_TRANSACTION_STATS && topLevel ? System.nanoTime() : 0;
+        try {
+            while (!success && attempts <= Config.MAX_TRANSACTION_ATTEMPTS) {
+                if (transaction.state != Transaction.State.Active) {
+                    transaction.reset();
+                    if (Config.ENABLE_TRANSACTION_STATS) Stats.current.transactions.topLevel.increment();
+                }
+                transaction.depth++;
+                if (Config.ENABLE_TRANSACTION_STATS) {
+                    int currentDepth = transaction.depth;
+                    Stats.current.transactions.total.increment();
+                    Stats.current.transactions.maxDepth.updateMax(currentDepth);
+                }
+                try {
+                    boolean block = Config.BLOCK_ON_MAX_TRANSACTION_ATTEMPTS && attempts == Config.MAX_TRANSACTION_ATTEMPTS;
+                    // trace(true, "%s about to call start, attempts = %d, depth = %d, block = %s", t, attempts, transaction.depth, block);
+                    if (onCommit != null) transaction.addCommitHandler(onCommit);
+                    if (onAbort != null) transaction.addAbortHandler(onAbort);
+                    transaction.start(block, toLock1, toLock2);
+                    ans = body.get();
+                    if (transaction.depth == 1) transaction.applyRefCounts();
+                    success = true;
+                }
+                catch (Throwable e) {
+                    transaction.abort(new TransactionException(e));
+                    success = false;
+                    // trace(true, "%s Transaction.run() caught %s, depth = %d", t,  e, transaction.depth);
+                    if (e instanceof PersistenceException) {
+                        e.printStackTrace();
+                        System.out.println("A fatal error has occurred, unable to continue, exiting: " + e);
+                        // System.exit(-1);
+                    }
+                    if (transaction.depth > 1 || !(e instanceof TransactionRetryException)) throw e; // unwind stack or not a retry-able exception
+                    // retry
+                }
+                finally {
+                    transaction.commit();
+                }
+                if (!success) {
+                    attempts++;
+                    if (Config.ENABLE_TRANSACTION_STATS) {
+                        Stats.current.transactions.totalRetries.increment();
+                        Stats.current.transactions.updateMaxRetries(attempts - 1);
+                    }
+                    sleepTime = retryDelay + Util.randomInt(retryDelay);
+                    retryDelay = Math.min((int)(retryDelay * Config.TRANSACTION_RETRY_DELAY_INCREASE_FACTOR), Config.MAX_TRANSACTION_RETRY_DELAY);
+                    // trace(true, "retry #%d, sleepTime = %d", attempts - 1, sleepTime);
+                    try {Thread.sleep(sleepTime);} catch(InterruptedException ie) {ie.printStackTrace();}
                 }
-                if (transaction.depth > 1 || !(e instanceof TransactionRetryException)) throw e; // unwind stack or not a retry-able exception
-                // retry
-            }
-            finally {
-                transaction.commit();
             }
             if (!success) {
-                attempts++;
-                if (Config.ENABLE_TRANSACTION_STATS) {
-                    Stats.current.transactions.totalRetries++;
-                    Stats.current.transactions.updateMaxRetries(attempts - 1);
+                if (Config.ENABLE_TRANSACTION_STATS) Stats.current.transactions.failures.increment();
+                trace(true, "failed transaction");
+                RuntimeException e = new TransactionException(String.format("failed to execute transaction after %d attempts", attempts));
+                if (Config.EXIT_ON_TRANSACTION_FAILURE) {
+                    e.printStackTrace();
+                    Stats.printStats();
+                    System.exit(-1);
                 }
-                sleepTime = retryDelay + Util.randomInt(retryDelay);
-                retryDelay = Math.min((int)(retryDelay * Config.TRANSACTION_RETRY_DELAY_INCREASE_FACTOR), Config.MAX_TRANSACTION_RETRY_DELAY);
-                // trace(true, "retry #%d, sleepTime = %d", attempts - 1, sleepTime);
-                try {Thread.sleep(sleepTime);} catch(InterruptedException ie) {ie.printStackTrace();}
+                throw e;
             }
         }
-        if (!success) {
-            if (Config.ENABLE_TRANSACTION_STATS) Stats.current.transactions.failures++;
-            trace(true, "failed transaction");
-            RuntimeException e = new TransactionException(String.format("failed to execute transaction after %d attempts", attempts));
-            if (Config.EXIT_ON_TRANSACTION_FAILURE) {
-                e.printStackTrace();
-                Stats.printStats();
-                System.exit(-1);
+        finally {
+            if (Config.ENABLE_TRANSACTION_STATS && topLevel) {
+                Stats.current.transactions.duration.record(System.nanoTime() - startTime);
+                Stats.current.transactions.retries.record(attempts - 1);
             }
-            throw e;
         }
         return ans;
     }
@@ -276,6 +301,63 @@ public final class Transaction {
         if(tx !=null) tx.reconstructions.remove(address);
     }
 
+    private static final class RefCountChange {
+        AnyPersistent obj;      // null until a wrapper is at hand
+        int delta;
+    }
+
+    // With Config.COALESCE_REF_COUNTS, reference count changes made inside a transaction are summed per
+    // object and applied once, when the top-level body completes; changes that cancel out are never
+    // written.  Returns false if the change has to be made now.
+    static boolean deferRefCount(AnyPersistent obj, long address, int delta) {
+        if (!Config.COALESCE_REF_COUNTS || address == 0) return false;
+        Transaction tx = getActiveTransaction();
+        if (tx == null || tx.applyingRefCounts) return false;
+        if (tx.refCountChanges == null) tx.refCountChanges = new LinkedHashMap<>();
+        RefCountChange change = tx.refCountChanges.get(address);
+        if (change == null) tx.refCountChanges.put(address, change = new RefCountChange());
+        if (obj != null) change.obj = obj;
+        change.delta += delta;
+        return true;
+    }
+
+    private void applyRefCounts() {
+        if (refCountChanges == null || refCountChanges.isEmpty()) return;
+        applyingRefCounts = true;
+        try {
+            applyRefCountDeltas(refCountChanges, change -> change.delta, Transaction::changedObject);
+        }
+        finally {
+            applyingRefCounts = false;
+            refCountChanges.clear();
+        }
+    }
+
+    // Applies net reference count changes by address, deferring them to the top-level transaction where
+    // deferRefCount() accepts them.
+    static void applyRefCountDeltas(Map<Long, Integer> deltas) {
+        deltas.entrySet().removeIf(e -> e.getValue() == 0 || deferRefCount(null, e.getKey(), e.getValue()));
+        applyRefCountDeltas(deltas, Integer::intValue, (address, delta) -> ObjectCache.get(address, true));
+    }
+
+    // increments first, so nothing that is only moved or referenced again is freed on the way
+    private static <V> void applyRefCountDeltas(Map<Long, V> changes, ToIntFunction<V> delta, BiFunction<Long, V, AnyPersistent> object) {
+        for (Map.Entry<Long, V> e : changes.entrySet()) {
+            int d = delta.applyAsInt(e.getValue());
+            if (d > 0) object.apply(e.getKey(), e.getValue()).incRefCount(d);
+        }
+        for (Map.Entry<Long, V> e : changes.entrySet()) {
+            int d = delta.applyAsInt(e.getValue());
+            if (d >= 0) continue;
+            AnyPersistent obj = object.apply(e.getKey(), e.getValue());
+            for (int i = d; i < 0; i++) obj.deleteReference(false);
+        }
+    }
+
+    private static AnyPersistent changedObject(long address, RefCountChange change) {
+        return change.obj != null ? change.obj : ObjectCache.get(address, true);
+    }
+
     void addLockedObject(AnyPersistent obj) {
         locked.add(obj);
     }
@@ -298,6 +380,10 @@ public final class Transaction {
 
     int timeout() {return timeout;}
 
+    long profileId() {return profileId;}
+
+    long profileStart() {return profileStart;}
+
     void timeout(int timeout) {this.timeout = timeout;}
 
     private List<Runnable> commitHandlers() {return commitHandlers;}
@@ -318,6 +404,15 @@ public final class Transaction {
 
     private void clearAbortHandlers() {if (abortHandlers != null) abortHandlers.clear();}
 
+    // registers handlers with the calling thread's active transaction; returns false if there is none
+    static boolean addHandlers(Runnable onCommit, Runnable onAbort) {
+        Transaction tx = getActiveTransaction();
+        if (tx == null) return false;
+        if (onCommit != null) tx.addCommitHandler(onCommit);
+        if (onAbort != null) tx.addAbortHandler(onAbort);
+        return true;
+    }
+
     private void start(boolean block, AnyPersistent toLock1, AnyPersistent toLock2) {
         if (toLock1 != null) acquireLock(block, toLock1);
         if (toLock2 != null) acquireLock(block, toLock2);
@@ -373,8 +468,7 @@ public final class Transaction {
         if (depth == 1) {
             core.abort(e);
             for (AnyPersistent obj : constructions) {
-                // TODO: remove dependency on xpersistent package
-                ((lib.xpersistent.UncheckedPersistentMemoryRegion)obj.region()).clear();
+                obj.region().clear();
             }
             for (Ref<U> ref : reconstructions.values()) {
                 ref.clear();
@@ -23,7 +23,6 @@ package lib.util.persistent;
 
 import java.util.Random;
 import lib.util.persistent.spi.PersistentMemoryProvider;
-import lib.xpersistent.XHeap;
 import static lib.util.persistent.Trace.*;
 import lib.util.persistent.types.ObjectType;
 import java.util.function.Supplier;
@@ -33,7 +32,7 @@ import java.util.function.BooleanSupplier;
 
 public class Util {
 
-    private static final XHeap heap = (XHeap)PersistentMemoryProvider.getDefaultProvider().getHeap();
+    private static final PersistentHeap heap = PersistentMemoryProvider.getDefaultProvider().getHeap();
     private static final Random random = new Random(System.nanoTime());
 
     public static PersistentByte persistent(byte x) {return new PersistentByte(x);}
@@ -87,7 +86,9 @@ public class Util {
     }
 
     public static void memCopy(ObjectType fromType, ObjectType toType, MemoryRegion src, long srcOffset, MemoryRegion dst, long dstOffset, long size) {
-        // trace(true, "memCopy fromType = %s (IVB = %s), toType = %s (IVB = %s)", fromType, fromType.valueBased(), toType, toType.valueBased());
+        // reading a nested value out of a view, or writing one through a mutable view
+        if (src instanceof ValueView) {((ValueView)src).copyTo(srcOffset, ((VolatileMemoryRegion)dst).getBytes(), (int)dstOffset, (int)size); return;}
+        if (dst instanceof ValueView) {((ValueView)dst).copyFrom(src, srcOffset, dstOffset, size); return;}
         if (fromType.valueBased()) {
             if (toType.valueBased()) memCopyVV(src, srcOffset, dst, dstOffset, size);
             else memCopyVP(src, srcOffset, dst, dstOffset, size);
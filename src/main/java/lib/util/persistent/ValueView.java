@@ -0,0 +1,96 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.util.persistent;
+
+import lib.util.persistent.spi.PersistentMemoryProvider;
+
+// window onto a value stored in persistent memory, used as the region of a value object so that its
+// fields are read in place rather than from a copy; writes, if allowed, are made transactionally and
+// under the lock of the object that owns the memory
+final class ValueView implements MemoryRegion {
+    private static final PersistentHeap heap = PersistentMemoryProvider.getDefaultProvider().getHeap();
+    private final AnyPersistent owner;
+    private final MemoryRegion base;
+    private final long baseOffset;
+    private final boolean writable;
+
+    ValueView(AnyPersistent owner, MemoryRegion base, long baseOffset, boolean writable) {
+        this.owner = owner;
+        this.base = base;
+        this.baseOffset = baseOffset;
+        this.writable = writable;
+    }
+
+    public long addr() {return -1;}
+
+    public byte getByte(long offset) {return base.getByte(baseOffset + offset);}
+    public short getShort(long offset) {return base.getShort(baseOffset + offset);}
+    public int getInt(long offset) {return base.getInt(baseOffset + offset);}
+    public long getLong(long offset) {return base.getLong(baseOffset + offset);}
+
+    public void putByte(long offset, byte value) {checkWritable(); Transaction.run(() -> base.putByte(baseOffset + offset, value), owner);}
+    public void putShort(long offset, short value) {checkWritable(); Transaction.run(() -> base.putShort(baseOffset + offset, value), owner);}
+    public void putInt(long offset, int value) {checkWritable(); Transaction.run(() -> base.putInt(baseOffset + offset, value), owner);}
+    public void putLong(long offset, long value) {checkWritable(); Transaction.run(() -> base.putLong(baseOffset + offset, value), owner);}
+
+    public void putDurableByte(long offset, byte value) {putByte(offset, value);}
+    public void putDurableShort(long offset, short value) {putShort(offset, value);}
+    public void putDurableInt(long offset, int value) {putInt(offset, value);}
+    public void putDurableLong(long offset, long value) {putLong(offset, value);}
+
+    public void putRawByte(long offset, byte value) {putByte(offset, value);}
+    public void putRawShort(long offset, short value) {putShort(offset, value);}
+    public void putRawInt(long offset, int value) {putInt(offset, value);}
+    public void putRawLong(long offset, long value) {putLong(offset, value);}
+
+    public void putRawBytes(long offset, byte[] value) {
+        checkWritable();
+        Transaction.run(() -> heap.copyBytesToRegion(value, 0, base, baseOffset + offset, value.length), owner);
+    }
+
+    // view of other persistent memory with the same owner and access, e.g. a payload the viewed value points to
+    ValueView rebase(MemoryRegion base, long baseOffset) {
+        return new ValueView(owner, base, baseOffset, writable);
+    }
+
+    void copyTo(long offset, byte[] dst, int dstOffset, int length) {
+        heap.memcpy(base, baseOffset + offset, dst, dstOffset, length);
+    }
+
+    void copyFrom(MemoryRegion src, long srcOffset, long offset, long size) {
+        checkWritable();
+        Transaction.run(() -> {
+            if (src instanceof VolatileMemoryRegion) heap.copyBytesToRegion(((VolatileMemoryRegion)src).getBytes(), (int)srcOffset, base, baseOffset + offset, (int)size);
+            else heap.memcpy(src, srcOffset, base, baseOffset + offset, size);
+        }, owner);
+    }
+
+    // writes are durable when their transaction commits
+    public void flush(long size) {}
+    public void flush(long offset, long size) {}
+
+    private void checkWritable() {
+        if (!writable) throw new UnsupportedOperationException("read-only value view");
+    }
+
+    public String toString() {return "ValueView(base = " + base + ", offset = " + baseOffset + (writable ? ", writable)" : ")");}
+}
@@ -21,11 +21,15 @@
 
 package lib.util.persistent.spi;
 
+import java.io.FileInputStream;
 import java.util.Collection;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import lib.util.persistent.Transaction;
 import lib.util.persistent.TransactionCore;
 import lib.xpersistent.XPersistentMemory;
+import lib.mpersistent.MappedPersistentMemory;
+import lib.vpersistent.VolatilePersistentMemory;
 import lib.util.persistent.PersistentHeap;
 import lib.xpersistent.XHeap;
 
@@ -36,7 +40,19 @@ public abstract class PersistentMemoryProvider {
     static {
         // TODO: read providers from a file
         providers = new ConcurrentHashMap<>();
-        registerDefaultProvider(new XPersistentMemory());
+        registerProvider(new XPersistentMemory());
+        registerProvider(new MappedPersistentMemory());
+        registerProvider(new VolatilePersistentMemory());
+        String name = "XPersistentMemory";
+        try (FileInputStream propInput = new FileInputStream("config.properties")) {
+            Properties prop = new Properties();
+            prop.load(propInput);
+            name = prop.getProperty("provider", name);
+        } catch (Exception e) {}
+        name = System.getProperty("persistent.provider", name);
+        PersistentMemoryProvider provider = providers.get(name);
+        if (provider == null) throw new IllegalArgumentException("Unknown persistent memory provider " + name);
+        registerDefaultProvider(provider);
         // registerDefaultProvider(new examples.misc.DiskPersistentMemory());
     }
 
@@ -26,8 +26,8 @@ import java.util.ArrayList;
 import lib.util.persistent.AnyPersistent;
 
 public class IndirectValueObjectType<T extends AnyPersistent> extends DirectValueObjectType<T> {
-    public static long FIELDS_OFFSET = Types.POINTER.size(); // room for ClassInfo pointer;
-    public static long CLASS_INFO_OFFSET = 0;
+    public static long FIELDS_OFFSET = Types.LONG.size(); // room for class id, fields stay 8-byte aligned;
+    public static long CLASS_ID_OFFSET = 0;
     
     public static <T extends AnyPersistent> IndirectValueObjectType<T> withFields(Class<T> cls, ValueBasedField... fs) {
         int fieldCount = fs.length;
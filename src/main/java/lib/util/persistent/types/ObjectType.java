@@ -32,6 +32,7 @@ import lib.util.persistent.PersistentString;
 import lib.util.persistent.Header;
 import java.lang.reflect.Field;
 import java.lang.reflect.Constructor;
+import java.lang.invoke.MethodHandle;
 import static lib.util.persistent.Trace.*;
 
 public /*abstract */class ObjectType<T extends AnyPersistent> implements Named, Container {
@@ -50,6 +51,7 @@ public /*abstract */class ObjectType<T extends AnyPersistent> implements Named,
     protected long[] offsets;
     protected long size;
     protected Constructor reconstructor;
+    protected volatile MethodHandle factory;
 
     protected ObjectType(Class<T> cls, Kind kind) {
         this.cls = cls;
@@ -77,6 +79,12 @@ public /*abstract */class ObjectType<T extends AnyPersistent> implements Named,
         return reconstructor;
     }
 
+    public MethodHandle getFactory() {
+        MethodHandle ans = factory;
+        if (ans == null) factory = ans = ClassInfo.getFactory(cls);
+        return ans;
+    }
+
     public static <U extends AnyPersistent> ObjectType<U> withFields(Class<U> cls, PersistentField... fs) {
         PersistentField[] ordered = fs.length > 1 ? layoutFields(fs) : fs;
         // System.out.println("ordered here = " + Arrays.toString(ordered));
@@ -0,0 +1,122 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.vpersistent;
+
+import lib.util.persistent.MemoryRegion;
+
+import static lib.vpersistent.VolatileHeap.UNSAFE;
+
+public class DirectMemoryRegion implements MemoryRegion {
+    private final VolatileHeap heap;
+    private long addr;
+
+    DirectMemoryRegion(VolatileHeap heap, long addr) {
+        this.heap = heap;
+        this.addr = addr;
+    }
+
+    public void clear() {
+        addr = 0;
+    }
+
+    public long addr() {
+        return this.addr;
+    }
+
+    private long address(long offset) {
+        if (addr == 0) throw new IllegalArgumentException();
+        return addr + offset;
+    }
+
+    public byte getByte(long offset) {
+        return UNSAFE.getByte(address(offset));
+    }
+
+    public short getShort(long offset) {
+        return UNSAFE.getShort(address(offset));
+    }
+
+    public int getInt(long offset) {
+        return UNSAFE.getInt(address(offset));
+    }
+
+    public long getLong(long offset) {
+        return UNSAFE.getLong(address(offset));
+    }
+
+    public void putByte(long offset, byte value) {
+        long a = address(offset);
+        heap.transaction().addRange(a, 1);
+        UNSAFE.putByte(a, value);
+    }
+
+    public void putShort(long offset, short value) {
+        long a = address(offset);
+        heap.transaction().addRange(a, 2);
+        UNSAFE.putShort(a, value);
+    }
+
+    public void putInt(long offset, int value) {
+        long a = address(offset);
+        heap.transaction().addRange(a, 4);
+        UNSAFE.putInt(a, value);
+    }
+
+    public void putLong(long offset, long value) {
+        long a = address(offset);
+        heap.transaction().addRange(a, 8);
+        UNSAFE.putLong(a, value);
+    }
+
+    public void putDurableByte(long offset, byte value) {putRawByte(offset, value);}
+    public void putDurableShort(long offset, short value) {putRawShort(offset, value);}
+    public void putDurableInt(long offset, int value) {putRawInt(offset, value);}
+    public void putDurableLong(long offset, long value) {putRawLong(offset, value);}
+
+    public void putRawByte(long offset, byte value) {
+        UNSAFE.putByte(address(offset), value);
+    }
+
+    public void putRawShort(long offset, short value) {
+        UNSAFE.putShort(address(offset), value);
+    }
+
+    public void putRawInt(long offset, int value) {
+        UNSAFE.putInt(address(offset), value);
+    }
+
+    public void putRawLong(long offset, long value) {
+        UNSAFE.putLong(address(offset), value);
+    }
+
+    public void putRawBytes(long offset, byte[] value) {
+        UNSAFE.copyMemory(value, UNSAFE.ARRAY_BYTE_BASE_OFFSET, null, address(offset), value.length);
+    }
+
+    public void flush(long size) {}
+    public void flush(long offset, long size) {}
+
+    @Override
+    public String toString() {
+        return "DirectMemoryRegion(" + addr + ")";
+    }
+}
@@ -0,0 +1,178 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.vpersistent;
+
+import lib.util.persistent.PersistentHeap;
+import lib.util.persistent.MemoryRegion;
+import lib.util.persistent.PersistenceException;
+import lib.util.persistent.Root;
+import lib.util.persistent.Transaction;
+import lib.util.persistent.ObjectDirectory;
+
+import java.util.concurrent.atomic.LongAdder;
+import sun.misc.Unsafe;
+
+// A heap of plain off-heap memory: regions are malloc'd blocks addressed by their native address.
+// Nothing survives the process, so there is no flushing and no recovery; transactions keep an
+// in-memory undo log only so that aborted transactions leave data structures consistent.
+public class VolatileHeap implements PersistentHeap {
+    static {
+        try {
+            java.lang.reflect.Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            UNSAFE = (Unsafe)f.get(null);
+        }
+        catch (Exception e) {
+            throw new RuntimeException("Unable to initialize UNSAFE.");
+        }
+    }
+
+    static Unsafe UNSAFE;
+    private static final long SIZE_PREFIX = 8;     // each block starts with its region size
+
+    private final ThreadLocal<VolatileTransaction> current;
+    private final LongAdder allocatedBytes;
+    private final LongAdder allocationCount;
+    private Root root;
+    private boolean open;
+
+    public VolatileHeap() {
+        this.current = new ThreadLocal<>();
+        this.allocatedBytes = new LongAdder();
+        this.allocationCount = new LongAdder();
+    }
+
+    public synchronized void open() {
+        if (open) return;
+        this.open = true;
+        lib.util.persistent.ClassInfo.init();
+    }
+
+    public synchronized void close() {
+        this.open = false;
+    }
+
+    public MemoryRegion allocateRegion(long size) {
+        if (!open) open();
+        return Transaction.run(() -> {
+            long addr = allocate(size);
+            transaction().allocated(addr);
+            return new DirectMemoryRegion(this, addr);
+        });
+    }
+
+    public MemoryRegion allocateObjectRegion(long size) {
+        if (!open) open();
+        return new DirectMemoryRegion(this, allocate(size));
+    }
+
+    public void freeRegion(MemoryRegion region) {
+        if (!open) open();
+        long addr = region.addr();
+        Transaction.run(() -> {
+            transaction().freed(addr);
+        });
+    }
+
+    public synchronized Root getRoot() {
+        if (root == null) {
+            if (!open) open();
+            if (root == null) root = new VolatileRoot(this);
+            ObjectDirectory.initialize();
+        }
+        return root;
+    }
+
+    public long allocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    public long allocationCount() {
+        return allocationCount.sum();
+    }
+
+    public MemoryRegion regionFromAddress(long addr) {
+        return new DirectMemoryRegion(this, addr);
+    }
+
+    public void memcpy(MemoryRegion srcRegion, long srcOffset, MemoryRegion destRegion, long destOffset, long length) {
+        long src = srcRegion.addr() + srcOffset;
+        long dest = destRegion.addr() + destOffset;
+        Transaction.run(() -> {
+            transaction().addRange(dest, length);
+            UNSAFE.copyMemory(src, dest, length);
+        });
+    }
+
+    public void memcpy(MemoryRegion srcRegion, long srcOffset, byte[] destArray, int destOffset, int length) {
+        UNSAFE.copyMemory(null, srcRegion.addr() + srcOffset, destArray, Unsafe.ARRAY_BYTE_BASE_OFFSET + destOffset, length);
+    }
+
+    public void memcpy(byte[] srcArray, int srcOffset, MemoryRegion destRegion, long destOffset, int length) {
+        Transaction.run(() -> {
+            copyBytesToRegion(srcArray, srcOffset, destRegion, destOffset, length);
+        });
+    }
+
+    // must be called from within a transaction
+    public void copyBytesToRegion(byte[] bytes, int startIndex, MemoryRegion destRegion, long destOffset, int length) {
+        long dest = destRegion.addr() + destOffset;
+        transaction().addRange(dest, length);
+        UNSAFE.copyMemory(bytes, Unsafe.ARRAY_BYTE_BASE_OFFSET + startIndex, null, dest, length);
+    }
+
+    VolatileTransaction transaction() {
+        VolatileTransaction tx = current.get();
+        if (tx == null) throw new PersistenceException("No active transaction");
+        return tx;
+    }
+
+    void begin(VolatileTransaction tx) {
+        if (!open) open();
+        current.set(tx);
+    }
+
+    void end() {
+        current.remove();
+    }
+
+    private long allocate(long size) {
+        long block;
+        try {
+            block = UNSAFE.allocateMemory(SIZE_PREFIX + size);
+        } catch (OutOfMemoryError e) {
+            throw new PersistenceException("Failed to allocate region of size " + size);
+        }
+        UNSAFE.putLong(block, size);
+        UNSAFE.setMemory(block + SIZE_PREFIX, size, (byte)0);
+        allocatedBytes.add(size);
+        allocationCount.increment();
+        return block + SIZE_PREFIX;
+    }
+
+    void free(long addr) {
+        long block = addr - SIZE_PREFIX;
+        allocatedBytes.add(-UNSAFE.getLong(block));
+        allocationCount.decrement();
+        UNSAFE.freeMemory(block);
+    }
+}
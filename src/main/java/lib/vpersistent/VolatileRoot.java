@@ -0,0 +1,45 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.vpersistent;
+
+import lib.util.persistent.*;
+
+public final class VolatileRoot implements Root {
+    private final PersistentHashMap<PersistentString, AnyPersistent> objectDirectory;
+    private long classRegistryAddr;
+
+    @SuppressWarnings("unchecked")
+    VolatileRoot(VolatileHeap heap) {
+        MemoryRegion objectDirectoryRegion = heap.allocateRegion(PersistentHashMap.TYPE.allocationSize());
+        // TODO: HACK to make object directory have non-zero refCount
+        objectDirectoryRegion.putDurableInt(4, 1);
+        objectDirectory = PersistentObject.fromPointer(new ObjectPointer<>(PersistentHashMap.TYPE, objectDirectoryRegion));
+    }
+
+    public PersistentHashMap<PersistentString, AnyPersistent> getObjectDirectory() { return objectDirectory; }
+
+    public long getRootRegionAddr() {return 0;}
+
+    public long getClassRegistryAddr() {return classRegistryAddr;}
+
+    public void setClassRegistryAddr(long addr) {classRegistryAddr = addr;}
+}
@@ -0,0 +1,104 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package lib.vpersistent;
+
+import lib.util.persistent.TransactionCore;
+import lib.util.persistent.TransactionException;
+
+import java.util.Arrays;
+import sun.misc.Unsafe;
+
+// Keeps the old contents of each range written in the transaction in a reusable byte array;
+// abort copies them back in reverse order.  Frees take effect at commit, allocations are
+// returned on abort.
+public class VolatileTransaction implements TransactionCore {
+    private static final int INITIAL_LOG_SIZE = 4096;
+    private static final int INITIAL_ENTRIES = 64;
+
+    private final VolatileHeap heap;
+    private byte[] log;
+    private int logSize;
+    private long[] entries;       // (addr, length) pairs; old bytes are packed in log in the same order
+    private int entryCount;
+    private long[] allocated;
+    private int allocatedCount;
+    private long[] freed;
+    private int freedCount;
+
+    VolatileTransaction(VolatileHeap heap) {
+        this.heap = heap;
+        this.log = new byte[INITIAL_LOG_SIZE];
+        this.entries = new long[2 * INITIAL_ENTRIES];
+        this.allocated = new long[INITIAL_ENTRIES];
+        this.freed = new long[INITIAL_ENTRIES];
+    }
+
+    public void start() {
+        heap.begin(this);
+    }
+
+    public void commit() {
+        for (int i = 0; i < freedCount; i++) heap.free(freed[i]);
+        finish();
+    }
+
+    public void abort(TransactionException e) {
+        int end = logSize;
+        for (int i = 2 * entryCount - 2; i >= 0; i -= 2) {
+            long addr = entries[i];
+            int length = (int)entries[i + 1];
+            end -= length;
+            VolatileHeap.UNSAFE.copyMemory(log, Unsafe.ARRAY_BYTE_BASE_OFFSET + end, null, addr, length);
+        }
+        for (int i = 0; i < allocatedCount; i++) heap.free(allocated[i]);
+        finish();
+    }
+
+    void addRange(long addr, long length) {
+        if (logSize + length > log.length) log = Arrays.copyOf(log, (int)Math.max(2L * log.length, logSize + length));
+        if (2 * entryCount + 2 > entries.length) entries = Arrays.copyOf(entries, 2 * entries.length);
+        VolatileHeap.UNSAFE.copyMemory(null, addr, log, Unsafe.ARRAY_BYTE_BASE_OFFSET + logSize, length);
+        logSize += (int)length;
+        entries[2 * entryCount] = addr;
+        entries[2 * entryCount + 1] = length;
+        entryCount++;
+    }
+
+    void allocated(long addr) {
+        if (allocatedCount == allocated.length) allocated = Arrays.copyOf(allocated, 2 * allocated.length);
+        allocated[allocatedCount++] = addr;
+    }
+
+    void freed(long addr) {
+        if (freedCount == freed.length) freed = Arrays.copyOf(freed, 2 * freed.length);
+        freed[freedCount++] = addr;
+    }
+
+    private void finish() {
+        logSize = 0;
+        entryCount = 0;
+        allocatedCount = 0;
+        freedCount = 0;
+        if (log.length > 64 * INITIAL_LOG_SIZE) log = new byte[INITIAL_LOG_SIZE];
+        heap.end();
+    }
+}
@@ -30,8 +30,10 @@ import lib.util.persistent.CycleCollector;
 import lib.util.persistent.Transaction;
 import lib.util.persistent.ObjectDirectory;
 import lib.util.persistent.Util;
+import lib.util.persistent.Config;
 
 import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
 import java.io.FileInputStream;
 import sun.misc.Unsafe;
 
@@ -49,6 +51,8 @@ public class XHeap implements PersistentHeap {
     }
 
     static Unsafe UNSAFE;
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder allocationCount = new LongAdder();
     private Root root;
     private boolean open;
     private boolean debug;
@@ -81,8 +85,18 @@ public class XHeap implements PersistentHeap {
         System.out.print("Opening heap... ");
         nativeOpenHeap(path, size);
         lib.util.persistent.ClassInfo.init();
+        lib.util.persistent.CycleCollector.init();
         System.out.print("Cleaning up heap... ");
         cleanHeap();
+        lib.util.persistent.CycleCollector.start();
+        if (Config.ENABLE_MEMORY_STATS) {
+            long[] usage = new long[2];
+            nativeUsage(usage);
+            allocationCount.reset();
+            allocationCount.add(usage[0]);
+            allocatedBytes.reset();
+            allocatedBytes.add(usage[1]);
+        }
         System.out.println("Heap opened.");
     }
 
@@ -94,18 +108,21 @@ public class XHeap implements PersistentHeap {
 
     public MemoryRegion allocateRegion(long size) {
         if (!open) open();
+        long[] allocated = new long[1];
         return Transaction.run(() -> {
             long addr = nativeAllocate(size);
             // System.out.println("allocateRegion -> " + addr);
             if (addr == -1) throw new PersistenceException("Failed to allocate region of size " + size);
+            allocated[0] = addr;
             return new UncheckedPersistentMemoryRegion(addr);
-        });
+        }, Config.ENABLE_MEMORY_STATS ? () -> track(allocated[0], 1) : null, null, null);
     }
 
     public MemoryRegion allocateRegionAtomic(long size) {
         if (!open) open();
         long addr = nativeAllocateAtomic(size);
         if (addr == -1) throw new PersistenceException("Failed to allocate region of size " + size);
+        if (Config.ENABLE_MEMORY_STATS) track(addr, 1);
         return new UncheckedPersistentMemoryRegion(addr);
     }
 
@@ -114,14 +131,16 @@ public class XHeap implements PersistentHeap {
         long addr = nativeAllocateObject(size);
         // System.out.println("allocateObjectRegion -> " + addr);
         if (addr == -1) throw new PersistenceException("Failed to allocate object region of size " + size);
+        if (Config.ENABLE_MEMORY_STATS) track(addr, 1);
         return new UncheckedPersistentMemoryRegion(addr);
     }
 
     public void freeRegion(MemoryRegion region) {
         if (!open) open();
+        long size = Config.ENABLE_MEMORY_STATS ? nativeUsableSize(region.addr()) : 0;
         Transaction.run(() -> {
             if (nativeFree(region.addr()) != 0) throw new PersistenceException("Failed to free region");
-        });
+        }, Config.ENABLE_MEMORY_STATS ? () -> untrack(size, 1) : null, null);
     }
 
     public synchronized Root getRoot() {
@@ -133,6 +152,10 @@ public class XHeap implements PersistentHeap {
         return root;
     }
 
+    public MemoryRegion regionFromAddress(long addr) {
+        return new UncheckedPersistentMemoryRegion(addr);
+    }
+
     public void memcpy(MemoryRegion srcRegion, long srcOffset, MemoryRegion destRegion, long destOffset, long length) {
         nativeMemoryRegionMemcpy(srcRegion.addr(), srcOffset, destRegion.addr(), destOffset, length);
     }
@@ -156,6 +179,35 @@ public class XHeap implements PersistentHeap {
         XHeap.UNSAFE.copyMemory(bytes, srcAddress, null, destAddress, length);
     }
 
+    public long allocatedBytes() {
+        return Config.ENABLE_MEMORY_STATS ? allocatedBytes.sum() : -1;
+    }
+
+    public long allocationCount() {
+        return Config.ENABLE_MEMORY_STATS ? allocationCount.sum() : -1;
+    }
+
+    public void forEachRegion(RegionVisitor visitor) {
+        if (!open) open();
+        for (boolean object : new boolean[] {true, false}) {
+            long[] regions = nativeRegions(object);
+            for (int i = 0; i < regions.length; i += 2) visitor.visit(regions[i], regions[i + 1], object);
+        }
+    }
+
+    // returns the usable size of the allocation at addr
+    private long track(long addr, int count) {
+        long size = nativeUsableSize(addr);
+        allocatedBytes.add(size);
+        allocationCount.add(count);
+        return size;
+    }
+
+    private void untrack(long size, int count) {
+        allocatedBytes.add(-size);
+        allocationCount.add(-count);
+    }
+
     public void setDebugMode(boolean debug) {
         this.debug = debug;
     }
@@ -185,6 +237,9 @@ public class XHeap implements PersistentHeap {
     private synchronized native void nativeToByteArrayMemcpy(long srcRegion, long srcOffset, byte[] destArray, int destOffset, int length);
     private native void nativeFromByteArrayMemcpy(byte[] srcArray, int srcOffset, long destRegion, long destOffset, int length);
     private synchronized native long nativeDebugPool(boolean verbose);
+    private native long nativeUsableSize(long addr);
+    private synchronized native void nativeUsage(long[] usage);
+    private synchronized native long[] nativeRegions(boolean objects);
 
     private native void nativeCopyBytesToAddress(byte[] srcArray, int srcOffset, long address, int length);
 }
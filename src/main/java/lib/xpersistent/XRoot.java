@@ -29,29 +29,29 @@ import lib.util.persistent.PersistentLong;
 
 public final class XRoot implements Root {
     private static final int OBJECT_DIRECTORY_OFFSET = 0;
-    private static final int CLASS_INFO_OFFSET = 8;
+    private static final int CLASS_REGISTRY_OFFSET = 8;
     private static final long ROOT_SIZE = 16;   // 2 objects, each represented by an 8-byte pointer
 
     private final MemoryRegion region;
     private final PersistentHashMap<PersistentString, AnyPersistent> objectDirectory;
-    private long rootClassInfoAddr;
+    private long classRegistryAddr;
 
     @SuppressWarnings("unchecked")
     XRoot(XHeap heap) {
         if (nativeRootExists()) {
             region = new UncheckedPersistentMemoryRegion(nativeGetRootOffset());
             objectDirectory = PersistentObject.fromPointer(new ObjectPointer<PersistentHashMap>(PersistentHashMap.TYPE, new UncheckedPersistentMemoryRegion(region.getLong(OBJECT_DIRECTORY_OFFSET))));
-            rootClassInfoAddr = region.getLong(CLASS_INFO_OFFSET);
+            classRegistryAddr = region.getLong(CLASS_REGISTRY_OFFSET);
         } else {
             region = new UncheckedPersistentMemoryRegion(nativeCreateRoot(ROOT_SIZE));
             MemoryRegion objectDirectoryRegion = heap.allocateRegion(PersistentHashMap.TYPE.allocationSize());
             // TODO: HACK to make object directory have non-zero refCount
-            objectDirectoryRegion.putDurableInt(8, 1);
+            objectDirectoryRegion.putDurableInt(4, 1);
             objectDirectory = PersistentObject.fromPointer(new ObjectPointer<>(PersistentHashMap.TYPE, objectDirectoryRegion));
             Transaction.run(() -> {
                 region.putLong(OBJECT_DIRECTORY_OFFSET, objectDirectoryRegion.addr());
-                this.rootClassInfoAddr = 0;
-                region.putLong(CLASS_INFO_OFFSET, rootClassInfoAddr);
+                this.classRegistryAddr = 0;
+                region.putLong(CLASS_REGISTRY_OFFSET, classRegistryAddr);
             });
         }
     }
@@ -62,13 +62,15 @@ public final class XRoot implements Root {
         nativeCleanHeap();
     }
 
+    public long getRootRegionAddr() {return region.addr();}
+
     // TODO: should not be public
-    public long getRootClassInfoAddr() {return rootClassInfoAddr;}
+    public long getClassRegistryAddr() {return classRegistryAddr;}
 
     // TODO: should not be public
-    public void setRootClassInfoAddr(long addr) {
-        rootClassInfoAddr = addr;
-        Transaction.run(() -> { region.putLong(CLASS_INFO_OFFSET, rootClassInfoAddr); });
+    public void setClassRegistryAddr(long addr) {
+        classRegistryAddr = addr;
+        Transaction.run(() -> { region.putLong(CLASS_REGISTRY_OFFSET, classRegistryAddr); });
     }
 
     synchronized static native boolean nativeRootExists();
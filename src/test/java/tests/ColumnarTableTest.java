@@ -0,0 +1,210 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package tests;
+
+import examples.database.ColumnarTable;
+import lib.util.persistent.*;
+import lib.util.persistent.spi.PersistentMemoryProvider;
+
+import java.io.File;
+import java.util.BitSet;
+
+public class ColumnarTableTest {
+    static boolean verbose = false;
+    static final int SEGMENT_ROWS = 1 << 16;
+    static final int ROWS = SEGMENT_ROWS + 5000;
+    static final String[] CITIES = {"oslo", "lima", "pune", "kobe", "nice"};
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--child")) System.exit(child(args[1]) ? 0 : 1);
+        PersistentMemoryProvider.getDefaultProvider().getHeap().open();
+        verbose = true;
+        run();
+    }
+
+    public static boolean run() {
+        System.out.println("****************ColumnarTable Tests********************");
+        return testAppendAcrossSegments() &&
+               testDictionary() &&
+               testZoneMaps() &&
+               testFilterAndSum() &&
+               testReopen();
+    }
+
+    // row i holds (i, CITIES[i % 5], 3 * i); the rows are appended in two calls, the second of which fills
+    // the first segment and starts the next
+    static ColumnarTable newTable(int rows) {
+        ColumnarTable table = new ColumnarTable(new String[] {"id", "city", "amount"}, new int[] {ColumnarTable.LONG, ColumnarTable.STRING, ColumnarTable.LONG});
+        append(table, 0, 60_000);
+        append(table, 60_000, rows);
+        return table;
+    }
+
+    static void append(ColumnarTable table, int from, int to) {
+        long[] ids = new long[to - from];
+        String[] cities = new String[to - from];
+        long[] amounts = new long[to - from];
+        for (int i = from; i < to; i++) {
+            ids[i - from] = i;
+            cities[i - from] = CITIES[i % CITIES.length];
+            amounts[i - from] = 3L * i;
+        }
+        table.append(to - from, ids, cities, amounts);
+    }
+
+    public static boolean testAppendAcrossSegments() {
+        if (verbose) System.out.println("****************Testing append across segments********");
+        ColumnarTable table = newTable(ROWS);
+        assert(table.rowCount() == ROWS);
+        assert(table.columnCount() == 3 && table.column("amount") == 2 && table.column("missing") == -1);
+        for (long row : new long[] {0, 59_999, 60_000, SEGMENT_ROWS - 1, SEGMENT_ROWS, ROWS - 1}) {
+            assert(table.getLong(0, row) == row);
+            assert(table.getLong(2, row) == 3 * row);
+        }
+        long[] seen = new long[1];
+        table.scan(0, (firstRow, values, count) -> {
+            for (int i = 0; i < count; i++) assert(values[i] == firstRow + i);
+            seen[0] += count;
+        });
+        assert(seen[0] == ROWS);
+        boolean caught = false;
+        try {
+            table.getLong(0, ROWS);
+        } catch (IndexOutOfBoundsException e) {
+            caught = true;
+        }
+        assert(caught);
+        return true;
+    }
+
+    public static boolean testDictionary() {
+        if (verbose) System.out.println("****************Testing dictionary encoding***********");
+        ColumnarTable table = newTable(SEGMENT_ROWS + 10);
+        // codes are handed out in order of first appearance
+        for (int i = 0; i < CITIES.length; i++) assert(table.code(1, CITIES[i]) == i);
+        assert(table.code(1, "rome") == -1);
+        for (long row : new long[] {0, 1, 4, SEGMENT_ROWS - 1, SEGMENT_ROWS, SEGMENT_ROWS + 9}) {
+            assert(table.getString(1, row).equals(CITIES[(int)(row % CITIES.length)]));
+            assert(table.getLong(1, row) == row % CITIES.length);
+        }
+        boolean caught = false;
+        try {
+            table.getString(0, 0);
+        } catch (IllegalArgumentException e) {
+            caught = true;
+        }
+        assert(caught);
+        return true;
+    }
+
+    public static boolean testZoneMaps() {
+        if (verbose) System.out.println("****************Testing zone maps*********************");
+        ColumnarTable table = newTable(ROWS);
+        long[] firstRows = new long[3];
+        int[] scanned = new int[1];
+        // amounts in the second segment start at 3 * SEGMENT_ROWS
+        table.scan(2, 3L * SEGMENT_ROWS + 30, 3L * SEGMENT_ROWS + 60, (firstRow, values, count) -> {
+            firstRows[scanned[0]++] = firstRow;
+            assert(count == ROWS - SEGMENT_ROWS);
+        });
+        assert(scanned[0] == 1 && firstRows[0] == SEGMENT_ROWS);
+        scanned[0] = 0;
+        table.scan(2, -100, -1, (firstRow, values, count) -> scanned[0]++);
+        assert(scanned[0] == 0);
+        table.scan(2, 3L * SEGMENT_ROWS - 3, 3L * SEGMENT_ROWS, (firstRow, values, count) -> firstRows[scanned[0]++] = firstRow);
+        assert(scanned[0] == 2 && firstRows[0] == 0 && firstRows[1] == SEGMENT_ROWS);
+        return true;
+    }
+
+    public static boolean testFilterAndSum() {
+        if (verbose) System.out.println("****************Testing filter and sum****************");
+        ColumnarTable table = newTable(ROWS);
+        BitSet range = table.filter(0, SEGMENT_ROWS - 2, SEGMENT_ROWS + 1);
+        assert(range.cardinality() == 4 && range.nextSetBit(0) == SEGMENT_ROWS - 2 && range.get(SEGMENT_ROWS + 1));
+        assert(table.sum(2, range) == 3L * (4L * SEGMENT_ROWS - 2));
+
+        BitSet pune = table.filterEquals(1, "pune");
+        long expectedSum = 0;
+        int expectedCount = 0;
+        for (int i = 0; i < ROWS; i++) {
+            if (i % CITIES.length == 2) {
+                assert(pune.get(i));
+                expectedSum += 3L * i;
+                expectedCount++;
+            }
+        }
+        assert(pune.cardinality() == expectedCount);
+        assert(table.sum(2, pune) == expectedSum);
+        assert(table.filterEquals(1, "rome").isEmpty());
+        assert(table.sum(2, new BitSet()) == 0);
+
+        // only rows of the second segment selected
+        BitSet tail = new BitSet();
+        tail.set(ROWS - 3, ROWS);
+        assert(table.sum(0, tail) == 3L * ROWS - 6);
+        assert(table.sum(0) == (long)ROWS * (ROWS - 1) / 2);
+        return true;
+    }
+
+    // each step runs in its own JVM on a scratch mapped heap
+    public static boolean testReopen() {
+        if (verbose) System.out.println("****************Testing reopen************************");
+        File heapFile = new File(System.getProperty("java.io.tmpdir"), "columnar_table_test.mapped");
+        heapFile.delete();
+        try {
+            for (String step : new String[] {"write", "append", "read"}) {
+                Process p = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-ea",
+                    "-cp", System.getProperty("java.class.path"),
+                    "-Dpersistent.provider=MappedPersistentMemory",
+                    "-Dmapped.path=" + heapFile.getPath(), "-Dmapped.size=" + (256L << 20),
+                    "tests.ColumnarTableTest", "--child", step).inheritIO().start();
+                int status = p.waitFor();
+                assert(status == 0);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            heapFile.delete();
+        }
+        return true;
+    }
+
+    static boolean child(String step) {
+        PersistentMemoryProvider.getDefaultProvider().getHeap().open();
+        if (step.equals("write")) {
+            ObjectDirectory.put("tests.columnar_table", newTable(SEGMENT_ROWS - 100));
+            return true;
+        }
+        ColumnarTable table = ObjectDirectory.get("tests.columnar_table", ColumnarTable.class);
+        if (step.equals("append")) {
+            if (table.rowCount() != SEGMENT_ROWS - 100) return false;
+            append(table, SEGMENT_ROWS - 100, ROWS);
+            return table.rowCount() == ROWS;
+        }
+        if (table.rowCount() != ROWS || table.code(1, "kobe") != 3) return false;
+        for (long row : new long[] {0, SEGMENT_ROWS - 101, SEGMENT_ROWS - 100, SEGMENT_ROWS, ROWS - 1}) {
+            if (table.getLong(0, row) != row || !table.getString(1, row).equals(CITIES[(int)(row % CITIES.length)])) return false;
+        }
+        BitSet nice = table.filterEquals(1, "nice");
+        return nice.cardinality() == ROWS / CITIES.length && table.sum(0) == (long)ROWS * (ROWS - 1) / 2;
+    }
+}
@@ -0,0 +1,107 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package tests;
+
+import lib.util.persistent.*;
+import lib.util.persistent.spi.PersistentMemoryProvider;
+
+import java.io.File;
+import java.util.*;
+
+public class HeapWalkerTest {
+    static boolean verbose = false;
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--child")) System.exit(child() ? 0 : 1);
+        verbose = true;
+        run();
+    }
+
+    public static boolean run() {
+        System.out.println("****************HeapWalker Tests***********************");
+        return testFreeSkipsRawRegions();
+    }
+
+    // HeapWalker.free() must only run while nothing else uses the heap, so the walk is done by a child
+    // JVM on a scratch mapped heap
+    static boolean testFreeSkipsRawRegions() {
+        if (verbose) System.out.println("****************Testing free skips raw regions*********");
+        File heapFile = new File(System.getProperty("java.io.tmpdir"), "heapwalker_test.mapped");
+        heapFile.delete();
+        try {
+            Process p = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-ea",
+                "-cp", System.getProperty("java.class.path"),
+                "-Dpersistent.provider=MappedPersistentMemory",
+                "-Dmapped.path=" + heapFile.getPath(), "-Dmapped.size=" + (256L << 20),
+                "tests.HeapWalkerTest", "--child").inheritIO().start();
+            int status = p.waitFor();
+            assert(status == 0);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            heapFile.delete();
+        }
+        return true;
+    }
+
+    static boolean child() {
+        PersistentHeap heap = PersistentMemoryProvider.getDefaultProvider().getHeap();
+        heap.open();
+        PersistentLong live = new PersistentLong(7);
+        ObjectDirectory.put("tests.heapwalker_live", live);
+        ObjectDirectory.put("tests.heapwalker_string", new PersistentString("a string with a payload region"));
+        int classId = heap.regionFromAddress(live.getPointer().addr()).getInt(0);
+
+        long[] addrs = new long[3];
+        Transaction.run(() -> {
+            // an object orphaned between allocation and linking
+            MemoryRegion orphan = heap.allocateObjectRegion(64);
+            orphan.putDurableInt(0, classId);
+            // raw regions, one of which starts with what looks like a class id
+            MemoryRegion raw = heap.allocateRegion(64);
+            MemoryRegion lookalike = heap.allocateRegion(64);
+            lookalike.putInt(0, classId);
+            addrs[0] = orphan.addr();
+            addrs[1] = raw.addr();
+            addrs[2] = lookalike.addr();
+        });
+
+        HeapWalker.Report before = HeapWalker.analyze();
+        if (!before.complete()) return false;
+        Set<Long> unreachable = unreachable(before);
+        for (long addr : addrs) if (!unreachable.contains(addr)) return false;
+
+        long freed = HeapWalker.free(before);
+        Set<Long> after = unreachable(HeapWalker.analyze());
+        if (freed < 1 || after.contains(addrs[0])) return false;
+        if (!after.contains(addrs[1]) || !after.contains(addrs[2])) return false;
+        if (heap.regionFromAddress(addrs[2]).getInt(0) != classId) return false;
+        return ObjectDirectory.get("tests.heapwalker_live", PersistentLong.class).longValue() == 7 &&
+               ObjectDirectory.get("tests.heapwalker_string", PersistentString.class).toString().equals("a string with a payload region");
+    }
+
+    static Set<Long> unreachable(HeapWalker.Report report) {
+        Set<Long> ans = new HashSet<>();
+        for (HeapWalker.Region r : report.unreachable()) ans.add(r.addr);
+        return ans;
+    }
+}
@@ -39,7 +39,7 @@ public class PersistentArrayListTest {
 
 	public static boolean run() {
 		System.out.println("****************PersistentArrayList Tests**************");
-		return testAdd() && testGetAndSet() && testRemove() && testAddAll() && testEnsureCapacity() && testIndexOf() && testToArray() && testPersistence();
+		return testAdd() && testGetAndSet() && testRemove() && testAddAll() && testEnsureCapacity() && testIndexOf() && testToArray() && testChunkBoundaries() && testPersistence();
 	}
 
 	private static String threadSafeId(String id) {
@@ -177,6 +177,82 @@ public class PersistentArrayListTest {
        return true;
    }
 
+   private static boolean sameElements(PersistentArrayList<PersistentInteger> list, ArrayList<Integer> expected) {
+       if (list.size() != expected.size()) return false;
+       int i = 0;
+       for (PersistentInteger e : list) if (e.intValue() != expected.get(i++)) return false;
+       for (i = 0; i < expected.size(); i += 97) if (list.get(i).intValue() != expected.get(i)) return false;
+       return true;
+   }
+
+   // elements are kept in chunks of 1024; exercise inserts, removes and trimming across chunk boundaries
+   public static boolean testChunkBoundaries() {
+       if (verbose) System.out.println("PersistentArrayList: testing chunk boundaries");
+       PersistentArrayList<PersistentInteger> list = getList();
+       list.clear();
+       ArrayList<Integer> expected = new ArrayList<>();
+       for (int i = 0; i < 2500; i++) {
+           list.add(new PersistentInteger(i));
+           expected.add(i);
+       }
+       assert(sameElements(list, expected));
+       assert(list.get(1023).intValue() == 1023 && list.get(1024).intValue() == 1024 && list.get(2499).intValue() == 2499);
+
+       int[] inserts = {0, 1023, 1024, 1025, 2047, 2048, 2049, 2507};
+       for (int k = 0; k < inserts.length; k++) {
+           list.add(inserts[k], new PersistentInteger(-k - 1));
+           expected.add(inserts[k], -k - 1);
+       }
+       assert(sameElements(list, expected));
+
+       ArrayList<PersistentInteger> batch = new ArrayList<>();
+       for (int i = 0; i < 1500; i++) batch.add(new PersistentInteger(10000 + i));
+       list.addAll(1000, batch);
+       for (int i = 0; i < 1500; i++) expected.add(1000 + i, 10000 + i);
+       assert(sameElements(list, expected));
+
+       int[] removes = {4000, 3072, 2048, 2047, 1024, 1023, 1, 0};
+       for (int index : removes) {
+           int removed = list.remove(index).intValue();
+           int expectedRemoved = expected.remove(index);
+           assert(removed == expectedRemoved);
+       }
+       boolean removed = list.remove(new PersistentInteger(-8));
+       boolean expectedRemoved = expected.remove(Integer.valueOf(-8));
+       assert(removed && expectedRemoved);
+       assert(sameElements(list, expected));
+       assert(list.indexOf(new PersistentInteger(10999)) == expected.indexOf(10999));
+
+       while (expected.size() > 2100) {
+           int index = expected.size() / 3;
+           int value = list.remove(index).intValue();
+           int expectedValue = expected.remove(index);
+           assert(value == expectedValue);
+       }
+       list.trimToSize();
+       assert(sameElements(list, expected));
+       for (int i = 0; i < 10; i++) {
+           list.add(new PersistentInteger(20000 + i));
+           expected.add(20000 + i);
+       }
+       assert(sameElements(list, expected));
+
+       while (expected.size() > 700) {
+           int value = list.remove(expected.size() - 1).intValue();
+           int expectedValue = expected.remove(expected.size() - 1);
+           assert(value == expectedValue);
+       }
+       list.trimToSize();
+       assert(sameElements(list, expected));
+       list.add(500, new PersistentInteger(30000));
+       expected.add(500, 30000);
+       list.add(new PersistentInteger(30001));
+       expected.add(30001);
+       assert(sameElements(list, expected));
+       list.clear();
+       return true;
+   }
+
    @SuppressWarnings("unchecked")
    public static synchronized boolean testPersistence() {
        if (verbose) System.out.println("PersistentArrayList: testing persistence across vm runs...");
@@ -22,11 +22,17 @@
 package tests;
 
 import lib.util.persistent.*;
+import lib.util.persistent.spi.PersistentMemoryProvider;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
 
 public class PersistentArrayTest {
 
     static boolean verbose = false;
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--child")) System.exit(child(args[1]));
+        PersistentMemoryProvider.getDefaultProvider().getHeap().open();
         verbose = true;
         run();
     }
@@ -42,7 +48,12 @@ public class PersistentArrayTest {
                floatArrayTest() &&
                doubleArrayTest() &&
                stringArrayTest() &&
-               toArrayTest();
+               toArrayTest() &&
+               bulkLongArrayTest() &&
+               bulkIntArrayTest() &&
+               bulkDoubleArrayTest() &&
+               largeBulkAbortTest() &&
+               largeBulkCrashTest();
     }
 
     public static boolean intArrayTest() {
@@ -236,4 +247,169 @@ public class PersistentArrayTest {
         }
         return true;
     }
+
+    static final int BULK_SIZE = 100_000;
+
+    public static boolean bulkLongArrayTest() {
+        if (verbose) System.out.println("****************LongArray Bulk Tests*******************");
+        Random random = new Random(42);
+        long[] values = new long[BULK_SIZE];
+        for (int i = 0; i < values.length; i++) values[i] = random.nextLong() >> 20;
+        PersistentLongArray pa = new PersistentLongArray(values);
+        assert(Arrays.equals(pa.toArray(), values));
+        long sum = 0;
+        for (long v : values) sum += v;
+        assert(pa.sum() == sum);
+
+        long[] part = new long[1000];
+        pa.get(BULK_SIZE - 1000, part, 0, 1000);
+        assert(Arrays.equals(part, Arrays.copyOfRange(values, BULK_SIZE - 1000, BULK_SIZE)));
+        Arrays.fill(part, 7L);
+        pa.put(500, part, 0, 1000);
+        System.arraycopy(part, 0, values, 500, 1000);
+        assert(pa.get(499) == values[499] && pa.get(500) == 7L && pa.get(1499) == 7L && pa.get(1500) == values[1500]);
+
+        pa.sort();
+        Arrays.sort(values);
+        assert(Arrays.equals(pa.toArray(), values));
+        assert(pa.binarySearch(values[31337]) >= 0 && pa.get(pa.binarySearch(values[31337])) == values[31337]);
+
+        // a bulk write is rolled back as a whole
+        long[] before = pa.toArray();
+        boolean caught = false;
+        try {
+            Transaction.run(() -> {
+                pa.fill(-1L);
+                throw new IllegalStateException("abort");
+            });
+        } catch (IllegalStateException e) {
+            caught = true;
+        }
+        assert(caught);
+        assert(Arrays.equals(pa.toArray(), before));
+
+        pa.fill(10_000, 90_000, 3L);
+        assert(pa.get(9_999) == before[9_999] && pa.get(10_000) == 3L && pa.get(89_999) == 3L && pa.get(90_000) == before[90_000]);
+        pa.fill(5L);
+        assert(pa.sum() == 5L * BULK_SIZE);
+        return true;
+    }
+
+    public static boolean bulkIntArrayTest() {
+        if (verbose) System.out.println("****************IntArray Bulk Tests********************");
+        Random random = new Random(43);
+        int[] values = new int[BULK_SIZE];
+        for (int i = 0; i < values.length; i++) values[i] = random.nextInt(1 << 20) - (1 << 19);
+        PersistentIntArray pa = new PersistentIntArray(BULK_SIZE);
+        pa.put(0, values, 0, values.length);
+        int[] copy = new int[BULK_SIZE];
+        pa.get(0, copy, 0, BULK_SIZE);
+        assert(Arrays.equals(copy, values));
+        int sum = 0;
+        for (int v : values) sum += v;
+        assert(pa.sum() == sum);
+        pa.sort(1000, 99_000);
+        Arrays.sort(values, 1000, 99_000);
+        assert(Arrays.equals(pa.toArray(), values));
+        pa.fill(-2);
+        assert(pa.sum() == -2 * BULK_SIZE && pa.get(0) == -2 && pa.get(BULK_SIZE - 1) == -2);
+        return true;
+    }
+
+    public static boolean bulkDoubleArrayTest() {
+        if (verbose) System.out.println("****************DoubleArray Bulk Tests*****************");
+        Random random = new Random(44);
+        double[] values = new double[BULK_SIZE];
+        for (int i = 0; i < values.length; i++) values[i] = random.nextInt(1000) / 4.0;
+        PersistentDoubleArray pa = new PersistentDoubleArray(values);
+        assert(Arrays.equals(pa.toArray(), values));
+        double sum = 0;
+        for (double v : values) sum += v;
+        assert(pa.sum() == sum);
+        pa.sort();
+        Arrays.sort(values);
+        assert(Arrays.equals(pa.toArray(), values));
+        pa.fill(0.5);
+        assert(pa.sum() == 0.5 * BULK_SIZE);
+        return true;
+    }
+
+    // a range well over the 1MB a bulk write used to be limited to is still written in one transaction
+    static final int LARGE_SIZE = 600_000;
+
+    static long[] descending(int n) {
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++) values[i] = n - i;
+        return values;
+    }
+
+    static boolean isAscending(long[] values) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != i + 1) return false;
+        }
+        return true;
+    }
+
+    public static boolean largeBulkAbortTest() {
+        if (verbose) System.out.println("****************Large Bulk Abort Tests*****************");
+        long[] values = descending(LARGE_SIZE);
+        PersistentLongArray pa = new PersistentLongArray(values);
+        boolean caught = false;
+        try {
+            Transaction.run(() -> {
+                pa.sort();
+                throw new IllegalStateException("abort");
+            });
+        } catch (IllegalStateException e) {
+            caught = true;
+        }
+        assert(caught);
+        assert(Arrays.equals(pa.toArray(), values));
+        pa.sort();
+        assert(isAscending(pa.toArray()));
+        return true;
+    }
+
+    // the first child halts inside a transaction that has sorted the array; the second reopens the heap
+    // and expects the array as it was before the sort.  Each runs in its own JVM on a scratch mapped heap
+    public static boolean largeBulkCrashTest() {
+        if (verbose) System.out.println("****************Large Bulk Crash Tests*****************");
+        File heapFile = new File(System.getProperty("java.io.tmpdir"), "persistent_array_test.mapped");
+        heapFile.delete();
+        try {
+            for (String step : new String[] {"crash", "check"}) {
+                Process p = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-ea",
+                    "-cp", System.getProperty("java.class.path"),
+                    "-Dpersistent.provider=MappedPersistentMemory",
+                    "-Dmapped.path=" + heapFile.getPath(), "-Dmapped.size=" + (256L << 20),
+                    "tests.PersistentArrayTest", "--child", step).inheritIO().start();
+                int status = p.waitFor();
+                assert(status == (step.equals("crash") ? CRASHED : 0));
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            heapFile.delete();
+        }
+        return true;
+    }
+
+    static final int CRASHED = 3;
+
+    static int child(String step) {
+        PersistentMemoryProvider.getDefaultProvider().getHeap().open();
+        if (step.equals("crash")) {
+            PersistentLongArray pa = new PersistentLongArray(descending(LARGE_SIZE));
+            ObjectDirectory.put("tests.large_bulk_array", pa);
+            Transaction.run(() -> {
+                pa.sort();
+                Runtime.getRuntime().halt(pa.get(0) == 1 ? CRASHED : 1);
+            });
+            return 1;
+        }
+        PersistentLongArray pa = ObjectDirectory.get("tests.large_bulk_array", PersistentLongArray.class);
+        if (!Arrays.equals(pa.toArray(), descending(LARGE_SIZE))) return 1;
+        pa.sort();
+        return isAscending(pa.toArray()) ? 0 : 1;
+    }
 }
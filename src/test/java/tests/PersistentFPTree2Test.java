@@ -52,7 +52,7 @@ public class PersistentFPTree2Test {
 
 	public static boolean run() {
 		System.out.println("****************PersistentFPTree2 Tests****************");
-		return sisterTypeTest() && singleThreadedTest() && singleThreadedSubMapTest() && multiThreadedTest(args) && testPersistence(args) && testPersistence2(args) && testIterators();
+		return sisterTypeTest() && singleThreadedTest() && singleThreadedSubMapTest() && multiThreadedTest(args) && testPersistence(args) && testPersistence2(args) && testIterators() && testCursor();
 		//return testPersistence(args) && testPersistence2(args);
 	}
 
@@ -565,4 +565,37 @@ public class PersistentFPTree2Test {
 		if(verbose) System.out.println("Iterators test successful");
 		return true;
 	}
+
+	public static boolean testCursor() {
+		int I = 3;
+		int L = 4;
+		int N = 1000;
+		PersistentFPTree2<PersistentInteger, PersistentString> fpt = new PersistentFPTree2<>(I, L);
+		java.util.TreeMap<Integer, String> tmap = new java.util.TreeMap<>();
+
+		for(int i = 0; i < N; i++) {
+			int rand = ThreadLocalRandom.current().nextInt(0, N);
+			fpt.put(new PersistentInteger(rand), new PersistentString(Integer.toString(rand)));
+			tmap.put(rand, Integer.toString(rand));
+		}
+
+		PersistentFPTree2<PersistentInteger, PersistentString>.Cursor cursor = fpt.cursor();
+		Iterator<Integer> it = tmap.keySet().iterator();
+		while(cursor.next()) {
+			assert(it.hasNext() && cursor.key().intValue() == it.next());
+			assert(cursor.value().toString().equals(Integer.toString(cursor.key().intValue())));
+		}
+		assert(!it.hasNext());
+
+		int lo = N / 4, hi = N / 2;
+		cursor = fpt.cursor(new PersistentInteger(lo), false, new PersistentInteger(hi), true);
+		it = tmap.subMap(lo, false, hi, true).keySet().iterator();
+		while(cursor.next()) {
+			assert(it.hasNext() && cursor.key().intValue() == it.next());
+		}
+		assert(!it.hasNext());
+
+		if(verbose) System.out.println("Cursor test successful");
+		return true;
+	}
 }
@@ -25,6 +25,7 @@ import lib.util.persistent.*;
 import lib.util.persistent.types.*;
 import lib.util.persistent.spi.PersistentMemoryProvider;
 
+import java.io.File;
 import java.util.*;
 import java.lang.*;
 import java.util.concurrent.*;
@@ -34,6 +35,7 @@ public class PersistentSIHashMapTest {
     static TreeSet<PersistentUUID> set = new TreeSet<PersistentUUID>();
 
     public static void main(String[] args) {
+        if (args.length > 0) restartChild(Integer.parseInt(args[0]));
         PersistentMemoryProvider.getDefaultProvider().getHeap().open();
         verbose = true;
         run();
@@ -47,7 +49,8 @@ public class PersistentSIHashMapTest {
                testClear() &&
                testMultithread() &&
                testReplaceAll() &&
-               testVolatileGet();
+               testVolatileGet() &&
+               testSizeAfterRestart();
     }
 
     static String safeThreadID(String id) {
@@ -234,4 +237,61 @@ public class PersistentSIHashMapTest {
         return true;
     }
 
+    // each step runs in its own JVM on a scratch mapped heap; steps 1 and 2 end with Runtime.halt,
+    // so no shutdown hook checkpoints the size before the next step reopens the heap
+    static boolean testSizeAfterRestart() {
+        if (verbose) System.out.println("****************Testing size after restart*************");
+        File heapFile = new File(System.getProperty("java.io.tmpdir"), "sihashmap_restart_test.mapped");
+        heapFile.delete();
+        try {
+            for (int step = 1; step <= 4; step++) {
+                Process p = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-ea",
+                    "-cp", System.getProperty("java.class.path"),
+                    "-Dpersistent.provider=MappedPersistentMemory",
+                    "-Dmapped.path=" + heapFile.getPath(), "-Dmapped.size=" + (256L << 20),
+                    "tests.PersistentSIHashMapTest", Integer.toString(step)).inheritIO().start();
+                int status = p.waitFor();
+                assert(status == 0);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            heapFile.delete();
+        }
+        return true;
+    }
+
+    static void restartChild(int step) {
+        int status = 1;
+        try {
+            PersistentMemoryProvider.getDefaultProvider().getHeap().open();
+            @SuppressWarnings("unchecked")
+            PersistentSIHashMap<PersistentInteger, PersistentInteger> map = ObjectDirectory.get("tests.sihashmap_restart", PersistentSIHashMap.class);
+            if (map == null) {
+                map = new PersistentSIHashMap<>();
+                ObjectDirectory.put("tests.sihashmap_restart", map);
+            }
+            int expected = step == 1 ? 0 : step == 2 ? 100 : step == 3 ? 4990 : 5000;
+            if (map.size() == expected) {
+                // step 1: too few updates for a checkpoint, so step 2 must recount;
+                // step 2: crosses the checkpoint interval; step 3: exits normally
+                if (step == 1) fill(map, 0, 100);
+                else if (step == 2) {
+                    fill(map, 100, 5000);
+                    for (int i = 0; i < 10; i++) map.remove(new PersistentInteger(i));
+                }
+                else if (step == 3) fill(map, 0, 10);
+                status = map.size() == (step == 1 ? 100 : step == 2 ? 4990 : 5000) ? 0 : 1;
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+        if (step <= 2) Runtime.getRuntime().halt(status);
+        System.exit(status);
+    }
+
+    static void fill(PersistentSIHashMap<PersistentInteger, PersistentInteger> map, int from, int to) {
+        for (int i = from; i < to; i++) map.put(new PersistentInteger(i), new PersistentInteger(i));
+    }
+
 }
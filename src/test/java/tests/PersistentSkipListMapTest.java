@@ -46,7 +46,13 @@ static boolean verbose = false;
         testIteration() &&
         testSubMap() &&
         testPutAll() &&
-        testSubmapOthers();
+        testSubmapOthers() &&
+        testRemoveAndReuseInTransaction();
+    }
+
+    // the reference count follows the class id in the object header
+    static int refCount(AnyPersistent obj) {
+        return PersistentMemoryProvider.getDefaultProvider().getHeap().regionFromAddress(obj.getPointer().addr()).getInt(4);
     }
 
     private static String threadSafeId(String id) {
@@ -667,4 +673,76 @@ static boolean verbose = false;
         map.clear();
         return true;
     }
+
+    // a key removed earlier in the same transaction must read as absent there, and putting it or its
+    // neighbour again must neither loop nor leave reference counts off, whether the transaction commits or aborts.
+    // Every key is removed and put back so that some of the removed nodes are indexed
+    static final int REUSE_KEYS = 200;
+
+    public static boolean testRemoveAndReuseInTransaction() {
+        if (verbose) System.out.println("****************Testing remove and reuse in a transaction");
+        PersistentSkipListMap<PersistentInteger, PersistentString> map = new PersistentSkipListMap<>();
+        PersistentString[] vals = new PersistentString[REUSE_KEYS];
+        for (int i = 0; i < REUSE_KEYS; i++) map.put(new PersistentInteger(i), vals[i] = new PersistentString("v" + i));
+        assert(refCount(vals[0]) == 1 && refCount(vals[REUSE_KEYS - 1]) == 1);
+
+        PersistentString[] news = new PersistentString[REUSE_KEYS];
+        for (int i = 0; i < REUSE_KEYS; i++) news[i] = new PersistentString("new" + i);
+        Transaction.run(() -> {
+            for (int i = 0; i < REUSE_KEYS; i += 2) {
+                PersistentString removed = map.remove(new PersistentInteger(i));
+                assert(removed == vals[i]);
+                PersistentString got = map.get(new PersistentInteger(i));
+                assert(got == null);
+                boolean contains = map.containsKey(new PersistentInteger(i));
+                assert(!contains);
+                PersistentString out = map.put(new PersistentInteger(i), news[i]);
+                assert(out == null);
+                if (i + 1 < REUSE_KEYS) {
+                    out = map.put(new PersistentInteger(i + 1), news[i + 1]);
+                    assert(out == vals[i + 1]);
+                }
+            }
+        });
+        assert(map.size() == REUSE_KEYS);
+        for (int i = 0; i < REUSE_KEYS; i++) {
+            assert(map.get(new PersistentInteger(i)) == news[i]);
+            // replaced values are released at once; a removed node, and with it its key, only when it is collected
+            assert(refCount(vals[i]) == 0 && refCount(news[i]) == 1);
+        }
+
+        PersistentString[] agains = new PersistentString[REUSE_KEYS];
+        for (int i = 0; i < REUSE_KEYS; i++) agains[i] = new PersistentString("again" + i);
+        boolean caught = false;
+        try {
+            Transaction.run(() -> {
+                for (int i = 0; i < REUSE_KEYS; i += 2) {
+                    PersistentString removed = map.remove(new PersistentInteger(i));
+                    assert(removed == news[i]);
+                    PersistentString got = map.get(new PersistentInteger(i));
+                    assert(got == null);
+                    PersistentString out = map.put(new PersistentInteger(i), agains[i]);
+                    assert(out == null);
+                    if (i + 1 < REUSE_KEYS) {
+                        out = map.put(new PersistentInteger(i + 1), agains[i + 1]);
+                        assert(out == news[i + 1]);
+                    }
+                }
+                throw new IllegalStateException("abort");
+            });
+        } catch (IllegalStateException e) {
+            caught = true;
+        }
+        assert(caught);
+        assert(map.size() == REUSE_KEYS);
+        int expected = 0;
+        for (PersistentInteger key : map.keySet()) {
+            assert(key.intValue() == expected);
+            assert(map.get(key) == news[expected]);
+            assert(refCount(news[expected]) == 1 && refCount(agains[expected]) == 0);
+            expected++;
+        }
+        assert(expected == REUSE_KEYS);
+        return true;
+    }
 }
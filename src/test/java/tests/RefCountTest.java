@@ -0,0 +1,124 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package tests;
+
+import lib.util.persistent.*;
+import lib.util.persistent.spi.PersistentMemoryProvider;
+
+public class RefCountTest {
+    static boolean verbose = false;
+    static PersistentHeap heap = PersistentMemoryProvider.getDefaultProvider().getHeap();
+
+    public static void main(String[] args) {
+        heap.open();
+        verbose = true;
+        run();
+    }
+
+    public static boolean run() {
+        System.out.println("****************RefCount Tests*************************");
+        return testNetZeroChange() &&
+               testAbortDiscardsChanges() &&
+               testNestedChangesApplyOnce();
+    }
+
+    // the reference count follows the class id in the object header
+    static int refCount(AnyPersistent obj) {
+        return heap.regionFromAddress(obj.getPointer().addr()).getInt(4);
+    }
+
+    public static boolean testNetZeroChange() {
+        if (verbose) System.out.println("****************Testing net zero change***************");
+        PersistentArray<PersistentString> holder = new PersistentArray<>(2);
+        PersistentString s = new PersistentString("moved");
+        holder.set(0, s);
+        assert(refCount(s) == 1);
+        int[] during = new int[1];
+        Transaction.run(() -> {
+            holder.set(0, null);
+            during[0] = refCount(s);
+            holder.set(1, s);
+        });
+        if (Config.COALESCE_REF_COUNTS) assert(during[0] == 1);
+        assert(refCount(s) == 1);
+        assert(holder.get(0) == null);
+        assert(holder.get(1).toString().equals("moved"));
+
+        PersistentArray<PersistentString> other = new PersistentArray<>(4);
+        Transaction.run(() -> {
+            other.set(0, s);
+            other.set(0, null);
+            PersistentArrays.ArrayCopy(holder, 1, other, 1, 1);
+            other.set(1, null);
+        });
+        assert(refCount(s) == 1);
+        assert(holder.get(1).toString().equals("moved"));
+        return true;
+    }
+
+    public static boolean testAbortDiscardsChanges() {
+        if (verbose) System.out.println("****************Testing abort discards changes********");
+        PersistentArray<PersistentString> holder = new PersistentArray<>(2);
+        PersistentString s = new PersistentString("kept");
+        holder.set(0, s);
+        boolean caught = false;
+        try {
+            Transaction.run(() -> {
+                holder.set(1, s);
+                holder.set(0, null);
+                throw new IllegalStateException("abort");
+            });
+        } catch (IllegalStateException e) {
+            caught = true;
+        }
+        assert(caught);
+        assert(refCount(s) == 1);
+        assert(holder.get(0).toString().equals("kept"));
+        assert(holder.get(1) == null);
+        // nothing left over for the next transaction to apply
+        Transaction.run(() -> holder.set(1, s));
+        assert(refCount(s) == 2);
+        return true;
+    }
+
+    public static boolean testNestedChangesApplyOnce() {
+        if (verbose) System.out.println("****************Testing nested changes apply once*****");
+        PersistentArray<PersistentString> holder = new PersistentArray<>(3);
+        PersistentString s = new PersistentString("nested");
+        holder.set(0, s);
+        int[] during = new int[2];
+        Transaction.run(() -> {
+            Transaction.run(() -> holder.set(1, s));
+            during[0] = refCount(s);
+            Transaction.run(() -> {
+                holder.set(2, s);
+                Transaction.run(() -> holder.set(0, null));
+            });
+            during[1] = refCount(s);
+        });
+        if (Config.COALESCE_REF_COUNTS) assert(during[0] == 1 && during[1] == 1);
+        assert(refCount(s) == 2);
+        assert(holder.get(0) == null);
+        assert(holder.get(1).toString().equals("nested") && holder.get(2).toString().equals("nested"));
+        return true;
+    }
+}
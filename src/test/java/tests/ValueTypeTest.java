@@ -0,0 +1,180 @@
+/* Copyright (C) 2017  Intel Corporation
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 only, as published by the Free Software Foundation.
+ * This file has been designated as subject to the "Classpath"
+ * exception as provided in the LICENSE file that accompanied
+ * this code.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License version 2 for more details (a copy
+ * is included in the LICENSE file that accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License
+ * version 2 along with this program; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+ */
+
+package tests;
+
+import lib.util.persistent.*;
+import lib.util.persistent.types.*;
+import lib.util.persistent.spi.PersistentMemoryProvider;
+
+import java.io.File;
+
+public class ValueTypeTest {
+    static boolean verbose = false;
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--child")) System.exit(child(args[1]) ? 0 : 1);
+        PersistentMemoryProvider.getDefaultProvider().getHeap().open();
+        verbose = true;
+        run();
+    }
+
+    public static boolean run() {
+        System.out.println("****************ValueType Tests************************");
+        return testNestedValues() &&
+               testIndirectValueArray() &&
+               testValueArrayReopen();
+    }
+
+    // an indirect value holding a direct and an indirect value
+    public static final class Tagged extends PersistentObject {
+        private static final LongField ID = new LongField();
+        private static final ValueField<Long128> POS = new ValueField<>(Long128.class);
+        private static final ValueField<PersistentIntegerValue> RANK = new ValueField<>(PersistentIntegerValue.class);
+        public static final ObjectType<Tagged> TYPE = ObjectType.indirectWithValueFields(Tagged.class, ID, POS, RANK);
+
+        public Tagged(long id, Long128 pos, int rank) {
+            super(TYPE, (Tagged self) -> {
+                self.initLongField(ID, id);
+                self.initObjectField(POS, pos);
+                self.initObjectField(RANK, new PersistentIntegerValue(rank));
+            });
+        }
+
+        private Tagged(ObjectPointer<Tagged> p) {super(p);}
+
+        public long id() {return getLongField(ID);}
+        public Long128 pos() {return getObjectField(POS);}
+        public int rank() {return getObjectField(RANK).intValue();}
+
+        boolean is(long id, long x0, long x1, int rank) {
+            Long128 pos = pos();
+            return id() == id && pos.getX0() == x0 && pos.getX1() == x1 && rank() == rank;
+        }
+    }
+
+    public static final class Holder extends PersistentObject {
+        private static final ValueField<Tagged> TAG = new ValueField<>(Tagged.class);
+        public static final ObjectType<Holder> TYPE = ObjectType.withFields(Holder.class, TAG);
+
+        public Holder(Tagged tag) {
+            super(TYPE);
+            set(tag);
+        }
+
+        private Holder(ObjectPointer<Holder> p) {super(p);}
+
+        public void set(Tagged tag) {setObjectField(TAG, tag);}
+        public Tagged get() {return getObjectField(TAG);}
+    }
+
+    public static boolean testNestedValues() {
+        if (verbose) System.out.println("****************Testing nested values*****************");
+        Holder holder = new Holder(new Tagged(1, new Long128(10, 11), 100));
+        ObjectDirectory.put("tests.value_type_holder", holder);
+        assert(holder.get().is(1, 10, 11, 100));
+        int leakedBefore = leakedRaw();
+        for (int i = 2; i <= 50; i++) {
+            holder.set(new Tagged(i, new Long128(10 * i, 10 * i + 1), 100 * i));
+            assert(holder.get().is(i, 10 * i, 10 * i + 1, 100 * i));
+        }
+        // each set frees the region of the value it replaces
+        if (leakedBefore >= 0) assert(leakedRaw() <= leakedBefore);
+        Holder h = ObjectDirectory.get("tests.value_type_holder", Holder.class);
+        assert(h.get().is(50, 500, 501, 5000));
+        ObjectDirectory.remove("tests.value_type_holder", Holder.class);
+        return true;
+    }
+
+    // unreachable regions allocated without an object header, which is how indirect values held by
+    // reference objects are stored; -1 if the heap cannot be walked
+    static int leakedRaw() {
+        HeapWalker.Report report;
+        try {
+            report = HeapWalker.analyze();
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+        if (!report.complete()) return -1;
+        int count = 0;
+        for (HeapWalker.Region r : report.unreachable()) if (!r.object) count++;
+        return count;
+    }
+
+    public static boolean testIndirectValueArray() {
+        if (verbose) System.out.println("****************Testing indirect value array**********");
+        PersistentValueArray<Tagged> arr = new PersistentValueArray<>(Tagged.class, 20);
+        for (int i = 0; i < arr.length(); i++) arr.set(i, new Tagged(i, new Long128(i, -i), 3 * i));
+        for (int i = 0; i < arr.length(); i++) {
+            assert(arr.get(i).is(i, i, -i, 3 * i));
+            assert(arr.getView(i).is(i, i, -i, 3 * i));
+        }
+        arr.set(7, new Tagged(70, new Long128(71, 72), 73));
+        assert(arr.get(6).is(6, 6, -6, 18) && arr.get(7).is(70, 71, 72, 73) && arr.get(8).is(8, 8, -8, 24));
+        PersistentValueArray<Tagged> copy = new PersistentValueArray<>(Tagged.class, arr.length());
+        PersistentArrays.ArrayCopy(arr, 0, copy, 0, arr.length());
+        for (int i = 0; i < copy.length(); i++) assert(copy.get(i).is(arr.get(i).id(), arr.get(i).pos().getX0(), arr.get(i).pos().getX1(), arr.get(i).rank()));
+        return true;
+    }
+
+    // the element layout of a value array has to come back from the heap after a restart; each step runs
+    // in its own JVM on a scratch mapped heap
+    public static boolean testValueArrayReopen() {
+        if (verbose) System.out.println("****************Testing value array reopen************");
+        File heapFile = new File(System.getProperty("java.io.tmpdir"), "value_type_test.mapped");
+        heapFile.delete();
+        try {
+            for (String step : new String[] {"write", "read"}) {
+                Process p = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-ea",
+                    "-cp", System.getProperty("java.class.path"),
+                    "-Dpersistent.provider=MappedPersistentMemory",
+                    "-Dmapped.path=" + heapFile.getPath(), "-Dmapped.size=" + (256L << 20),
+                    "tests.ValueTypeTest", "--child", step).inheritIO().start();
+                int status = p.waitFor();
+                assert(status == 0);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            heapFile.delete();
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    static boolean child(String step) {
+        PersistentMemoryProvider.getDefaultProvider().getHeap().open();
+        if (step.equals("write")) {
+            PersistentValueArray<Tagged> tags = new PersistentValueArray<>(Tagged.class, 10);
+            for (int i = 0; i < tags.length(); i++) tags.set(i, new Tagged(i, new Long128(2 * i, 2 * i + 1), i * i));
+            ObjectDirectory.put("tests.value_array_tags", tags);
+            ObjectDirectory.put("tests.value_array_longs", new PersistentValueArray<>(Long128.class, new Long128(5, 6), new Long128(7, 8)));
+            return true;
+        }
+        // an array of another element type constructed first must not change how the others are read
+        new PersistentValueArray<>(Long128.class, 3);
+        PersistentValueArray<Tagged> tags = ObjectDirectory.get("tests.value_array_tags", PersistentValueArray.class);
+        PersistentValueArray<Long128> longs = ObjectDirectory.get("tests.value_array_longs", PersistentValueArray.class);
+        if (tags.length() != 10 || longs.length() != 2) return false;
+        for (int i = 0; i < tags.length(); i++) if (!tags.get(i).is(i, 2 * i, 2 * i + 1, i * i)) return false;
+        return longs.get(0).getX0() == 5 && longs.get(0).getX1() == 6 && longs.get(1).getX0() == 7 && longs.get(1).getX1() == 8;
+    }
+}